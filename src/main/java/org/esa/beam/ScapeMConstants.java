@@ -36,6 +36,14 @@ public class ScapeMConstants {
 
     public static final double POWELL_FTOL = 1.E-4;
 
+    // minimisation methods of the cell visibility refinement
+    public static final String VIS_REFINEMENT_POWELL = "POWELL";
+    public static final String VIS_REFINEMENT_LEVENBERG_MARQUARDT = "LEVENBERG_MARQUARDT";
+    public static final String VIS_REFINEMENT_VARIABLE_PROJECTION = "VARIABLE_PROJECTION";
+    public static final String VIS_REFINEMENT_BOBYQA = "BOBYQA";
+    public static final String VIS_REFINEMENT_NELDER_MEAD = "NELDER_MEAD";
+    public static final double LM_FTOL = 1.E-6;
+
     public final static double[] WL_CENTER_INV = {
             14.2274, 11.5368, 8.50600, 1.96148, 1.78669, 1.61394, 1.50473, 4.65445, 1.41177, 3.10430,
             0.0, 1.28467, 1.15624, 1.13002, 0.0
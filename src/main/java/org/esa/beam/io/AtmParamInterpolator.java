@@ -0,0 +1,91 @@
+package org.esa.beam.io;
+
+import org.esa.beam.ScapeMConstants;
+import org.esa.beam.util.math.FracIndex;
+import org.esa.beam.util.math.LookupTable;
+
+/**
+ * Reusable interpolator for the Atmospheric parameters LUT.
+ * Owns all scratch buffers of the 8-D interpolation, so that repeated calls do not allocate.
+ * The fractional indices of the parameter and wavelength dimensions are computed once, those of the
+ * geometry (vza, sza, raa) once per {@link #setGeometry(double, double, double)}.
+ * <p/>
+ * Results are identical to {@link LutAccess#interpolAtmParamLut}.
+ * Instances are not thread-safe and must be confined to one thread.
+ *
+ * @author olafd
+ */
+public class AtmParamInterpolator {
+
+    private final LookupTable atmParamLut;
+    private final FracIndex[] fracIndices;
+    private final FracIndex[] paramFracIndices;
+    private final FracIndex[] wvlFracIndices;
+    private final double[] v;
+
+    public AtmParamInterpolator(LookupTable atmParamLut) {
+        this.atmParamLut = atmParamLut;
+
+        final int lutDimensionCount = atmParamLut.getDimensionCount();
+        fracIndices = FracIndex.createArray(lutDimensionCount);
+        v = new double[1 << lutDimensionCount];
+
+        final double[] params = atmParamLut.getDimension(6).getSequence();
+        paramFracIndices = FracIndex.createArray(params.length);
+        for (int i = 0; i < params.length; i++) {
+            LookupTable.computeFracIndex(atmParamLut.getDimension(6), params[i], paramFracIndices[i]);
+        }
+        final float[] wvl = ScapeMConstants.MERIS_WAVELENGTHS;
+        wvlFracIndices = FracIndex.createArray(wvl.length);
+        for (int i = 0; i < wvl.length; i++) {
+            LookupTable.computeFracIndex(atmParamLut.getDimension(7), wvl[i], wvlFracIndices[i]);
+        }
+    }
+
+    /**
+     * Sets the geometry used by all subsequent interpolations.
+     *
+     * @param vza - view zenith angle
+     * @param sza - sun zenith angle
+     * @param raa - relative azimuth angle
+     */
+    public void setGeometry(double vza, double sza, double raa) {
+        LookupTable.computeFracIndex(atmParamLut.getDimension(0), vza, fracIndices[0]);
+        LookupTable.computeFracIndex(atmParamLut.getDimension(1), sza, fracIndices[1]);
+        LookupTable.computeFracIndex(atmParamLut.getDimension(2), raa, fracIndices[2]);
+    }
+
+    /**
+     * Interpolates all parameters for all wavelengths at the current geometry.
+     *
+     * @param hsf    - surface height
+     * @param vis    - visibility
+     * @param cwv    - water vapour
+     * @param result - the 15x7 array ('f_ind' in IDL code) receiving the interpolated values
+     */
+    public void interpolate(double hsf, double vis, double cwv, double[][] result) {
+        LookupTable.computeFracIndex(atmParamLut.getDimension(3), hsf, fracIndices[3]);
+        LookupTable.computeFracIndex(atmParamLut.getDimension(4), vis, fracIndices[4]);
+        LookupTable.computeFracIndex(atmParamLut.getDimension(5), cwv, fracIndices[5]);
+
+        final FracIndex paramFracIndex = fracIndices[6];
+        final FracIndex wvlFracIndex = fracIndices[7];
+        for (int i = 0; i < result.length; i++) {
+            wvlFracIndex.i = wvlFracIndices[i].i;
+            wvlFracIndex.f = wvlFracIndices[i].f;
+            final double[] resultRow = result[i];
+            for (int j = 0; j < paramFracIndices.length; j++) {
+                paramFracIndex.i = paramFracIndices[j].i;
+                paramFracIndex.f = paramFracIndices[j].f;
+                resultRow[j] = atmParamLut.getValue(fracIndices, v);
+            }
+        }
+    }
+
+    /**
+     * @return a new result array matching {@link #interpolate(double, double, double, double[][])}
+     */
+    public double[][] createResultArray() {
+        return new double[wvlFracIndices.length][paramFracIndices.length];
+    }
+}
@@ -0,0 +1,27 @@
+package org.esa.beam.io;
+
+import org.esa.beam.util.math.LookupTable;
+
+/**
+ * The Atmospheric parameters LUT. In addition to the plain {@link LookupTable}, keeps the flattened LUT values,
+ * so that geometry slices (see {@link AtmParamSlice}) can be extracted from the raw data in a single pass.
+ *
+ * @author olafd
+ */
+public class AtmParamLookupTable extends LookupTable {
+
+    private final float[] values;
+
+    /**
+     * @param values     - the LUT values, vza being the slowest and wavelength the fastest varying index
+     * @param dimensions - the dimensions vza, sza, raa, hsf, vis, cwv, parameters, wvl
+     */
+    public AtmParamLookupTable(float[] values, float[]... dimensions) {
+        super(values, dimensions);
+        this.values = values;
+    }
+
+    float[] getValues() {
+        return values;
+    }
+}
@@ -0,0 +1,173 @@
+package org.esa.beam.io;
+
+import org.esa.beam.util.math.LookupTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Local disk cache of the decoded Atmospheric parameters LUT.
+ * The cache file holds the LUT dimensions and the flattened LUT values in final {@link LookupTable} layout
+ * and native byte order, so a later process only has to map the file instead of parsing the LUT resource.
+ * <p/>
+ * File layout (native byte order):
+ * <pre>
+ * int    magic
+ * int    format version
+ * long   length of the LUT resource the cache was created from
+ * long   last modification time of the LUT resource
+ * int    number of dimensions, followed by (int length, float[length] values) per dimension
+ * int    number of LUT values
+ * long   checksum of the LUT values
+ * float  LUT values
+ * </pre>
+ *
+ * @author olafd
+ */
+class AtmParamLutCache {
+
+    private static final int MAGIC = 0x53434C54;   // 'SCLT'
+    private static final int VERSION = 1;
+
+    /**
+     * Reads the LUT from a cache file.
+     *
+     * @param cacheFile            - the cache file
+     * @param resourceLength       - length of the current LUT resource
+     * @param resourceLastModified - last modification time of the current LUT resource
+     * @return the LUT, or null if the cache file does not exist, was created from a different LUT resource
+     *         or is corrupt
+     */
+    static AtmParamLookupTable read(File cacheFile, long resourceLength, long resourceLastModified) {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+            try {
+                final FileChannel channel = raf.getChannel();
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.order(ByteOrder.nativeOrder());
+                return decode(buffer, resourceLength, resourceLastModified);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // truncated or otherwise corrupt file
+            return null;
+        }
+    }
+
+    /**
+     * Writes the LUT into a cache file. The file is written to a temporary file first and then renamed,
+     * so concurrent readers never see a partially written cache.
+     *
+     * @param cacheFile            - the cache file
+     * @param dimensions           - the LUT dimensions
+     * @param values               - the LUT values
+     * @param resourceLength       - length of the LUT resource
+     * @param resourceLastModified - last modification time of the LUT resource
+     * @throws IOException when the cache file cannot be written
+     */
+    static void write(File cacheFile, float[][] dimensions, float[] values,
+                      long resourceLength, long resourceLastModified) throws IOException {
+        final File cacheDir = cacheFile.getAbsoluteFile().getParentFile();
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Cannot create LUT cache directory " + cacheDir);
+        }
+
+        int headerLength = 4 + 4 + 8 + 8 + 4;
+        for (float[] dimension : dimensions) {
+            headerLength += 4 + 4 * dimension.length;
+        }
+        headerLength += 4 + 8;
+
+        ByteBuffer buffer = ByteBuffer.allocate(headerLength + 4 * values.length).order(ByteOrder.nativeOrder());
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(resourceLength);
+        buffer.putLong(resourceLastModified);
+        buffer.putInt(dimensions.length);
+        for (float[] dimension : dimensions) {
+            buffer.putInt(dimension.length);
+            for (float value : dimension) {
+                buffer.putFloat(value);
+            }
+        }
+        buffer.putInt(values.length);
+        buffer.putLong(computeChecksum(values));
+        buffer.asFloatBuffer().put(values);
+        buffer.rewind();
+
+        final File tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheDir);
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+            try {
+                final FileChannel channel = raf.getChannel();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } finally {
+                raf.close();
+            }
+            if (!tmpFile.renameTo(cacheFile)) {
+                // some platforms do not allow to rename onto an existing file
+                cacheFile.delete();
+                if (!tmpFile.renameTo(cacheFile)) {
+                    throw new IOException("Cannot move LUT cache to " + cacheFile);
+                }
+            }
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    /* package local for testing*/
+    static long computeChecksum(float[] values) {
+        // 64 bit FNV-1a over the raw float bits
+        long checksum = 0xcbf29ce484222325L;
+        for (float value : values) {
+            checksum ^= Float.floatToRawIntBits(value);
+            checksum *= 0x100000001b3L;
+        }
+        return checksum;
+    }
+
+    private static AtmParamLookupTable decode(ByteBuffer buffer, long resourceLength, long resourceLastModified) {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+        if (buffer.getLong() != resourceLength || buffer.getLong() != resourceLastModified) {
+            return null;
+        }
+        float[][] dimensions = new float[buffer.getInt()][];
+        for (int i = 0; i < dimensions.length; i++) {
+            dimensions[i] = new float[buffer.getInt()];
+            buffer.asFloatBuffer().get(dimensions[i]);
+            buffer.position(buffer.position() + 4 * dimensions[i].length);
+        }
+        final int numValues = buffer.getInt();
+        final long checksum = buffer.getLong();
+
+        int expectedNumValues = 1;
+        for (float[] dimension : dimensions) {
+            expectedNumValues *= dimension.length;
+        }
+        if (numValues != expectedNumValues || buffer.remaining() != 4 * numValues) {
+            return null;
+        }
+        float[] values = new float[numValues];
+        buffer.asFloatBuffer().get(values);
+        if (computeChecksum(values) != checksum) {
+            return null;
+        }
+        return new AtmParamLookupTable(values, dimensions);
+    }
+}
@@ -0,0 +1,193 @@
+package org.esa.beam.io;
+
+import org.esa.beam.util.math.FracIndex;
+import org.esa.beam.util.math.IntervalPartition;
+import org.esa.beam.util.math.LookupTable;
+
+/**
+ * The Atmospheric parameters LUT collapsed to a fixed geometry (vza, sza, raa): a 3-D table over the
+ * hsf, vis and cwv grid holding all parameters for all wavelengths.
+ * Since geometry is constant within a cell, all LUT queries of a cell reduce to cheap trilinear lookups.
+ * Results agree with {@link LutAccess#interpolAtmParamLut} to within floating point rounding.
+ * <p/>
+ * Instances are not thread-safe and must be confined to one thread.
+ *
+ * @author olafd
+ */
+public class AtmParamSlice {
+
+    private static final int HSF = 3;
+    private static final int VIS = 4;
+    private static final int CWV = 5;
+    private static final int PARAM = 6;
+    private static final int WVL = 7;
+
+    private final IntervalPartition hsfPartition;
+    private final IntervalPartition visPartition;
+    private final IntervalPartition cwvPartition;
+    private final int numParams;
+    private final int numWvl;
+    private final int cwvStride;
+    private final int visStride;
+    private final int hsfStride;
+    // layout [hsf][vis][cwv][param][wvl], as in the LUT
+    private final double[] values;
+
+    private final FracIndex hsfIndex;
+    private final FracIndex visIndex;
+    private final FracIndex cwvIndex;
+
+    private AtmParamSlice(LookupTable lut, double[] values) {
+        hsfPartition = lut.getDimension(HSF);
+        visPartition = lut.getDimension(VIS);
+        cwvPartition = lut.getDimension(CWV);
+        numParams = lut.getDimension(PARAM).getCardinal();
+        numWvl = lut.getDimension(WVL).getCardinal();
+        cwvStride = numParams * numWvl;
+        visStride = cwvPartition.getCardinal() * cwvStride;
+        hsfStride = visPartition.getCardinal() * visStride;
+        this.values = values;
+        hsfIndex = new FracIndex();
+        visIndex = new FracIndex();
+        cwvIndex = new FracIndex();
+    }
+
+    /**
+     * Collapses the Atmospheric parameters LUT to the given geometry in a single pass over the LUT values.
+     *
+     * @param lut - the Atmospheric parameters LUT
+     * @param vza - view zenith angle
+     * @param sza - sun zenith angle
+     * @param raa - relative azimuth angle
+     * @return the slice
+     */
+    public static AtmParamSlice create(AtmParamLookupTable lut, double vza, double sza, double raa) {
+        final FracIndex vzaIndex = new FracIndex();
+        final FracIndex szaIndex = new FracIndex();
+        final FracIndex raaIndex = new FracIndex();
+        LookupTable.computeFracIndex(lut.getDimension(0), vza, vzaIndex);
+        LookupTable.computeFracIndex(lut.getDimension(1), sza, szaIndex);
+        LookupTable.computeFracIndex(lut.getDimension(2), raa, raaIndex);
+
+        // the geometry dimensions vary slowest, so every geometry node holds one contiguous block
+        int blockLength = 1;
+        for (int i = HSF; i <= WVL; i++) {
+            blockLength *= lut.getDimension(i).getCardinal();
+        }
+        final int raaStride = blockLength;
+        final int szaStride = lut.getDimension(2).getCardinal() * raaStride;
+        final int vzaStride = lut.getDimension(1).getCardinal() * szaStride;
+
+        final int o000 = vzaIndex.i * vzaStride + szaIndex.i * szaStride + raaIndex.i * raaStride;
+        final int o100 = o000 + vzaStride;
+        final int o010 = o000 + szaStride;
+        final int o110 = o010 + vzaStride;
+        final int o001 = o000 + raaStride;
+        final int o101 = o001 + vzaStride;
+        final int o011 = o001 + szaStride;
+        final int o111 = o011 + vzaStride;
+        final double fVza = vzaIndex.f;
+        final double fSza = szaIndex.f;
+        final double fRaa = raaIndex.f;
+
+        final float[] lutValues = lut.getValues();
+        final double[] values = new double[blockLength];
+        for (int k = 0; k < blockLength; k++) {
+            // same reduction order as LookupTable: highest dimension first
+            double v0 = lutValues[o000 + k];
+            double v1 = lutValues[o100 + k];
+            double v2 = lutValues[o010 + k];
+            double v3 = lutValues[o110 + k];
+            v0 += fRaa * (lutValues[o001 + k] - v0);
+            v1 += fRaa * (lutValues[o101 + k] - v1);
+            v2 += fRaa * (lutValues[o011 + k] - v2);
+            v3 += fRaa * (lutValues[o111 + k] - v3);
+            v0 += fSza * (v2 - v0);
+            v1 += fSza * (v3 - v1);
+            values[k] = v0 + fVza * (v1 - v0);
+        }
+        return new AtmParamSlice(lut, values);
+    }
+
+    /**
+     * Interpolates all parameters for all wavelengths.
+     *
+     * @param hsf    - surface height
+     * @param vis    - visibility
+     * @param cwv    - water vapour
+     * @param result - the 15x7 array ('f_ind' in IDL code) receiving the interpolated values
+     */
+    public void interpolate(double hsf, double vis, double cwv, double[][] result) {
+        final int origin = computeOrigin(hsf, vis, cwv);
+        for (int i = 0; i < numWvl; i++) {
+            final double[] resultRow = result[i];
+            for (int j = 0; j < numParams; j++) {
+                resultRow[j] = interpolate(origin + j * numWvl + i);
+            }
+        }
+    }
+
+    /**
+     * Interpolates a single parameter for a single wavelength.
+     *
+     * @param hsf        - surface height
+     * @param vis        - visibility
+     * @param cwv        - water vapour
+     * @param wvlIndex   - the wavelength (band) index
+     * @param paramIndex - the parameter index
+     * @return the interpolated value
+     */
+    public double interpolate(double hsf, double vis, double cwv, int wvlIndex, int paramIndex) {
+        return interpolate(computeOrigin(hsf, vis, cwv) + paramIndex * numWvl + wvlIndex);
+    }
+
+    /**
+     * Provides a value at a hsf/vis/cwv grid node.
+     *
+     * @param hsfNode    - index in the hsf grid
+     * @param visNode    - index in the vis grid
+     * @param cwvNode    - index in the cwv grid
+     * @param wvlIndex   - the wavelength (band) index
+     * @param paramIndex - the parameter index
+     * @return the value
+     */
+    public double getValue(int hsfNode, int visNode, int cwvNode, int wvlIndex, int paramIndex) {
+        return values[hsfNode * hsfStride + visNode * visStride + cwvNode * cwvStride + paramIndex * numWvl + wvlIndex];
+    }
+
+    public int getNumWavelengths() {
+        return numWvl;
+    }
+
+    public int getNumParameters() {
+        return numParams;
+    }
+
+    private int computeOrigin(double hsf, double vis, double cwv) {
+        LookupTable.computeFracIndex(hsfPartition, hsf, hsfIndex);
+        LookupTable.computeFracIndex(visPartition, vis, visIndex);
+        LookupTable.computeFracIndex(cwvPartition, cwv, cwvIndex);
+        return hsfIndex.i * hsfStride + visIndex.i * visStride + cwvIndex.i * cwvStride;
+    }
+
+    private double interpolate(int o000) {
+        final int o100 = o000 + hsfStride;
+        final int o010 = o000 + visStride;
+        final int o110 = o010 + hsfStride;
+
+        // same reduction order as LookupTable: highest dimension first
+        final double fCwv = cwvIndex.f;
+        double v0 = values[o000];
+        double v1 = values[o100];
+        double v2 = values[o010];
+        double v3 = values[o110];
+        v0 += fCwv * (values[o000 + cwvStride] - v0);
+        v1 += fCwv * (values[o100 + cwvStride] - v1);
+        v2 += fCwv * (values[o010 + cwvStride] - v2);
+        v3 += fCwv * (values[o110 + cwvStride] - v3);
+        final double fVis = visIndex.f;
+        v0 += fVis * (v2 - v0);
+        v1 += fVis * (v3 - v1);
+        return v0 + hsfIndex.f * (v1 - v0);
+    }
+}
@@ -1,15 +1,31 @@
 package org.esa.beam.io;
 
 import org.esa.beam.ScapeMConstants;
-import org.esa.beam.util.math.FracIndex;
+import org.esa.beam.util.SystemUtils;
+import org.esa.beam.util.logging.BeamLogManager;
 import org.esa.beam.util.math.LookupTable;
 
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.MemoryCacheImageInputStream;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Access to LookUpTables
@@ -18,6 +34,9 @@ import java.nio.ByteOrder;
  */
 public class LutAccess {
     private static final String atmParamLutPath = "SCAPEM_LUT_MERIS";    // currently we have only this one
+    private static final int NUM_ATM_PARAM_LUT_DIMENSIONS = 8;
+    private static final String LUT_CACHE_DIR_PROPERTY = "beam.scapeM.lutCacheDir";
+    private static final String USE_LUT_CACHE_PROPERTY = "beam.scapeM.useLutCache";
 
     /**
      * reads an Atmospheric parameters LUT (IDL breadboard procedure 'read_lut')
@@ -33,56 +52,57 @@ public class LutAccess {
      * A LUT value can be accessed with
      * lut.getValue(new double[]{vzaValue, szaValue, raaValue, hsfValue, visValue, cwvValue, wvlValue, parameterValue});
      *
-     * @return LookupTable
+     * @return AtmParamLookupTable
      * @throws java.io.IOException when failing to real LUT data
      */
-    public static LookupTable getAtmParmsLookupTable() throws IOException {
-        ImageInputStream iis = LutAccess.getAtmParamLutData();
-        try {
-            // read LUT dimensions and values
-            float[] vza = LutAccess.readDimension(iis);
-            int nVza = vza.length;
-            float[] sza = LutAccess.readDimension(iis);
-            int nSza = sza.length;
-            float[] raa = LutAccess.readDimension(iis);
-            int nRaa = raa.length;
-            float[] hsf = LutAccess.readDimension(iis);
-            int nHsf = hsf.length;
-            float[] vis = LutAccess.readDimension(iis);
-            int nVis = vis.length;
-            float[] cwv = LutAccess.readDimension(iis);
-            int nCwv = cwv.length;
-
-            float[] parameters = new float[]{1.0f, 2.0f, 3.0f, 4.0f, 5.0f, 6.0f, 7.0f};
-            int nParameters = parameters.length;
-            float[] wvl = ScapeMConstants.MERIS_WAVELENGTHS;
-            int nWvl = wvl.length;
-
-            float[] lut = new float[nParameters * nVza * nSza * nRaa * nHsf * nVis * nCwv * nWvl];
+    public static AtmParamLookupTable getAtmParmsLookupTable() throws IOException {
+        final URL url = getAtmParamLutUrl();
+        final URLConnection connection = url.openConnection();
+        final long resourceLength = connection.getContentLength();
+        final long resourceLastModified = connection.getLastModified();
 
-            for (int iVza = 0; iVza < nVza; iVza++) {
-                for (int iSza = 0; iSza < nSza; iSza++) {
-                    for (int iRaa = 0; iRaa < nRaa; iRaa++) {
-                        for (int iHsf = 0; iHsf < nHsf; iHsf++) {
-                            for (int iVis = 0; iVis < nVis; iVis++) {
-                                for (int iCwv = 0; iCwv < nCwv; iCwv++) {
-                                    for (int iParams = 0; iParams < nParameters; iParams++) {
-                                        for (int iWvl = 0; iWvl < nWvl; iWvl++) {
-                                            int i = iWvl + nWvl * (iParams + nParameters * (iCwv + nCwv * (iVis + nVis * (iHsf + nHsf * (iRaa + nRaa * (iSza + nSza * iVza))))));
-                                            lut[i] = iis.readFloat();
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
+        final File cacheFile = getAtmParamLutCacheFile();
+        if (cacheFile != null) {
+            final AtmParamLookupTable cachedLut = AtmParamLutCache.read(cacheFile, resourceLength, resourceLastModified);
+            if (cachedLut != null) {
+                return cachedLut;
             }
+        }
 
-            return new LookupTable(lut, vza, sza, raa, hsf, vis, cwv, parameters, wvl);
-        } finally {
-            iis.close();
+        final ByteBuffer buffer = readAtmParamLutBuffer(url);
+        final float[][] dimensions = readAtmParamLutDimensions(buffer);
+        final float[] lut = readAtmParamLutValues(buffer, dimensions);
+
+        if (cacheFile != null) {
+            try {
+                AtmParamLutCache.write(cacheFile, dimensions, lut, resourceLength, resourceLastModified);
+            } catch (IOException e) {
+                BeamLogManager.getSystemLogger().warning("Cannot write atmospheric LUT cache: " + e.getMessage());
+            }
         }
+
+        return new AtmParamLookupTable(lut, dimensions);
+    }
+
+    /**
+     * Provides the location of the local cache file of the decoded Atmospheric parameters LUT.
+     * The cache directory can be set with the system property {@code beam.scapeM.lutCacheDir}, the
+     * cache is disabled by setting the system property {@code beam.scapeM.useLutCache} to false.
+     *
+     * @return the cache file, or null if caching is disabled
+     */
+    static File getAtmParamLutCacheFile() {
+        if (!Boolean.parseBoolean(System.getProperty(USE_LUT_CACHE_PROPERTY, "true"))) {
+            return null;
+        }
+        final String cacheDirPath = System.getProperty(LUT_CACHE_DIR_PROPERTY);
+        File cacheDir;
+        if (cacheDirPath != null) {
+            cacheDir = new File(cacheDirPath);
+        } else {
+            cacheDir = new File(SystemUtils.getApplicationDataDir(), "beam-scape-m" + File.separator + "auxdata");
+        }
+        return new File(cacheDir, atmParamLutPath + ".cache");
     }
 
     /**
@@ -96,30 +116,117 @@ public class LutAccess {
                                                  double hsf,
                                                  double vis,
                                                  double cwv) {
-        final float[] wvl = ScapeMConstants.MERIS_WAVELENGTHS;
-        final double[] params = atmParamLut.getDimension(6).getSequence();
-        double[][] result = new double[wvl.length][7];
-
-        int lutDimensionCount = atmParamLut.getDimensionCount();
-        FracIndex[] fracIndices = FracIndex.createArray(lutDimensionCount);
-        double[] v = new double[1 << lutDimensionCount];
-
-        LookupTable.computeFracIndex(atmParamLut.getDimension(0), vza, fracIndices[0]);
-        LookupTable.computeFracIndex(atmParamLut.getDimension(1), sza, fracIndices[1]);
-        LookupTable.computeFracIndex(atmParamLut.getDimension(2), raa, fracIndices[2]);
-        LookupTable.computeFracIndex(atmParamLut.getDimension(3), hsf, fracIndices[3]);
-        LookupTable.computeFracIndex(atmParamLut.getDimension(4), vis, fracIndices[4]);
-        LookupTable.computeFracIndex(atmParamLut.getDimension(5), cwv, fracIndices[5]);
-
-        for (int i = 0; i < result.length; i++) {
-            int index = 0;
-            LookupTable.computeFracIndex(atmParamLut.getDimension(7), wvl[i], fracIndices[7]);
-            for (double param : params) {
-                LookupTable.computeFracIndex(atmParamLut.getDimension(6), param, fracIndices[6]);
-                result[i][index++] = atmParamLut.getValue(fracIndices, v);
+        final AtmParamInterpolator interpolator = new AtmParamInterpolator(atmParamLut);
+        interpolator.setGeometry(vza, sza, raa);
+        double[][] result = interpolator.createResultArray();
+        interpolator.interpolate(hsf, vis, cwv, result);
+        return result;
+    }
+
+    /**
+     * Provides the complete Atmospheric parameters LUT resource as little-endian byte buffer.
+     * If the resource is available as plain file, it is memory-mapped, otherwise it is read in one bulk operation.
+     *
+     * @return ByteBuffer - the LUT resource content, positioned at its start
+     * @throws IOException when failing to read LUT data
+     */
+    static ByteBuffer readAtmParamLutBuffer() throws IOException {
+        return readAtmParamLutBuffer(getAtmParamLutUrl());
+    }
+
+    private static ByteBuffer readAtmParamLutBuffer(URL url) throws IOException {
+        ByteBuffer buffer = null;
+        if ("file".equals(url.getProtocol())) {
+            try {
+                buffer = mapFile(new File(url.toURI()));
+            } catch (URISyntaxException e) {
+                // fall back to reading the resource stream
             }
         }
-        return result;
+        if (buffer == null) {
+            buffer = ByteBuffer.wrap(readFully(url));
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Reads the dimensions of the Atmospheric parameters LUT from the buffer start.
+     * The buffer is left positioned at the start of the LUT values.
+     *
+     * @param buffer - the LUT content
+     * @return float[][] - the dimensions in the order vza, sza, raa, hsf, vis, cwv, parameters, wvl
+     */
+    static float[][] readAtmParamLutDimensions(ByteBuffer buffer) {
+        float[][] dimensions = new float[NUM_ATM_PARAM_LUT_DIMENSIONS][];
+        // vza, sza, raa, hsf, vis, cwv are stored in the LUT resource
+        for (int i = 0; i < 6; i++) {
+            dimensions[i] = new float[buffer.getInt()];
+            for (int j = 0; j < dimensions[i].length; j++) {
+                dimensions[i][j] = buffer.getFloat();
+            }
+        }
+        dimensions[6] = new float[]{1.0f, 2.0f, 3.0f, 4.0f, 5.0f, 6.0f, 7.0f};
+        dimensions[7] = ScapeMConstants.MERIS_WAVELENGTHS;
+        return dimensions;
+    }
+
+    /**
+     * Reads the Atmospheric parameters LUT values, starting at the current buffer position.
+     * The values are stored in the same order as required by the {@link LookupTable}, so each VZA slab is
+     * decoded with a bulk read directly into the final array. Slabs are decoded in parallel.
+     *
+     * @param buffer     - the LUT content, positioned at the start of the LUT values
+     * @param dimensions - the LUT dimensions
+     * @return float[] - the LUT values
+     * @throws IOException when failing to decode the LUT data
+     */
+    static float[] readAtmParamLutValues(final ByteBuffer buffer, float[][] dimensions) throws IOException {
+        final int nVza = dimensions[0].length;
+        int slabLength = 1;
+        for (int i = 1; i < dimensions.length; i++) {
+            slabLength *= dimensions[i].length;
+        }
+        final float[] lut = new float[nVza * slabLength];
+        if (buffer.remaining() < lut.length * 4) {
+            throw new IOException("Atmospheric LUT is truncated: expected " + lut.length * 4 +
+                                          " bytes of data, but found " + buffer.remaining());
+        }
+
+        final int numThreads = Math.min(nVza, Runtime.getRuntime().availableProcessors());
+        if (numThreads <= 1) {
+            for (int iVza = 0; iVza < nVza; iVza++) {
+                readSlab(buffer, lut, iVza, slabLength);
+            }
+            return lut;
+        }
+
+        final ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(nVza);
+            for (int iVza = 0; iVza < nVza; iVza++) {
+                final int slabIndex = iVza;
+                final int length = slabLength;
+                tasks.add(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        readSlab(buffer, lut, slabIndex, length);
+                        return null;
+                    }
+                });
+            }
+            for (Future<Object> future : executorService.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading atmospheric LUT", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to read atmospheric LUT", e.getCause());
+        } finally {
+            executorService.shutdown();
+        }
+        return lut;
     }
 
     public static ImageInputStream getAtmParamLutData() {
@@ -144,6 +251,49 @@ public class LutAccess {
         return imageInputStream;
     }
 
+    private static URL getAtmParamLutUrl() {
+        final URL url = LutAccess.class.getResource(atmParamLutPath);
+        if (url == null) {
+            throw new IllegalArgumentException("Could not find resource: " + atmParamLutPath);
+        }
+        return url;
+    }
+
+    private static void readSlab(ByteBuffer buffer, float[] lut, int slabIndex, int slabLength) {
+        // duplicates do not inherit the byte order, so it has to be set again
+        final ByteBuffer slabBuffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        slabBuffer.position(buffer.position() + slabIndex * slabLength * 4);
+        slabBuffer.asFloatBuffer().get(lut, slabIndex * slabLength, slabLength);
+    }
+
+    private static ByteBuffer mapFile(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] readFully(URL url) throws IOException {
+        final URLConnection connection = url.openConnection();
+        final int contentLength = connection.getContentLength();
+        final InputStream inputStream = connection.getInputStream();
+        try {
+            ByteArrayOutputStream outputStream =
+                    new ByteArrayOutputStream(contentLength > 0 ? contentLength : 16 * 1024 * 1024);
+            byte[] chunk = new byte[64 * 1024];
+            int numRead;
+            while ((numRead = inputStream.read(chunk)) != -1) {
+                outputStream.write(chunk, 0, numRead);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
     private static InputStream openResource(String path) {
         InputStream inputStream = LutAccess.class.getResourceAsStream(path);
         if (inputStream == null) {
@@ -26,6 +26,25 @@ public class Brent {
      * @throws IllegalStateException Description of Exception
      */
     public static double[] brent(double ax, double bx, double cx, Function fun, double tol) throws IllegalStateException {
+        final double[] result = new double[2];
+        brent(ax, bx, cx, fun, tol, result);
+        return result;
+    }
+
+    /**
+     * Same as {@link #brent(double, double, double, Function, double)}, but writes xmin and fx into the given array.
+     *
+     * @param ax     left bracket
+     * @param bx     inner value
+     * @param cx     right bracket
+     * @param fun    the function
+     * @param tol    tolerance
+     * @param result array of length 2 receiving xmin and fx
+     *
+     * @throws IllegalStateException Description of Exception
+     */
+    public static void brent(double ax, double bx, double cx, Function fun, double tol, double[] result)
+            throws IllegalStateException {
         double e = 0.0;
         double d = 0.0;
         double a = (ax < cx ? ax : cx);
@@ -33,15 +52,17 @@ public class Brent {
         double x = bx;
         double w = bx;
         double v = bx;
-        double fw = fun.f(x);
-        double fv = fun.f(x);
         double fx = fun.f(x);
+        double fw = fx;
+        double fv = fx;
         for (int iter = 0; iter < ITMAX; iter++) {
             double xm = 0.5 * (a + b);
             double tol1 = tol * Math.abs(x) + ZEPS;
             double tol2 = 2.0 * tol1;
             if (Math.abs(x - xm) <= (tol2 - 0.5 * (b - a))) {
-                return new double[]{x, fx};
+                result[0] = x;
+                result[1] = fx;
+                return;
             }
             if (Math.abs(e) > tol1) {
                 double r = (x - w) * (fx - fv);
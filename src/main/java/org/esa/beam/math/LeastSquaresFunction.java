@@ -0,0 +1,24 @@
+package org.esa.beam.math;
+
+/**
+ * Interface providing a function which is a sum of squared residuals, f(x) = sum(r_k(x)^2),
+ * together with the Jacobian of the residual vector.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public interface LeastSquaresFunction {
+
+    /**
+     * @return the number of residuals
+     */
+    int getNumResiduals();
+
+    /**
+     * Residual vector definition
+     *
+     * @param x         - point at which the residuals should be calculated
+     * @param residuals - array receiving the residuals r_k(x)
+     * @param jacobian  - array receiving the partial derivatives jacobian[k][i] = dr_k/dx_i
+     */
+    void computeResiduals(double[] x, double[] residuals, double[][] jacobian);
+}
@@ -0,0 +1,208 @@
+package org.esa.beam.math;
+
+/**
+ * This class provides a Levenberg-Marquardt minimisation of a sum of squares within lower and upper bounds
+ * of the variables (see Num. Recip., pp. 683). Trial points are projected onto the bounds, and variables on a
+ * bound are kept fixed as long as the gradient points outwards.
+ * The work arrays are kept between calls, so an instance must not be used by several threads.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class LevenbergMarquardt {
+
+    private static final int ITMAX = 200;
+    private static final double LAMBDA_INIT = 1.0e-3;
+    private static final double LAMBDA_MIN = 1.0e-12;
+    private static final double LAMBDA_MAX = 1.0e+12;
+    private static final double TINY = 1.0e-20;
+
+    private int numIterations;
+    private int numEvaluations;
+
+    private double[] residuals = new double[0];
+    private double[] trialResiduals = new double[0];
+    private double[][] jacobian = new double[0][0];
+    private double[][] trialJacobian = new double[0][0];
+    private double[] xTrial = new double[0];
+    private double[] gradient = new double[0];
+    private double[] dx = new double[0];
+    private double[][] alpha = new double[0][0];
+    private double[][] cholesky = new double[0][0];
+    private boolean[] free = new boolean[0];
+
+    /**
+     * This method provides a minimisation of a sum of squares of n variables
+     *
+     * @param x     array of variables (has length n), start point on input, minimum on output
+     * @param lower lower bounds of the variables
+     * @param upper upper bounds of the variables
+     * @param ftol  fractional tolerance in function value
+     * @param func  function to be minimised
+     * @return the minimum
+     */
+    public double fmin(double[] x, double[] lower, double[] upper, double ftol, LeastSquaresFunction func) {
+        final int n = x.length;
+        final int m = func.getNumResiduals();
+        ensureSize(n, m);
+
+        clamp(x, lower, upper, x);
+        func.computeResiduals(x, residuals, jacobian);
+        double cost = sumOfSquares(residuals, m);
+        numIterations = 0;
+        numEvaluations = 1;
+
+        double lambda = LAMBDA_INIT;
+        while (numIterations < ITMAX) {
+            numIterations++;
+            computeNormalEquations(n, m);
+            for (int i = 0; i < n; i++) {
+                free[i] = !((x[i] <= lower[i] && gradient[i] > 0.0) || (x[i] >= upper[i] && gradient[i] < 0.0));
+            }
+
+            boolean accepted = false;
+            while (!accepted) {
+                if (lambda > LAMBDA_MAX) {
+                    return cost;
+                }
+                if (!solveDampedSystem(n, lambda)) {
+                    lambda *= 10.0;
+                    continue;
+                }
+                for (int i = 0; i < n; i++) {
+                    xTrial[i] = x[i] + dx[i];
+                }
+                clamp(xTrial, lower, upper, xTrial);
+                func.computeResiduals(xTrial, trialResiduals, trialJacobian);
+                numEvaluations++;
+                final double trialCost = sumOfSquares(trialResiduals, m);
+                if (trialCost < cost) {
+                    accepted = true;
+                    System.arraycopy(xTrial, 0, x, 0, n);
+                    swapTrial();
+                    final boolean converged = 2.0 * (cost - trialCost) <= ftol * (cost + trialCost);
+                    cost = trialCost;
+                    lambda = Math.max(lambda * 0.1, LAMBDA_MIN);
+                    if (converged) {
+                        return cost;
+                    }
+                } else {
+                    lambda *= 10.0;
+                }
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * @return the number of iterations of the last minimisation
+     */
+    public int getNumIterations() {
+        return numIterations;
+    }
+
+    /**
+     * @return the number of function evaluations of the last minimisation
+     */
+    public int getNumEvaluations() {
+        return numEvaluations;
+    }
+
+    // gradient = J^T r and alpha = J^T J
+    private void computeNormalEquations(int n, int m) {
+        for (int i = 0; i < n; i++) {
+            double g = 0.0;
+            for (int k = 0; k < m; k++) {
+                g += jacobian[k][i] * residuals[k];
+            }
+            gradient[i] = g;
+            for (int j = 0; j <= i; j++) {
+                double a = 0.0;
+                for (int k = 0; k < m; k++) {
+                    a += jacobian[k][i] * jacobian[k][j];
+                }
+                alpha[i][j] = a;
+                alpha[j][i] = a;
+            }
+        }
+    }
+
+    // solves (alpha + lambda * diag(alpha)) dx = -gradient for the free variables by Cholesky decomposition
+    private boolean solveDampedSystem(int n, double lambda) {
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j <= i; j++) {
+                double sum;
+                if (!free[i] || !free[j]) {
+                    sum = i == j ? 1.0 : 0.0;
+                } else if (i == j) {
+                    sum = alpha[i][i] + lambda * Math.max(alpha[i][i], TINY);
+                } else {
+                    sum = alpha[i][j];
+                }
+                for (int k = 0; k < j; k++) {
+                    sum -= cholesky[i][k] * cholesky[j][k];
+                }
+                if (i == j) {
+                    if (sum <= 0.0) {
+                        return false;
+                    }
+                    cholesky[i][i] = Math.sqrt(sum);
+                } else {
+                    cholesky[i][j] = sum / cholesky[j][j];
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            double sum = free[i] ? -gradient[i] : 0.0;
+            for (int k = 0; k < i; k++) {
+                sum -= cholesky[i][k] * dx[k];
+            }
+            dx[i] = sum / cholesky[i][i];
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            double sum = dx[i];
+            for (int k = i + 1; k < n; k++) {
+                sum -= cholesky[k][i] * dx[k];
+            }
+            dx[i] = sum / cholesky[i][i];
+        }
+        return true;
+    }
+
+    private void swapTrial() {
+        final double[] r = residuals;
+        residuals = trialResiduals;
+        trialResiduals = r;
+        final double[][] jac = jacobian;
+        jacobian = trialJacobian;
+        trialJacobian = jac;
+    }
+
+    private void ensureSize(int n, int m) {
+        if (xTrial.length != n || residuals.length != m) {
+            residuals = new double[m];
+            trialResiduals = new double[m];
+            jacobian = new double[m][n];
+            trialJacobian = new double[m][n];
+            xTrial = new double[n];
+            gradient = new double[n];
+            dx = new double[n];
+            alpha = new double[n][n];
+            cholesky = new double[n][n];
+            free = new boolean[n];
+        }
+    }
+
+    private static void clamp(double[] x, double[] lower, double[] upper, double[] result) {
+        for (int i = 0; i < x.length; i++) {
+            result[i] = Math.max(lower[i], Math.min(upper[i], x[i]));
+        }
+    }
+
+    private static double sumOfSquares(double[] values, int length) {
+        double sum = 0.0;
+        for (int k = 0; k < length; k++) {
+            sum += values[k] * values[k];
+        }
+        return sum;
+    }
+}
@@ -3,6 +3,7 @@ package org.esa.beam.math;
 /**
  * This class provides the 'linmin' implementation used within Powell minimisation.
  * (see Num. Recip., pp. 413)
+ * The work arrays are kept between calls, so an instance must not be used by several threads.
  *
  * @author Andreas Heckel (Swansea University), Olaf Danne
  */
@@ -11,8 +12,11 @@ class Linmin implements Function {
     private static final double TOL = 2.0e-4;
 
     private double fret;
-    private double[] pcom;
-    private double[] xicom;
+    private double[] pcom = new double[0];
+    private double[] xicom = new double[0];
+    private double[] xt = new double[0];
+    private final double[] bracket = new double[3];
+    private final double[] brent = new double[2];
 
     private MvFunction fun;
 
@@ -44,27 +48,20 @@ class Linmin implements Function {
      * @throws IllegalArgumentException Description of Exception
      */
     void linmin(double[] p, double xi[], MvFunction f) throws IllegalArgumentException {
-        int n = 0;
         if (p.length != xi.length) {
             throw new IllegalArgumentException("dimentions must agree");
         }
-        if (n != p.length) {
-            n = p.length;
+        final int n = p.length;
+        if (n != pcom.length) {
             pcom = new double[n];
             xicom = new double[n];
+            xt = new double[n];
         }
         fun = f;
-        for (int j = 0; j < n; j++) {
-            pcom[j] = p[j];
-            xicom[j] = xi[j];
-        }
-        double ax = 0.0;
-        double xx = 1.0;
-        double[] axbxcx = Mnbrak.compute(ax, xx, this);
-        ax = axbxcx[0];
-        xx = axbxcx[1];
-        double bx = axbxcx[2];
-        double[] brent = Brent.brent(ax, xx, bx, this, TOL);
+        System.arraycopy(p, 0, pcom, 0, n);
+        System.arraycopy(xi, 0, xicom, 0, n);
+        Mnbrak.compute(0.0, 1.0, this, bracket);
+        Brent.brent(bracket[0], bracket[1], bracket[2], this, TOL, brent);
         double xmin = brent[0];
         fret = brent[1];
         for (int j = 0; j < n; j++) {
@@ -74,7 +71,6 @@ class Linmin implements Function {
     }
 
     public double f(double x) {
-        double[] xt = new double[pcom.length];
         for (int j = 0; j < xt.length; j++) {
             xt[j] = pcom[j] + x * xicom[j];
         }
@@ -84,4 +80,4 @@ class Linmin implements Function {
     double getFret() {
         return fret;
     }
-}
\ No newline at end of file
+}
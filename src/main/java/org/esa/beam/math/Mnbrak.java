@@ -21,6 +21,20 @@ public class Mnbrak {
      * @return An array containing ax, bx, cx
      */
     public static double[] compute(double Ax, double Bx, Function fun) {
+        final double[] result = new double[3];
+        compute(Ax, Bx, fun, result);
+        return result;
+    }
+
+    /**
+     * Same as {@link #compute(double, double, Function)}, but writes ax, bx, cx into the given array.
+     *
+     * @param Ax     left initial point
+     * @param Bx     right initial point
+     * @param fun    the function
+     * @param result array of length 3 receiving ax, bx, cx
+     */
+    public static void compute(double Ax, double Bx, Function fun, double[] result) {
         double ax = Ax;
         double bx = Bx;
         double fa = fun.f(ax);
@@ -47,10 +61,12 @@ public class Mnbrak {
                 if (fu < fc) {
                     ax = bx;
                     bx = u;
-                    return new double[]{ax, bx, cx};
+                    setResult(ax, bx, cx, result);
+                    return;
                 } else if (fu > fb) {
                     cx = u;
-                    return new double[]{ax, bx, cx};
+                    setResult(ax, bx, cx, result);
+                    return;
                 }
                 u = cx + GOLD * (cx - bx);
                 fu = fun.f(u);
@@ -78,6 +94,12 @@ public class Mnbrak {
             fb = fc;
             fc = fu;
         }
-        return new double[]{ax, bx, cx};
+        setResult(ax, bx, cx, result);
+    }
+
+    private static void setResult(double ax, double bx, double cx, double[] result) {
+        result[0] = ax;
+        result[1] = bx;
+        result[2] = cx;
     }
 }
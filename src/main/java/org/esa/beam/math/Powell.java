@@ -24,16 +24,35 @@ public class Powell {
     public static double fmin(double[] p, double[][] xi, double ftol, MvFunction func)
             throws IllegalMonitorStateException,
             IllegalArgumentException {
+        return fmin(p, xi, ftol, func, new PowellWorkspace());
+    }
+
+    /**
+     * This method provides a minimisation of a function of n variables, using the work arrays of the given
+     * workspace instead of allocating new ones
+     *
+     * @param p         array of variables (has length n)
+     * @param xi        initial matrix
+     * @param ftol      fractional tolerance in function value
+     * @param func      function to be minimised
+     * @param workspace the work arrays, not used by other threads meanwhile
+     * @return the minimum
+     * @throws IllegalMonitorStateException Description of Exception
+     * @throws IllegalArgumentException     Description of Exception
+     */
+    public static double fmin(double[] p, double[][] xi, double ftol, MvFunction func, PowellWorkspace workspace)
+            throws IllegalMonitorStateException,
+            IllegalArgumentException {
 
-        Linmin linmin = new Linmin();
+        final Linmin linmin = workspace.getLinmin();
 
         if (p.length != xi.length || xi.length != xi[0].length) {
             throw new IllegalArgumentException("dimensions must agree");
         }
         final int n = p.length;
-        double[] pt = new double[n];
-        double[] ptt = new double[n];
-        double[] xit = new double[n];
+        final double[] pt = workspace.getPt(n);
+        final double[] ptt = workspace.getPtt(n);
+        final double[] xit = workspace.getXit(n);
 
         double fret = func.f(p);
 
@@ -56,6 +75,7 @@ public class Powell {
                 }
             }
             if (2.0 * Math.abs(fp - fret) <= ftol * (Math.abs(fp) + Math.abs(fret))) {
+                workspace.setNumIterations(iter);
                 return fret;
             }
             if (iter == ITMAX) {
@@ -71,7 +91,7 @@ public class Powell {
                 double t = 2.0 * (fp - 2.0 * fret + fptt) * (fp - fret - del) * (fp - fret - del) -
                         del * (fp - fptt) * (fp - fptt);
                 if (t < 0.0) {
-                    linmin = new Linmin(p, xit, func);
+                    linmin.linmin(p, xit, func);
                     fret = linmin.getFret();
                     for (int j = 0; j < n; j++) {
                         xi[j][ibig] = xi[j][n - 1];
@@ -0,0 +1,55 @@
+package org.esa.beam.math;
+
+/**
+ * This class holds the work arrays of a Powell minimisation (see {@link Powell}), so that they can be
+ * reused for many minimisations, e.g. one per cell. A workspace must not be used by several threads at the
+ * same time, and the minimised functions must not keep references to the points they are evaluated at.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class PowellWorkspace {
+
+    private final Linmin linmin = new Linmin();
+    private double[] pt = new double[0];
+    private double[] ptt = new double[0];
+    private double[] xit = new double[0];
+    private int numIterations;
+
+    double[] getPt(int n) {
+        ensureSize(n);
+        return pt;
+    }
+
+    double[] getPtt(int n) {
+        ensureSize(n);
+        return ptt;
+    }
+
+    double[] getXit(int n) {
+        ensureSize(n);
+        return xit;
+    }
+
+    Linmin getLinmin() {
+        return linmin;
+    }
+
+    void setNumIterations(int numIterations) {
+        this.numIterations = numIterations;
+    }
+
+    /**
+     * @return the number of iterations of the last minimisation using this workspace
+     */
+    public int getNumIterations() {
+        return numIterations;
+    }
+
+    private void ensureSize(int n) {
+        if (pt.length != n) {
+            pt = new double[n];
+            ptt = new double[n];
+            xit = new double[n];
+        }
+    }
+}
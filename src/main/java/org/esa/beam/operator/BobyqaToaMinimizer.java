@@ -0,0 +1,67 @@
+package org.esa.beam.operator;
+
+import org.apache.commons.math3.optim.InitialGuess;
+import org.apache.commons.math3.optim.MaxEval;
+import org.apache.commons.math3.optim.PointValuePair;
+import org.apache.commons.math3.optim.SimpleBounds;
+import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
+import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.BOBYQAOptimizer;
+
+/**
+ * Bound constrained minimisation of the TOA function with the derivative-free BOBYQA method of commons-math:
+ * abundances >= 0, visibility within its limits.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class BobyqaToaMinimizer implements ToaMinimizer {
+
+    private static final double INITIAL_RADIUS = 0.1;
+    private static final double STOPPING_RADIUS = 1.E-5;
+    private static final int MAX_EVALUATIONS = 20000;
+
+    private int numIterations;
+    private int numEvaluations;
+
+    @Override
+    public double minimize(double[] xVector, ToaMinimization toaMinimization,
+                           double[] lowerBounds, double[] upperBounds) {
+        final int n = xVector.length;
+        final ScaledToaFunction function = new ScaledToaFunction(toaMinimization, lowerBounds, upperBounds);
+        final double[] start = new double[n];
+        final double[] lower = new double[n];
+        final double[] upper = new double[n];
+        function.toScaled(xVector, start);
+        function.toScaled(lowerBounds, lower);
+        function.toScaled(upperBounds, upper);
+        for (int i = 0; i < n; i++) {
+            // BOBYQA needs room for its initial interpolation points, the function is flat beyond the bounds
+            upper[i] = Math.max(upper[i], lower[i] + 2.0 * INITIAL_RADIUS);
+            start[i] = Math.max(lower[i], Math.min(upper[i], start[i]));
+        }
+
+        final int numInterpolationPoints = 2 * n + 1;
+        final BOBYQAOptimizer optimizer = new BOBYQAOptimizer(numInterpolationPoints, INITIAL_RADIUS, STOPPING_RADIUS);
+        final PointValuePair result = optimizer.optimize(new MaxEval(MAX_EVALUATIONS),
+                                                         new ObjectiveFunction(function),
+                                                         GoalType.MINIMIZE,
+                                                         new InitialGuess(start),
+                                                         new SimpleBounds(lower, upper));
+        function.toUnscaled(result.getPoint(), xVector);
+        // BOBYQA does one evaluation per trust region iteration after the initial interpolation points
+        numIterations = Math.max(function.getNumEvaluations() - numInterpolationPoints, 0);
+        numEvaluations = function.getNumEvaluations() + 1;
+        // also provides the chi squares at the minimum
+        return toaMinimization.f(xVector);
+    }
+
+    @Override
+    public int getNumIterations() {
+        return numIterations;
+    }
+
+    @Override
+    public int getNumEvaluations() {
+        return numEvaluations;
+    }
+}
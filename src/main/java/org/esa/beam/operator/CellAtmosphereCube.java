@@ -0,0 +1,103 @@
+package org.esa.beam.operator;
+
+/**
+ * Container holding the radiative transfer terms of a cell on the cwv/vis/hsf grid of the atmospheric LUT.
+ * All terms are stored in one contiguous array in [parameter][cwv][vis][hsf][band] order, so that
+ * all bands at a grid node are adjacent.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class CellAtmosphereCube {
+
+    public static final int LPW = 0;
+    public static final int E0TW = 1;
+    public static final int EDIFTW = 2;
+    public static final int SAB = 3;
+    public static final int TDIRD = 4;
+    /**
+     * Slope of the 'etw' term as affine function of the pixel cos(SZA): etw = cosSza * ETW_COS_SZA + ETW_CONST
+     */
+    public static final int ETW_COS_SZA = 5;
+    /**
+     * Offset of the 'etw' term as affine function of the pixel cos(SZA): etw = cosSza * ETW_COS_SZA + ETW_CONST
+     */
+    public static final int ETW_CONST = 6;
+    public static final int NUM_PARAMS = 7;
+
+    private final int numBands;
+    private final int dimWv;
+    private final int dimVis;
+    private final int dimHsurf;
+    private final int hsfStride;
+    private final int visStride;
+    private final int wvStride;
+    private final int paramStride;
+    private final double[] data;
+
+    /**
+     * CellAtmosphereCube constructor, setting up the data array
+     *
+     * @param numBands - number of bands
+     * @param dimWv    - number of cwv grid nodes
+     * @param dimVis   - number of vis grid nodes
+     * @param dimHsurf - number of hsf grid nodes
+     */
+    public CellAtmosphereCube(int numBands, int dimWv, int dimVis, int dimHsurf) {
+        this.numBands = numBands;
+        this.dimWv = dimWv;
+        this.dimVis = dimVis;
+        this.dimHsurf = dimHsurf;
+        hsfStride = numBands;
+        visStride = dimHsurf * hsfStride;
+        wvStride = dimVis * visStride;
+        paramStride = dimWv * wvStride;
+        data = new double[NUM_PARAMS * paramStride];
+    }
+
+    public double get(int param, int bandId, int wvIndex, int visIndex, int hsfIndex) {
+        return data[getIndex(param, wvIndex, visIndex, hsfIndex) + bandId];
+    }
+
+    public void set(int param, int bandId, int wvIndex, int visIndex, int hsfIndex, double value) {
+        data[getIndex(param, wvIndex, visIndex, hsfIndex) + bandId] = value;
+    }
+
+    /**
+     * @param param    - the parameter (one of {@link #LPW}, {@link #E0TW}, {@link #EDIFTW}, {@link #SAB}, {@link #TDIRD})
+     * @param wvIndex  - index in the cwv grid
+     * @param visIndex - index in the vis grid
+     * @param hsfIndex - index in the hsf grid
+     * @return the index of the first band of the given grid node in {@link #getData()}
+     */
+    public int getIndex(int param, int wvIndex, int visIndex, int hsfIndex) {
+        return param * paramStride + wvIndex * wvStride + visIndex * visStride + hsfIndex * hsfStride;
+    }
+
+    public double[] getData() {
+        return data;
+    }
+
+    public int getNumBands() {
+        return numBands;
+    }
+
+    public int getDimWv() {
+        return dimWv;
+    }
+
+    public int getDimVis() {
+        return dimVis;
+    }
+
+    public int getDimHsurf() {
+        return dimHsurf;
+    }
+
+    public int getHsfStride() {
+        return hsfStride;
+    }
+
+    public int getVisStride() {
+        return visStride;
+    }
+}
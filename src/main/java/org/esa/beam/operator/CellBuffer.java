@@ -0,0 +1,95 @@
+package org.esa.beam.operator;
+
+import java.awt.Rectangle;
+
+/**
+ * Container holding the per-pixel input of a 30x30km cell: TOA radiances for all bands, elevation and cos(SZA).
+ * Each quantity is stored as one contiguous float32 plane in row-major order (index = y * width + x, with
+ * x, y relative to the cell rectangle), i.e. in the same order as the source tiles.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class CellBuffer {
+
+    private final Rectangle rectangle;
+    private final int width;
+    private final int height;
+    private final float[][] toa;
+    private final float[] hsurf;
+    private final float[] cosSza;
+
+    /**
+     * CellBuffer constructor, setting up the data planes
+     *
+     * @param rectangle - the cell rectangle
+     * @param numBands  - number of TOA bands (may be 0 if no TOA is needed)
+     */
+    public CellBuffer(Rectangle rectangle, int numBands) {
+        this.rectangle = new Rectangle(rectangle);
+        width = rectangle.width;
+        height = rectangle.height;
+        final int size = width * height;
+        toa = new float[numBands][size];
+        hsurf = new float[size];
+        cosSza = new float[size];
+    }
+
+    public Rectangle getRectangle() {
+        return new Rectangle(rectangle);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getNumBands() {
+        return toa.length;
+    }
+
+    /**
+     * @param cellX - x relative to the cell rectangle
+     * @param cellY - y relative to the cell rectangle
+     * @return the index of the pixel in the data planes
+     */
+    public int getIndex(int cellX, int cellY) {
+        return cellY * width + cellX;
+    }
+
+    /**
+     * @param bandId - the band
+     * @return the TOA plane of the band (not a copy)
+     */
+    public float[] getToa(int bandId) {
+        return toa[bandId];
+    }
+
+    /**
+     * @return the elevation plane in km (not a copy)
+     */
+    public float[] getHsurf() {
+        return hsurf;
+    }
+
+    /**
+     * @return the cos(SZA) plane (not a copy)
+     */
+    public float[] getCosSza() {
+        return cosSza;
+    }
+
+    public double getToa(int bandId, int cellX, int cellY) {
+        return toa[bandId][cellY * width + cellX];
+    }
+
+    public double getHsurf(int cellX, int cellY) {
+        return hsurf[cellY * width + cellX];
+    }
+
+    public double getCosSza(int cellX, int cellY) {
+        return cosSza[cellY * width + cellX];
+    }
+}
@@ -0,0 +1,95 @@
+package org.esa.beam.operator;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread-safe store of the results of the cells processed so far: the visibility, and the refinement solutions
+ * per vegetation endmember if the visibility was refined, used as start values of the neighbouring cells.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class CellResultStore {
+
+    private final int numCellsX;
+    private final int numCellsY;
+    private final boolean keepDirections;
+    private final AtomicReferenceArray<CellResult> results;
+
+    /**
+     * @param numCellsX      - number of cells in x direction
+     * @param numCellsY      - number of cells in y direction
+     * @param keepDirections - if false, the Powell directions of the solutions are not kept
+     */
+    public CellResultStore(int numCellsX, int numCellsY, boolean keepDirections) {
+        this.numCellsX = numCellsX;
+        this.numCellsY = numCellsY;
+        this.keepDirections = keepDirections;
+        results = new AtomicReferenceArray<CellResult>(numCellsX * numCellsY);
+    }
+
+    /**
+     * Stores the result of a cell.
+     *
+     * @param cellX      - cell x index
+     * @param cellY      - cell y index
+     * @param visibility - the visibility
+     * @param solutions  - the refinement solutions per vegetation endmember, or null if not refined
+     */
+    public void put(int cellX, int cellY, double visibility, RefinementSolution[] solutions) {
+        RefinementSolution[] storedSolutions = null;
+        if (solutions != null && isComplete(solutions)) {
+            storedSolutions = new RefinementSolution[solutions.length];
+            for (int i = 0; i < solutions.length; i++) {
+                storedSolutions[i] = keepDirections ? solutions[i] : solutions[i].withoutDirections();
+            }
+        }
+        results.set(cellY * numCellsX + cellX, new CellResult(visibility, storedSolutions));
+    }
+
+    /**
+     * @param cellX - cell x index
+     * @param cellY - cell y index
+     * @return the visibility of the cell, or NaN if not processed yet
+     */
+    public double getVisibility(int cellX, int cellY) {
+        final CellResult result = results.get(cellY * numCellsX + cellX);
+        return result != null ? result.visibility : Double.NaN;
+    }
+
+    /**
+     * @param cellX - cell x index
+     * @param cellY - cell y index
+     * @return the refinement solutions of the cell, or null if not processed yet or not refined
+     */
+    public RefinementSolution[] getSolutions(int cellX, int cellY) {
+        final CellResult result = getResult(cellX, cellY);
+        return result != null && result.solutions != null ? result.solutions.clone() : null;
+    }
+
+    private CellResult getResult(int cellX, int cellY) {
+        if (cellX < 0 || cellX >= numCellsX || cellY < 0 || cellY >= numCellsY) {
+            return null;
+        }
+        return results.get(cellY * numCellsX + cellX);
+    }
+
+    private static boolean isComplete(RefinementSolution[] solutions) {
+        for (RefinementSolution solution : solutions) {
+            if (solution == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class CellResult {
+
+        private final double visibility;
+        private final RefinementSolution[] solutions;
+
+        private CellResult(double visibility, RefinementSolution[] solutions) {
+            this.visibility = visibility;
+            this.solutions = solutions;
+        }
+    }
+}
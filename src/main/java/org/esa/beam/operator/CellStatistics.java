@@ -0,0 +1,96 @@
+package org.esa.beam.operator;
+
+import org.esa.beam.util.ClearPixelMask;
+
+import java.util.Arrays;
+
+/**
+ * Container holding the statistics of a 30x30km cell needed for the visibility retrieval and the AC part:
+ * the elevation and cos(SZA) means over the clear pixels, and the TOA minimum per band over all pixels.
+ * All values are computed in one sweep over the pixels of the cell.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class CellStatistics {
+
+    private final double hsurfMean;
+    private final double cosSzaMean;
+    private final double[] toaMin;
+
+    private CellStatistics(double hsurfMean, double cosSzaMean, double[] toaMin) {
+        this.hsurfMean = hsurfMean;
+        this.cosSzaMean = cosSzaMean;
+        this.toaMin = toaMin;
+    }
+
+    /**
+     * Computes the statistics of a cell.
+     *
+     * @param cellBuffer     - the cell input: TOA, elevation and cos(SZA)
+     * @param clearPixelMask - the clear pixel mask of the cell
+     * @return the cell statistics
+     */
+    public static CellStatistics compute(CellBuffer cellBuffer, ClearPixelMask clearPixelMask) {
+        final float[] hsurf = cellBuffer.getHsurf();
+        final float[] cosSza = cellBuffer.getCosSza();
+        final int numBands = cellBuffer.getNumBands();
+        final float[][] toa = new float[numBands][];
+        for (int bandId = 0; bandId < numBands; bandId++) {
+            toa[bandId] = cellBuffer.getToa(bandId);
+        }
+        final double[] toaMin = new double[numBands];
+        Arrays.fill(toaMin, Double.MAX_VALUE);
+
+        double hsurfSum = 0.0;
+        int hsurfCount = 0;
+        double cosSzaSum = 0.0;
+        int cosSzaCount = 0;
+        for (int i = 0; i < hsurf.length; i++) {
+            if (clearPixelMask.isClear(i)) {
+                final float hsurfValue = hsurf[i];
+                if (!Float.isNaN(hsurfValue)) {
+                    hsurfSum += hsurfValue;
+                    hsurfCount++;
+                }
+                final float cosSzaValue = cosSza[i];
+                if (!Float.isNaN(cosSzaValue)) {
+                    cosSzaSum += cosSzaValue;
+                    cosSzaCount++;
+                }
+            }
+            for (int bandId = 0; bandId < numBands; bandId++) {
+                // comparisons are false for NaN
+                final float toaValue = toa[bandId][i];
+                if (toaValue > 0.0 && toaValue < toaMin[bandId]) {
+                    toaMin[bandId] = toaValue;
+                }
+            }
+        }
+        return new CellStatistics(hsurfSum / hsurfCount, cosSzaSum / cosSzaCount, toaMin);
+    }
+
+    /**
+     * @return the elevation mean value (in km) over all clear pixels
+     */
+    public double getHsurfMean() {
+        return hsurfMean;
+    }
+
+    /**
+     * @return the cos(SZA) mean value over all clear pixels
+     */
+    public double getCosSzaMean() {
+        return cosSzaMean;
+    }
+
+    /**
+     * @return the TOA minimum values per band over all pixels with positive TOA
+     */
+    public double[] getToaMin() {
+        return toaMin.clone();
+    }
+
+    public double getToaMin(int bandId) {
+        return toaMin[bandId];
+    }
+}
@@ -0,0 +1,39 @@
+package org.esa.beam.operator;
+
+import org.esa.beam.ScapeMConstants;
+import org.esa.beam.math.LevenbergMarquardt;
+
+/**
+ * Bounded Levenberg-Marquardt minimisation of the TOA function, using its residuals and analytic Jacobian.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class LevenbergMarquardtToaMinimizer implements ToaMinimizer {
+
+    private final LevenbergMarquardt levenbergMarquardt;
+
+    /**
+     * @param levenbergMarquardt - the Levenberg-Marquardt minimiser, not used by other threads meanwhile
+     */
+    public LevenbergMarquardtToaMinimizer(LevenbergMarquardt levenbergMarquardt) {
+        this.levenbergMarquardt = levenbergMarquardt;
+    }
+
+    @Override
+    public double minimize(double[] xVector, ToaMinimization toaMinimization,
+                           double[] lowerBounds, double[] upperBounds) {
+        levenbergMarquardt.fmin(xVector, lowerBounds, upperBounds, ScapeMConstants.LM_FTOL, toaMinimization);
+        // also provides the chi squares at the minimum
+        return toaMinimization.f(xVector);
+    }
+
+    @Override
+    public int getNumIterations() {
+        return levenbergMarquardt.getNumIterations();
+    }
+
+    @Override
+    public int getNumEvaluations() {
+        return levenbergMarquardt.getNumEvaluations() + 1;
+    }
+}
@@ -0,0 +1,72 @@
+package org.esa.beam.operator;
+
+import org.apache.commons.math3.optim.InitialGuess;
+import org.apache.commons.math3.optim.MaxEval;
+import org.apache.commons.math3.optim.PointValuePair;
+import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
+import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.NelderMeadSimplex;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer;
+
+/**
+ * Nelder-Mead simplex minimisation of the TOA function with commons-math, as a reference for the other methods.
+ * The simplex method does not support bounds, so the points are projected onto them.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class NelderMeadToaMinimizer implements ToaMinimizer {
+
+    private static final double INITIAL_STEP = 0.1;
+    private static final double RELATIVE_TOLERANCE = 1.E-10;
+    private static final double ABSOLUTE_TOLERANCE = 1.E-14;
+    private static final int MAX_EVALUATIONS = 20000;
+    private static final int MAX_RESTARTS = 3;
+
+    private int numIterations;
+    private int numEvaluations;
+
+    @Override
+    public double minimize(double[] xVector, ToaMinimization toaMinimization,
+                           double[] lowerBounds, double[] upperBounds) {
+        final int n = xVector.length;
+        final ScaledToaFunction function = new ScaledToaFunction(toaMinimization, lowerBounds, upperBounds);
+        final double[] start = new double[n];
+        function.toScaled(xVector, start);
+
+        // coefficients adapted to the dimension (Gao and Han, 2012), the standard ones do poorly with 11 variables
+        final NelderMeadSimplex simplex = new NelderMeadSimplex(n, INITIAL_STEP, 1.0, 1.0 + 2.0 / n,
+                                                                0.75 - 0.5 / n, 1.0 - 1.0 / n);
+        // the simplex may collapse before reaching the minimum, so restart at the result until no improvement
+        final SimplexOptimizer optimizer = new SimplexOptimizer(RELATIVE_TOLERANCE, ABSOLUTE_TOLERANCE);
+        numIterations = 0;
+        double fmin = Double.MAX_VALUE;
+        for (int restart = 0; restart <= MAX_RESTARTS; restart++) {
+            final PointValuePair result = optimizer.optimize(new MaxEval(MAX_EVALUATIONS),
+                                                             new ObjectiveFunction(function),
+                                                             GoalType.MINIMIZE,
+                                                             new InitialGuess(start),
+                                                             simplex);
+            numIterations += optimizer.getIterations();
+            final boolean improved = result.getValue() < fmin * (1.0 - RELATIVE_TOLERANCE);
+            fmin = result.getValue();
+            System.arraycopy(result.getPoint(), 0, start, 0, n);
+            if (!improved) {
+                break;
+            }
+        }
+        function.toUnscaled(start, xVector);
+        numEvaluations = function.getNumEvaluations() + 1;
+        // also provides the chi squares at the minimum
+        return toaMinimization.f(xVector);
+    }
+
+    @Override
+    public int getNumIterations() {
+        return numIterations;
+    }
+
+    @Override
+    public int getNumEvaluations() {
+        return numEvaluations;
+    }
+}
@@ -0,0 +1,90 @@
+package org.esa.beam.operator;
+
+import org.esa.beam.ScapeMConstants;
+import org.esa.beam.math.MvFunction;
+import org.esa.beam.math.Powell;
+import org.esa.beam.math.PowellWorkspace;
+
+/**
+ * Powell minimisation of the TOA function, the original method of the visibility refinement. The bounds are not
+ * passed to Powell: outside of them, the TOA function provides a large value instead.
+ * The direction set starts with the unit vectors, or with the directions set from a previous solution, and is kept
+ * between the minimisations of one instance.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class PowellToaMinimizer implements ToaMinimizer {
+
+    private final PowellWorkspace workspace;
+    private final CountingFunction countingFunction;
+    private double[][] xi;
+
+    /**
+     * @param workspace - the Powell work arrays, not used by other threads meanwhile
+     */
+    public PowellToaMinimizer(PowellWorkspace workspace) {
+        this.workspace = workspace;
+        countingFunction = new CountingFunction();
+    }
+
+    @Override
+    public double minimize(double[] xVector, ToaMinimization toaMinimization,
+                           double[] lowerBounds, double[] upperBounds) {
+        final int n = xVector.length;
+        if (xi == null || xi.length != n) {
+            xi = new double[n][n];
+            for (int i = 0; i < n; i++) {
+                xi[i][i] = 1.0;
+            }
+        }
+        countingFunction.toaMinimization = toaMinimization;
+        countingFunction.numEvaluations = 0;
+        return Powell.fmin(xVector, xi, ScapeMConstants.POWELL_FTOL, countingFunction, workspace);
+    }
+
+    /**
+     * Sets the directions the next minimisation starts with, e.g. the final directions of a neighbouring cell.
+     *
+     * @param directions - the directions, copied
+     */
+    public void setDirections(double[][] directions) {
+        xi = copy(directions);
+    }
+
+    /**
+     * @return the current directions, a copy, or null before the first minimisation
+     */
+    public double[][] getDirections() {
+        return xi != null ? copy(xi) : null;
+    }
+
+    @Override
+    public int getNumIterations() {
+        return workspace.getNumIterations();
+    }
+
+    @Override
+    public int getNumEvaluations() {
+        return countingFunction.numEvaluations;
+    }
+
+    private static double[][] copy(double[][] matrix) {
+        final double[][] copy = new double[matrix.length][];
+        for (int i = 0; i < matrix.length; i++) {
+            copy[i] = matrix[i].clone();
+        }
+        return copy;
+    }
+
+    private static class CountingFunction implements MvFunction {
+
+        private ToaMinimization toaMinimization;
+        private int numEvaluations;
+
+        @Override
+        public double f(double[] x) {
+            numEvaluations++;
+            return toaMinimization.f(x);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.esa.beam.operator;
+
+/**
+ * Converged solution of one TOA minimisation of the visibility refinement: the abundances and the visibility,
+ * the normalised minimum, and the final Powell directions if Powell was used. Solutions of a cell serve as warm
+ * start of the refinement of its neighbours (see {@link CellResultStore}). Instances are not modified.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class RefinementSolution {
+
+    private final double[] xVector;
+    private final double fmin;
+    private final double[][] directions;
+
+    /**
+     * @param xVector    - the abundances and the visibility at the minimum
+     * @param fmin       - the minimum, normalised by the number of reference pixels used
+     * @param directions - the final Powell directions, or null
+     */
+    public RefinementSolution(double[] xVector, double fmin, double[][] directions) {
+        this.xVector = xVector.clone();
+        this.fmin = fmin;
+        this.directions = directions != null ? copy(directions) : null;
+    }
+
+    /**
+     * @return the visibility
+     */
+    public double getVisibility() {
+        return xVector[xVector.length - 1];
+    }
+
+    /**
+     * @return the abundances and the visibility, a copy
+     */
+    public double[] getXVector() {
+        return xVector.clone();
+    }
+
+    /**
+     * @return the minimum, normalised by the number of reference pixels used
+     */
+    public double getFmin() {
+        return fmin;
+    }
+
+    /**
+     * @return the final Powell directions, a copy, or null
+     */
+    public double[][] getDirections() {
+        return directions != null ? copy(directions) : null;
+    }
+
+    /**
+     * @return this solution without the Powell directions
+     */
+    public RefinementSolution withoutDirections() {
+        return directions != null ? new RefinementSolution(xVector, fmin, null) : this;
+    }
+
+    private static double[][] copy(double[][] matrix) {
+        final double[][] copy = new double[matrix.length][];
+        for (int i = 0; i < matrix.length; i++) {
+            copy[i] = matrix[i].clone();
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,74 @@
+package org.esa.beam.operator;
+
+import org.apache.commons.math3.analysis.MultivariateFunction;
+
+/**
+ * The TOA minimization function for the commons-math optimisers. The visibility is scaled to the order of the
+ * abundances, as these optimisers use one step size for all variables. Points are projected onto the bounds
+ * before evaluation, so the optimisers never see the large 'invalid' value of the TOA function. The distance to
+ * the bounds is added as a penalty, so that the function is not flat outside of them.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+class ScaledToaFunction implements MultivariateFunction {
+
+    // visibility in units of VIS_SCALE km
+    private static final double VIS_SCALE = 10.0;
+    // per scaled unit outside the bounds
+    private static final double BOUND_PENALTY = 1.0;
+
+    private final ToaMinimization toaMinimization;
+    private final double[] lowerBounds;
+    private final double[] upperBounds;
+    private final double[] scale;
+    private final double[] x;
+    private int numEvaluations;
+
+    ScaledToaFunction(ToaMinimization toaMinimization, double[] lowerBounds, double[] upperBounds) {
+        this.toaMinimization = toaMinimization;
+        this.lowerBounds = lowerBounds;
+        this.upperBounds = upperBounds;
+        final int n = lowerBounds.length;
+        scale = new double[n];
+        for (int i = 0; i < n - 1; i++) {
+            scale[i] = 1.0;
+        }
+        scale[n - 1] = VIS_SCALE;
+        x = new double[n];
+    }
+
+    @Override
+    public double value(double[] point) {
+        numEvaluations++;
+        toUnscaled(point, x);
+        double distance = 0.0;
+        for (int i = 0; i < x.length; i++) {
+            distance += Math.abs(point[i] - x[i] / scale[i]);
+        }
+        return toaMinimization.f(x) + BOUND_PENALTY * distance;
+    }
+
+    /**
+     * @param x     - the abundances and the visibility
+     * @param point - array receiving the scaled variables
+     */
+    void toScaled(double[] x, double[] point) {
+        for (int i = 0; i < x.length; i++) {
+            point[i] = x[i] / scale[i];
+        }
+    }
+
+    /**
+     * @param point - the scaled variables
+     * @param x     - array receiving the abundances and the visibility, within the bounds
+     */
+    void toUnscaled(double[] point, double[] x) {
+        for (int i = 0; i < x.length; i++) {
+            x[i] = Math.max(lowerBounds[i], Math.min(upperBounds[i], point[i] * scale[i]));
+        }
+    }
+
+    int getNumEvaluations() {
+        return numEvaluations;
+    }
+}
@@ -2,16 +2,14 @@ package org.esa.beam.operator;
 
 
 import Stats.LinFit;
-import org.apache.commons.math3.analysis.solvers.BrentSolver;
-import org.apache.commons.math3.exception.NoBracketingException;
 import org.esa.beam.ScapeMConstants;
 import org.esa.beam.framework.datamodel.GeoCoding;
 import org.esa.beam.framework.datamodel.GeoPos;
 import org.esa.beam.framework.datamodel.PixelPos;
 import org.esa.beam.framework.dataop.dem.ElevationModel;
+import org.esa.beam.framework.gpf.OperatorException;
 import org.esa.beam.framework.gpf.Tile;
-import org.esa.beam.io.LutAccess;
-import org.esa.beam.math.Powell;
+import org.esa.beam.io.AtmParamSlice;
 import org.esa.beam.util.*;
 import org.esa.beam.util.math.MathUtils;
 
@@ -19,6 +17,7 @@ import java.awt.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * Class representing SCAPE-M algorithm
@@ -30,276 +29,156 @@ public class ScapeMAlgorithm {
     /**
      * Determines if cell is regarded as 'clear land' : > 35% must not be water or cloud
      *
-     * @param rect               - cell rectangle
-     * @param clearPixelStrategy - clearPixelStrategy
+     * @param clearPixelMask - the clear pixel mask of the cell (mask_land_all !!)
+     * @param percentage     - the minimum fraction of clear pixels
      * @return boolean - cell is clear land or not
      */
-    static boolean isCellClearLand(Rectangle rect,
-                                   ClearPixelStrategy clearPixelStrategy,
+    static boolean isCellClearLand(ClearPixelMask clearPixelMask,
                                    double percentage) {
-        int countClearLand = 0;
-        for (int y = rect.y; y < rect.y + rect.height; y++) {
-            for (int x = rect.x; x < rect.x + rect.width; x++) {
-                if (clearPixelStrategy.isValid(x, y)) {   // mask_land_all !!
-                    countClearLand++;
-                }
-            }
-        }
-        return countClearLand / (rect.getWidth() * rect.getHeight()) > percentage;
+        return clearPixelMask.getClearFraction() > percentage;
     }
 
     /**
-     * Returns the elevation mean value (in km) over all land pixels in a 30x30km cell
+     * Sets the elevation array in a 30x30km cell
      *
-     * @param hSurfCell          - hsurf single values
-     * @param clearPixelStrategy - strategy how clear pixels are determined
-     * @return double - the cell mean value
+     * @param cellBuffer - the cell input to fill
+     * @param geoCoding  - the geo coding
+     * @param demTile    - the DEM tile
+     * @param scapeMLut  - the atmospheric look-up table
      */
-    static double getHsurfMeanCell(double[][] hSurfCell,
-                                   Rectangle rectangle,
-                                   ClearPixelStrategy clearPixelStrategy) {
-
-        double hsurfMean = 0.0;
-        int hsurfCount = 0;
-        for (int y = 0; y < hSurfCell[0].length; y++) {
-            for (int x = 0; x < hSurfCell.length; x++) {
-                if (!(Double.isNaN(hSurfCell[x][y]))) {
-                    if (clearPixelStrategy.isValid(rectangle.x + x, rectangle.y + y)) {
-                        hsurfMean += hSurfCell[x][y];
-                        hsurfCount++;
-                    }
-                }
-            }
+    static void fillHsurfCell(CellBuffer cellBuffer,
+                              GeoCoding geoCoding,
+                              Tile demTile,
+                              ScapeMLut scapeMLut) {
+
+        final Rectangle rect = cellBuffer.getRectangle();
+        final float[] hSurf = cellBuffer.getHsurf();
+        if (!geoCoding.canGetGeoPos()) {
+            Arrays.fill(hSurf, (float) scapeMLut.getHsfMin());
+            return;
         }
-
-        return hsurfMean / hsurfCount;    // km
-    }
-
-    /**
-     * Returns the elevation array in a 30x30km cell
-     *
-     * @param rect      - the tile rectangle
-     * @param geoCoding - the geo coding
-     * @param demTile   - the DEM tile
-     * @param scapeMLut - the atmospheric look-up table
-     * @return double[][] - the elevation array
-     */
-    static double[][] getHsurfArrayCell(Rectangle rect,
-                                        GeoCoding geoCoding,
-                                        Tile demTile,
-                                        ScapeMLut scapeMLut) {
-
-        double[][] hSurf = new double[rect.width][rect.height];
-        for (int y = rect.y; y < rect.y + rect.height; y++) {
-            for (int x = rect.x; x < rect.x + rect.width; x++) {
-                if (geoCoding.canGetGeoPos()) {
-                    double demValue = demTile.getSampleDouble(x, y);
-                    hSurf[x - rect.x][y - rect.y] = Math.max(scapeMLut.getHsfMin(), 0.001 * demValue);
-                } else {
-                    hSurf[x - rect.x][y - rect.y] = scapeMLut.getHsfMin();
-                }
-                hSurf[x - rect.x][y - rect.y] =
-                        Math.max(scapeMLut.getHsfMin(), Math.min(scapeMLut.getHsfMax(), hSurf[x - rect.x][y - rect.y]));
-            }
+        final double[] demValues = new double[hSurf.length];
+        TileAccess.readSamples(demTile, rect, demValues);
+        for (int i = 0; i < hSurf.length; i++) {
+            final double hSurfValue = Math.max(scapeMLut.getHsfMin(), 0.001 * demValues[i]);
+            hSurf[i] = (float) Math.max(scapeMLut.getHsfMin(), Math.min(scapeMLut.getHsfMax(), hSurfValue));
         }
-        return hSurf;
     }
 
     /**
-     * Returns the elevation array in a 30x30km cell
+     * Sets the elevation array in a 30x30km cell
      *
-     * @param rect           - the tile rectangle
+     * @param cellBuffer     - the cell input to fill
      * @param geoCoding      - the geo coding
      * @param elevationModel - the elevation model
      * @param scapeMLut      - the atmospheric look-up table
-     * @return double[][] - the elevation array
      */
-    static double[][] getHsurfArrayCell(Rectangle rect,
-                                        GeoCoding geoCoding,
-                                        ElevationModel elevationModel,
-                                        ScapeMLut scapeMLut) {
-
-        double[][] hSurf = new double[rect.width][rect.height];
+    static void fillHsurfCell(CellBuffer cellBuffer,
+                              GeoCoding geoCoding,
+                              ElevationModel elevationModel,
+                              ScapeMLut scapeMLut) {
+
+        final Rectangle rect = cellBuffer.getRectangle();
+        final float[] hSurf = cellBuffer.getHsurf();
+        int index = 0;
         for (int y = rect.y; y < rect.y + rect.height; y++) {
             for (int x = rect.x; x < rect.x + rect.width; x++) {
+                double hSurfValue;
                 GeoPos geoPos;
                 if (geoCoding.canGetGeoPos()) {
                     geoPos = geoCoding.getGeoPos(new PixelPos(x, y), null);
                     try {
-                        hSurf[x - rect.x][y - rect.y] = 0.001 * elevationModel.getElevation(geoPos);
+                        hSurfValue = 0.001 * elevationModel.getElevation(geoPos);
                     } catch (Exception e) {
-                        hSurf[x - rect.x][y - rect.y] = scapeMLut.getHsfMin();
+                        hSurfValue = scapeMLut.getHsfMin();
                     }
                 } else {
-                    hSurf[x - rect.x][y - rect.y] = scapeMLut.getHsfMin();
-                }
-                hSurf[x - rect.x][y - rect.y] =
-                        Math.max(scapeMLut.getHsfMin(), Math.min(scapeMLut.getHsfMax(), hSurf[x - rect.x][y - rect.y]));
-            }
-        }
-        return hSurf;
-    }
-
-    /**
-     * Returns the cos(SZA) mean value over all land pixels in a 30x30km cell
-     *
-     * @param cosSzaCell         - hsurf single values
-     * @param clearPixelStrategy - strategy how clear pixels are determined
-     * @return double - the cell mean value
-     */
-    static double getCosSzaMeanCell(double[][] cosSzaCell,
-                                    Rectangle rect,
-                                    ClearPixelStrategy clearPixelStrategy) {
-
-        double cosSzaMean = 0.0;
-        int cosSzaCount = 0;
-        for (int y = 0; y < cosSzaCell[0].length; y++) {
-            for (int x = 0; x < cosSzaCell.length; x++) {
-                if (!(Double.isNaN(cosSzaCell[x][y]))) {
-                    if (clearPixelStrategy.isValid(rect.x + x, rect.y + y)) {
-                        cosSzaMean += cosSzaCell[x][y];
-                        cosSzaCount++;
-                    }
+                    hSurfValue = scapeMLut.getHsfMin();
                 }
+                hSurf[index++] = (float) Math.max(scapeMLut.getHsfMin(), Math.min(scapeMLut.getHsfMax(), hSurfValue));
             }
         }
-
-        return cosSzaMean / cosSzaCount;
-    }
-
-    /**
-     * Returns the cos(SZA) array in a 30x30km cell
-     *
-     * @param rect - the tile rectangle
-     * @return double[][] - the cos(SZA) array
-     */
-    static double[][] getCosSzaArrayCell(Rectangle rect,
-                                         Tile szaTile) {
-
-        double[][] cosSza = new double[rect.width][rect.height];
-        for (int y = rect.y; y < rect.y + rect.height; y++) {
-            for (int x = rect.x; x < rect.x + rect.width; x++) {
-                final double sza = szaTile.getSampleDouble(x, y);
-                cosSza[x - rect.x][y - rect.y] = Math.cos(sza * MathUtils.DTOR);
-            }
-        }
-
-        return cosSza;
     }
 
     /**
-     * Returns the TOA minimum value in a 30x30km cell
+     * Sets the cos(SZA) array in a 30x30km cell
      *
-     * @param toaArrayCell - the TOA array
-     * @return double - the cell minimum value
+     * @param cellBuffer - the cell input to fill
+     * @param szaTile    - the SZA tile
      */
-    static double getToaMinCell(double[][] toaArrayCell) {
-        double toaMin = Double.MAX_VALUE;
-        for (int y = 0; y < toaArrayCell[0].length; y++) {
-            for (int x = 0; x < toaArrayCell.length; x++) {
-                if (!(Double.isNaN(toaArrayCell[x][y])) && toaArrayCell[x][y] > 0.0) {
-                    if (toaArrayCell[x][y] < toaMin) {
-                        toaMin = toaArrayCell[x][y];
-                    }
-                }
-            }
+    static void fillCosSzaCell(CellBuffer cellBuffer,
+                               Tile szaTile) {
+
+        final float[] cosSza = cellBuffer.getCosSza();
+        final double[] sza = new double[cosSza.length];
+        TileAccess.readSamples(szaTile, cellBuffer.getRectangle(), sza);
+        for (int i = 0; i < cosSza.length; i++) {
+            cosSza[i] = (float) Math.cos(sza[i] * MathUtils.DTOR);
         }
-        return toaMin;
     }
 
     /**
-     * Returns the TOA array in a 30x30km cell
+     * Sets the TOA array of a band in a 30x30km cell
      *
+     * @param cellBuffer   - the cell input to fill
+     * @param bandId       - the band
      * @param radianceTile - the input radiances
-     * @param rect         - the tile rectangle
      * @param doy          - the day of year
-     * @return double[][] - the TOA array
      */
-    static double[][] getToaArrayCell(Tile radianceTile,
-                                      Rectangle rect,
-                                      int doy) {
+    static void fillToaCell(CellBuffer cellBuffer,
+                            int bandId,
+                            Tile radianceTile,
+                            int doy) {
 
-        double[][] toa = new double[rect.width][rect.height];
         double varSol = Varsol.getVarSol(doy);
         final double solFactor = varSol * varSol * 1.E-4;
-
-        for (int y = rect.y; y < rect.y + rect.height; y++) {
-            for (int x = rect.x; x < rect.x + rect.width; x++) {
-                toa[x - rect.x][y - rect.y] = radianceTile.getSampleDouble(x, y) * solFactor;
-            }
-        }
-        return toa;
+        TileAccess.readSamples(radianceTile, cellBuffer.getRectangle(), solFactor, cellBuffer.getToa(bandId));
     }
 
     /**
      * gets the visibility for a 30x30km cell
      *
-     * @param toaArrayCell         - toa refl single values
-     * @param toaMinCell           - toa min cell value
+     * @param cellBuffer           - the cell input: toa refl, hsurf and cosSza single values
+     * @param cellStatistics       - toa min, hsurf mean and cosSza mean cell values
      * @param vza                  - vza
      * @param sza                  - sza
      * @param raa                  - raa
-     * @param hsurfArrayCell       - hsurf single values
-     * @param hsurfMeanCell        - hsurf mean cell value
-     * @param cosSzaArrayCell      - cosSza singe values
-     * @param cosSzaMeanCell       - cosSza mean cell value
      * @param cellIsClear45Percent - true if cell is > 45% clea land
+     * @param refinementMethod     - minimisation method of the visibility refinement, one of the
+     *                               ScapeMConstants.VIS_REFINEMENT_* values
+     * @param limRefSets           - maximum number of reference pixel sets used in the visibility refinement
+     * @param warmStarts           - refinement solutions of a neighbouring cell per vegetation endmember as start of
+     *                               the visibility refinement, or null for a cold start
+     * @param cellSolutions        - filled with the refinement solutions of the first reference set per vegetation
+     *                               endmember if the visibility is refined, or null
      * @return double - the visibility
      */
-    static double getCellVisibility(double[][][] toaArrayCell,
-                                    double[] toaMinCell, double vza, double sza, double raa,
-                                    double[][] hsurfArrayCell,
-                                    double hsurfMeanCell,
-                                    double[][] cosSzaArrayCell, // mus_il_sub
-                                    double cosSzaMeanCell, // mus_il
+    static double getCellVisibility(CellBuffer cellBuffer, // toa, hsurf, mus_il_sub
+                                    CellStatistics cellStatistics,
+                                    double vza, double sza, double raa,
                                     boolean cellIsClear45Percent,
+                                    String refinementMethod,
+                                    int limRefSets,
+                                    RefinementSolution[] warmStarts,
+                                    RefinementSolution[] cellSolutions,
                                     ScapeMLut scapeMLut) {
 
-        final int nVis = scapeMLut.getVisArrayLUT().length;
-        final double[] step = {1.0, 0.1};
+        final double hsurfMeanCell = cellStatistics.getHsurfMean();
+        final double cosSzaMeanCell = cellStatistics.getCosSzaMean(); // mus_il
+
         final double wvInit = 2.0;
 
-        double vis = scapeMLut.getVisMin() - step[0];
-        double[][] fInt;
-        for (int i = 0; i <= 1; i++) {
-            if (i == 1) {
-                vis = Math.max(vis - step[0], scapeMLut.getVisMin());
-            }
-            boolean repeat = true;
-            while (((vis + step[i]) < scapeMLut.getVisMax()) && repeat) {
-                vis += step[i];
-                fInt = LutAccess.interpolAtmParamLut(scapeMLut.getAtmParamLut(), vza, sza, raa, hsurfMeanCell, vis, wvInit);
-                repeat = false;
-                for (int j = 0; j < nVis; j++) {
-                    if (toaMinCell[j] <= fInt[j][0]) {
-                        repeat = true;
-                    }
-                }
-            }
-        }
+        final AtmParamSlice atmParamSlice = scapeMLut.createGeometrySlice(vza, sza, raa);
 
-        double visVal = vis - step[1];
+        double visVal = getCoarseVisibility(atmParamSlice, cellStatistics, wvInit, scapeMLut);
 
         if (cellIsClear45Percent) {
-            double[][] refPixelsBand0 =
-                    extractRefPixels(0, hsurfArrayCell, hsurfMeanCell, cosSzaArrayCell, cosSzaMeanCell, toaArrayCell);
-            if (refPixelsBand0 != null && refPixelsBand0.length > 0) {
-                double[][][] refPixels = new double[ScapeMConstants.L1_BAND_NUM][refPixelsBand0.length][refPixelsBand0[0].length];
-                refPixels[0] = refPixelsBand0;
-
-                boolean invalid = false;
-                for (int bandId = 1; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-                    refPixels[bandId] =
-                            extractRefPixels(bandId, hsurfArrayCell, hsurfMeanCell, cosSzaArrayCell, cosSzaMeanCell, toaArrayCell);
-                    if (refPixels[bandId] == null && refPixels[bandId].length > 0) {
-                        invalid = true; // we want valid pixels in ALL bands
-                        break;
-                    }
-                }
-                if (!invalid) {
-                    visVal = computeRefinedVisibility(visVal, refPixels, vza, sza, raa, hsurfMeanCell, wvInit,
-                                                      cosSzaMeanCell, scapeMLut);
-                }
+            final int[][] refPixelIndices = selectRefPixelIndices(cellBuffer, hsurfMeanCell, cosSzaMeanCell);
+            if (refPixelIndices != null && refPixelIndices.length > 0) {
+                final double[][][] refPixels = extractRefPixels(cellBuffer, refPixelIndices);
+                visVal = computeRefinedVisibility(visVal, refPixels, atmParamSlice, hsurfMeanCell, wvInit,
+                                                  cosSzaMeanCell, refinementMethod, limRefSets,
+                                                  warmStarts, cellSolutions, scapeMLut);
             } else {
                 // nothing to do - keep visVal as it was before
             }
@@ -313,85 +192,205 @@ public class ScapeMAlgorithm {
     }
 
     /**
-     * for given bandId, gives TOA for reference pixels selected from NDVI criteria
+     * gets the coarse visibility of a cell: the visibility on a 0.1km grid just below the lowest one for which the
+     * path radiance is below the TOA minimum in all bands. The grid is searched first in 1km, then in 0.1km steps.
+     * If the path radiance decreases with the visibility at the cell height, each step is found by bisection
+     * instead of walking the grid, otherwise the grid is walked as in the IDL breadboard.
      *
-     * @param bandId          - band ID
-     * @param hsurfArrayCell  - hsurf single values
-     * @param hsurfMeanCell   - hsurf mean cell value
-     * @param cosSzaArrayCell - cosSza single values
-     * @param cosSzaMeanCell  - cosSza mean cell values
-     * @param toaArrayCell    - toa single values
-     * @return double[][]     - the reference pixels, refPixels = double[selectedPixels][NUM_REF_PIXELS]
+     * @param atmParamSlice  - the LUT for the cell geometry
+     * @param cellStatistics - toa min and hsurf mean cell values
+     * @param wv             - the water vapour
+     * @param scapeMLut      - the atmospheric look-up table
+     * @return double - the visibility
      */
-    static double[][] extractRefPixels(int bandId, double[][] hsurfArrayCell, double hsurfMeanCell,
-                                       double[][] cosSzaArrayCell, double cosSzaMeanCell, double[][][] toaArrayCell) {
+    static double getCoarseVisibility(AtmParamSlice atmParamSlice, CellStatistics cellStatistics,
+                                      double wv, ScapeMLut scapeMLut) {
+        final double[] step = {1.0, 0.1};
+        final boolean bisect = isPathRadianceDecreasing(atmParamSlice, cellStatistics.getHsurfMean(), wv, scapeMLut);
 
-        final int cellWidth = toaArrayCell[0].length;
-        final int cellHeight = toaArrayCell[0][0].length;
+        double vis = scapeMLut.getVisMin() - step[0];
+        for (int i = 0; i <= 1; i++) {
+            if (i == 1) {
+                vis = Math.max(vis - step[0], scapeMLut.getVisMin());
+            }
+            vis = searchVisibilityStep(atmParamSlice, cellStatistics, wv, vis, step[i], bisect, scapeMLut);
+        }
 
-        final double[] hsurfLim = new double[]{0.8 * hsurfMeanCell, 1.2 * hsurfMeanCell};
-        final double[] cosSzaLim = new double[]{0.9 * cosSzaMeanCell, 1.1 * cosSzaMeanCell};
+        return vis - step[1];
+    }
 
-        double[][] ndvi = new double[cellWidth][cellHeight];
-        List<CellSample> ndviHighList = new ArrayList<CellSample>();
-        List<CellSample> ndviMediumList = new ArrayList<CellSample>();
-        List<CellSample> ndviLowList = new ArrayList<CellSample>();
-        for (int j = 0; j < cellHeight; j++) {
-            for (int i = 0; i < cellWidth; i++) {
-                final double toa7 = toaArrayCell[7][i][j] / ScapeMConstants.solIrr7;
-                final double toa9 = toaArrayCell[9][i][j] / ScapeMConstants.solIrr9;
-                ndvi[i][j] = (toa9 - toa7) / (toa9 + toa7);
-                if (hsurfArrayCell[i][j] > hsurfLim[0] && hsurfArrayCell[i][j] < hsurfLim[1] &&
-                        cosSzaArrayCell[i][j] > cosSzaLim[0] && cosSzaArrayCell[i][j] < cosSzaLim[1]) {
-                    if (ndvi[i][j] >= 0.4 && ndvi[i][j] < 0.9) {
-                        ndviHighList.add(new CellSample(i, j, ndvi[i][j]));
-                    } else if (ndvi[i][j] >= 0.15 && ndvi[i][j] < 0.4) {
-                        ndviMediumList.add(new CellSample(i, j, ndvi[i][j]));
-                    } else if (ndvi[i][j] >= 0.09 && ndvi[i][j] < 0.15) {
-                        ndviLowList.add(new CellSample(i, j, ndvi[i][j]));
-                    }
+    /**
+     * Returns the first visibility of the grid start + step, start + 2 * step, ... (below visMax) for which the
+     * path radiance is below the TOA minimum in all bands, or the last grid visibility if there is none.
+     * The grid values are accumulated step by step, so that they are the same as for a linear walk.
+     */
+    private static double searchVisibilityStep(AtmParamSlice atmParamSlice, CellStatistics cellStatistics,
+                                               double wv, double start, double step, boolean bisect,
+                                               ScapeMLut scapeMLut) {
+        int numVis = 0;
+        for (double vis = start; vis + step < scapeMLut.getVisMax(); vis += step) {
+            numVis++;
+        }
+        if (numVis == 0) {
+            return start;
+        }
+        final double[] visGrid = new double[numVis];
+        double vis = start;
+        for (int k = 0; k < numVis; k++) {
+            vis += step;
+            visGrid[k] = vis;
+        }
+
+        if (!bisect) {
+            for (int k = 0; k < numVis - 1; k++) {
+                if (!isPathRadianceAboveToaMin(atmParamSlice, cellStatistics, wv, visGrid[k], scapeMLut)) {
+                    return visGrid[k];
                 }
             }
+            return visGrid[numVis - 1];
+        }
+
+        // path radiance too high for all grid indices <= lower, low enough for all indices >= upper
+        int lower = -1;
+        int upper = numVis;
+        while (upper - lower > 1) {
+            final int k = (lower + upper) >>> 1;
+            if (isPathRadianceAboveToaMin(atmParamSlice, cellStatistics, wv, visGrid[k], scapeMLut)) {
+                lower = k;
+            } else {
+                upper = k;
+            }
         }
+        return visGrid[Math.min(upper, numVis - 1)];
+    }
 
-        // sort NDVIs...
-        CellSampleComparator comparator = new CellSampleComparator(true);
-        CellSample[] ndviHighSamples = ndviHighList.toArray(new CellSample[ndviHighList.size()]);
-        Arrays.sort(ndviHighSamples, comparator);
-        CellSample[] ndviMediumSamples = ndviMediumList.toArray(new CellSample[ndviMediumList.size()]);
-        Arrays.sort(ndviMediumSamples, comparator);
-        CellSample[] ndviLowSamples = ndviLowList.toArray(new CellSample[ndviLowList.size()]);
-        Arrays.sort(ndviLowSamples, comparator);
+    // true if the path radiance of the checked bands does not increase with the visibility. The LUT is linear in
+    // the visibility between its nodes, so checking the nodes is sufficient.
+    private static boolean isPathRadianceDecreasing(AtmParamSlice atmParamSlice, double hsurf, double wv,
+                                                    ScapeMLut scapeMLut) {
+        final double[] visArrayLUT = scapeMLut.getVisArrayLUT();
+        final int nVis = visArrayLUT.length;
+        for (int j = 0; j < nVis; j++) {
+            double previous = atmParamSlice.interpolate(hsurf, visArrayLUT[0], wv, j, 0);
+            for (int i = 1; i < nVis; i++) {
+                final double current = atmParamSlice.interpolate(hsurf, visArrayLUT[i], wv, j, 0);
+                if (current > previous) {
+                    return false;
+                }
+                previous = current;
+            }
+        }
+        return true;
+    }
 
-        final int nLim = Math.min(ndviHighSamples.length / 2, ndviMediumSamples.length / 3);
-        double[][] refPixels = new double[nLim][ScapeMConstants.NUM_REF_PIXELS];
+    private static boolean isPathRadianceAboveToaMin(AtmParamSlice atmParamSlice, CellStatistics cellStatistics,
+                                                     double wv, double vis, ScapeMLut scapeMLut) {
+        final double hsurfMeanCell = cellStatistics.getHsurfMean();
+        final int nVis = scapeMLut.getVisArrayLUT().length;
+        for (int j = 0; j < nVis; j++) {
+            if (cellStatistics.getToaMin(j) <= atmParamSlice.interpolate(hsurfMeanCell, vis, wv, j, 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        if (ndviMediumSamples.length + 2 >= ScapeMConstants.NUM_REF_PIXELS) {
-            //                valid_flg = 1
+    /**
+     * selects the reference pixels of a cell from NDVI criteria. The selection is the same for all bands.
+     *
+     * @param cellBuffer      - the cell input: toa, hsurf and cosSza single values
+     * @param hsurfMeanCell   - hsurf mean cell value
+     * @param cosSzaMeanCell  - cosSza mean cell values
+     * @return int[][]        - the cell indices of the reference pixels, int[selectedPixels][NUM_REF_PIXELS],
+     *                          or null if there are not enough pixels with medium NDVI
+     */
+    static int[][] selectRefPixelIndices(CellBuffer cellBuffer, double hsurfMeanCell, double cosSzaMeanCell) {
 
-            for (int i = 0; i < nLim; i++) {
-                refPixels[i][0] =
-                        toaArrayCell[bandId][ndviHighSamples[2 * i].getCellXIndex()][ndviHighSamples[2 * i].getCellYIndex()];
-                refPixels[i][1] =
-                        toaArrayCell[bandId][ndviHighSamples[2 * i + 1].getCellXIndex()][ndviHighSamples[2 * i + 1].getCellYIndex()];
+        final float[] toa7Cell = cellBuffer.getToa(7);
+        final float[] toa9Cell = cellBuffer.getToa(9);
+        final float[] hsurfCell = cellBuffer.getHsurf();
+        final float[] cosSzaCell = cellBuffer.getCosSza();
+        final int numPixels = hsurfCell.length;
 
-                refPixels[i][2] =
-                        toaArrayCell[bandId][ndviMediumSamples[2 * i].getCellXIndex()][ndviMediumSamples[2 * i].getCellYIndex()];
-                refPixels[i][3] =
-                        toaArrayCell[bandId][ndviMediumSamples[2 * i + 1].getCellXIndex()][ndviMediumSamples[2 * i + 1].getCellYIndex()];
+        final double[] hsurfLim = new double[]{0.8 * hsurfMeanCell, 1.2 * hsurfMeanCell};
+        final double[] cosSzaLim = new double[]{0.9 * cosSzaMeanCell, 1.1 * cosSzaMeanCell};
 
-                if (i < ndviLowSamples.length) {
-                    refPixels[i][4] =
-                            toaArrayCell[bandId][ndviLowSamples[i].getCellXIndex()][ndviLowSamples[i].getCellYIndex()];
-                } else {
-                    refPixels[i][4] =
-                            toaArrayCell[bandId][ndviMediumSamples[2 * i + 2].getCellXIndex()][ndviMediumSamples[2 * i + 2].getCellYIndex()];
+        final double[] ndviHigh = new double[numPixels];
+        final int[] ndviHighIndices = new int[numPixels];
+        int numHigh = 0;
+        final double[] ndviMedium = new double[numPixels];
+        final int[] ndviMediumIndices = new int[numPixels];
+        int numMedium = 0;
+        final double[] ndviLow = new double[numPixels];
+        final int[] ndviLowIndices = new int[numPixels];
+        int numLow = 0;
+        for (int index = 0; index < numPixels; index++) {
+            if (hsurfCell[index] > hsurfLim[0] && hsurfCell[index] < hsurfLim[1] &&
+                    cosSzaCell[index] > cosSzaLim[0] && cosSzaCell[index] < cosSzaLim[1]) {
+                final double toa7 = toa7Cell[index] / ScapeMConstants.solIrr7;
+                final double toa9 = toa9Cell[index] / ScapeMConstants.solIrr9;
+                final double ndvi = (toa9 - toa7) / (toa9 + toa7);
+                if (ndvi >= 0.4 && ndvi < 0.9) {
+                    ndviHigh[numHigh] = ndvi;
+                    ndviHighIndices[numHigh++] = index;
+                } else if (ndvi >= 0.15 && ndvi < 0.4) {
+                    ndviMedium[numMedium] = ndvi;
+                    ndviMediumIndices[numMedium++] = index;
+                } else if (ndvi >= 0.09 && ndvi < 0.15) {
+                    ndviLow[numLow] = ndvi;
+                    ndviLowIndices[numLow++] = index;
                 }
             }
-        } else {
+        }
+
+        if (numMedium + 2 < ScapeMConstants.NUM_REF_PIXELS) {
             return null;
         }
 
+        // only the pixels with the highest NDVIs are used, so we need just these in descending order
+        final int nLim = Math.min(numHigh / 2, numMedium / 3);
+        final int[] highIndices =
+                ScapeMUtils.getLargestValueIndices(ndviHigh, ndviHighIndices, numHigh, 2 * nLim);
+        final int[] mediumIndices =
+                ScapeMUtils.getLargestValueIndices(ndviMedium, ndviMediumIndices, numMedium,
+                                                   Math.min(2 * nLim + 1, numMedium));
+        final int[] lowIndices =
+                ScapeMUtils.getLargestValueIndices(ndviLow, ndviLowIndices, numLow, Math.min(nLim, numLow));
+
+        int[][] refPixelIndices = new int[nLim][ScapeMConstants.NUM_REF_PIXELS];
+        for (int i = 0; i < nLim; i++) {
+            refPixelIndices[i][0] = highIndices[2 * i];
+            refPixelIndices[i][1] = highIndices[2 * i + 1];
+            refPixelIndices[i][2] = mediumIndices[2 * i];
+            refPixelIndices[i][3] = mediumIndices[2 * i + 1];
+            if (i < lowIndices.length) {
+                refPixelIndices[i][4] = lowIndices[i];
+            } else {
+                refPixelIndices[i][4] = mediumIndices[2 * i + 2];
+            }
+        }
+        return refPixelIndices;
+    }
+
+    /**
+     * gives TOA of all bands for the selected reference pixels
+     *
+     * @param cellBuffer      - the cell input: toa, hsurf and cosSza single values
+     * @param refPixelIndices - the cell indices of the reference pixels, see {@link #selectRefPixelIndices}
+     * @return double[][][]   - the reference pixels, refPixels = double[bands][selectedPixels][NUM_REF_PIXELS]
+     */
+    static double[][][] extractRefPixels(CellBuffer cellBuffer, int[][] refPixelIndices) {
+        double[][][] refPixels = new double[ScapeMConstants.L1_BAND_NUM][refPixelIndices.length][];
+        for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+            final float[] toaCell = cellBuffer.getToa(bandId);
+            for (int i = 0; i < refPixelIndices.length; i++) {
+                final double[] refSet = new double[ScapeMConstants.NUM_REF_PIXELS];
+                for (int j = 0; j < ScapeMConstants.NUM_REF_PIXELS; j++) {
+                    refSet[j] = toaCell[refPixelIndices[i][j]];
+                }
+                refPixels[bandId][i] = refSet;
+            }
+        }
         return refPixels;
     }
 
@@ -448,225 +447,251 @@ public class ScapeMAlgorithm {
     /**
      * Returns the 'reflectance images' used for atmospheric correction
      *
-     * @param fInt            - the LUT output parameters
-     * @param toaArray        - the TOA cell arrays for all wavelengths
-     * @param cosSzaArrayCell - the cos(SZA) cell array
-     * @return double[][][] - the 'reflectance images': cell arrays for all wavelengths
+     * @param fInt       - the LUT output parameters
+     * @param cellBuffer - the cell input: TOA for all wavelengths and cos(SZA)
+     * @return double[][] - the 'reflectance images': row-major cell planes for bands 13, 14 and 15
      */
-    static double[][][] getReflImage(double[][] fInt,
-                                     double[][][] toaArray,
-                                     double[][] cosSzaArrayCell) {
+    static double[][] getReflImage(double[][] fInt,
+                                   CellBuffer cellBuffer) {
 
         final double deltaX =
                 1.0 / (ScapeMConstants.MERIS_WAVELENGTHS[13] - ScapeMConstants.MERIS_WAVELENGTHS[12]);
 
-        double[][][] reflImage = new double[3][toaArray[0].length][toaArray[0][0].length];
-        for (int i = 0; i < toaArray[0].length; i++) {
-            for (int j = 0; j < toaArray[0][0].length; j++) {
-                for (int k = 12; k <= 13; k++) {
-                    final double xterm = Math.PI * (toaArray[k][i][j] - fInt[k][0]) /
-                            (fInt[k][1] * cosSzaArrayCell[i][j] + fInt[k][2]);
-                    reflImage[k - 12][i][j] = xterm / (1.0 + fInt[k][4] * xterm);
-                }
-                reflImage[2][i][j] =
-                        ((reflImage[1][i][j] - reflImage[0][i][j]) * ScapeMConstants.MERIS_WAVELENGTHS[14] +
-                                reflImage[0][i][j] * ScapeMConstants.MERIS_WAVELENGTHS[13] -
-                                reflImage[1][i][j] * ScapeMConstants.MERIS_WAVELENGTHS[12]) * deltaX;
+        final float[] cosSzaCell = cellBuffer.getCosSza();
+        final int size = cosSzaCell.length;
+        double[][] reflImage = new double[3][size];
+        for (int k = 12; k <= 13; k++) {
+            final float[] toaCell = cellBuffer.getToa(k);
+            final double[] reflImageBand = reflImage[k - 12];
+            for (int i = 0; i < size; i++) {
+                final double xterm = Math.PI * (toaCell[i] - fInt[k][0]) /
+                        (fInt[k][1] * cosSzaCell[i] + fInt[k][2]);
+                reflImageBand[i] = xterm / (1.0 + fInt[k][4] * xterm);
             }
         }
+        for (int i = 0; i < size; i++) {
+            reflImage[2][i] =
+                    ((reflImage[1][i] - reflImage[0][i]) * ScapeMConstants.MERIS_WAVELENGTHS[14] +
+                            reflImage[0][i] * ScapeMConstants.MERIS_WAVELENGTHS[13] -
+                            reflImage[1][i] * ScapeMConstants.MERIS_WAVELENGTHS[12]) * deltaX;
+        }
 
         return reflImage;
     }
 
 
     /**
-     * @param rect               - the target rectangle
+     * Computes the radiative transfer terms for all bands on the complete cwv/vis/hsf grid of the LUT.
+     * As all queries fall on grid nodes, values are taken directly from the geometry slice without interpolation.
+     *
+     * In addition, the 'etw' term is provided as affine function of the pixel cos(SZA), see
+     * {@link CellAtmosphereCube#ETW_COS_SZA} and {@link CellAtmosphereCube#ETW_CONST}.
+     *
+     * @param atmParamSlice  - the atmospheric LUT collapsed to the cell geometry
+     * @param solirr         - the solar irradiances
+     * @param cosSzaMeanCell - the cos(SZA) cell mean value
+     * @param scapeMLut      - the atmospheric look-up table
+     * @return the cube holding the terms of radiative transfer equation
+     */
+    static CellAtmosphereCube computeAtmosphereCube(AtmParamSlice atmParamSlice,
+                                                    double[] solirr,
+                                                    double cosSzaMeanCell,
+                                                    ScapeMLut scapeMLut) {
+        final int dimWv = scapeMLut.getCwvArrayLUT().length;
+        final int dimVis = scapeMLut.getVisArrayLUT().length;
+        final int dimHsurf = scapeMLut.getHsfArrayLUT().length;
+        final CellAtmosphereCube cube = new CellAtmosphereCube(ScapeMConstants.L1_BAND_NUM, dimWv, dimVis, dimHsurf);
+        final double[] data = cube.getData();
+        for (int i = 0; i < dimWv; i++) {
+            for (int j = 0; j < dimVis; j++) {
+                for (int k = 0; k < dimHsurf; k++) {
+                    final int lpwIndex = cube.getIndex(CellAtmosphereCube.LPW, i, j, k);
+                    final int e0twIndex = cube.getIndex(CellAtmosphereCube.E0TW, i, j, k);
+                    final int ediftwIndex = cube.getIndex(CellAtmosphereCube.EDIFTW, i, j, k);
+                    final int sabIndex = cube.getIndex(CellAtmosphereCube.SAB, i, j, k);
+                    final int tDirDIndex = cube.getIndex(CellAtmosphereCube.TDIRD, i, j, k);
+                    final int etwCosSzaIndex = cube.getIndex(CellAtmosphereCube.ETW_COS_SZA, i, j, k);
+                    final int etwConstIndex = cube.getIndex(CellAtmosphereCube.ETW_CONST, i, j, k);
+                    for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+                        final double e0tw = atmParamSlice.getValue(k, j, i, bandId, 1);
+                        final double ediftw = atmParamSlice.getValue(k, j, i, bandId, 2);
+                        final double tDirD = e0tw /
+                                (atmParamSlice.getValue(k, j, i, bandId, 5) *
+                                        (1.0 + atmParamSlice.getValue(k, j, i, bandId, 3)) * solirr[bandId]);
+                        data[lpwIndex + bandId] = atmParamSlice.getValue(k, j, i, bandId, 0);
+                        data[e0twIndex + bandId] = e0tw;
+                        data[ediftwIndex + bandId] = ediftw;
+                        data[sabIndex + bandId] = atmParamSlice.getValue(k, j, i, bandId, 4);
+                        data[tDirDIndex + bandId] = tDirD;
+                        // etw = e0tw * mus_il + ediftw * (tdir_d * mus_il + (1.- tdir_d * mus)), with mus taken
+                        // as cell mean (less precise, but follows IDL):
+                        data[etwCosSzaIndex + bandId] = e0tw + ediftw * tDirD;
+                        data[etwConstIndex + bandId] = ediftw * (1.0 - tDirD * cosSzaMeanCell);
+                    }
+                }
+            }
+        }
+        return cube;
+    }
+
+    /**
+     * @param cellBuffer         - the cell input: TOA, elevation and cos(SZA) for the target rectangle
      * @param visibilityTile     - the visibility tile
-     * @param clearPixelStrategy - strategy how clear pixels are determined
+     * @param clearPixelMask     - the clear pixel mask of the cell
      * @param useConstantWv      - use constant Wv if set
-     * @param toaArrayCell       - the TOA cell array
-     * @param hsurfArray         - the elevation cell array
-     * @param cosSzaArray        - the cos(SZA) cell array
-     * @param cosSzaMeanCell     - the cos(SZA) cell mean value
-     * @param reflImg            - the 'reflectance images' for all wavelengths
+     * @param useBrentWvSolver   - if set, Wv is retrieved with the iterative Brent solver (reference mode)
+     * @param useFloatReflKernel - if set, reflectances are inverted line by line in float32 on compacted clear pixel
+     *                           rows (see {@link SurfaceReflectanceKernel})
+     * @param reflImg            - the 'reflectance images' (see {@link #getReflImage})
      * @param radianceTile13     - radiance tile at band 13
      * @param radianceTile14     - radiance tile at band 14
      * @param scapeMLut          - the atmospheric look-up table
-     * @param lpw                - the 'lpw' term of radiative transfer equation
-     * @param e0tw               - the 'e0tw' term of radiative transfer equation
-     * @param ediftw             - the 'ediftw' term of radiative transfer equation
-     * @param tDirD              - the 'tDirD' term of radiative transfer equation
-     * @param sab                - the 'sab' term of radiative transfer equation
+     * @param atmosphereCube     - the terms of radiative transfer equation (see {@link #computeAtmosphereCube})
      * @return ScapeMResult: holding water vapour and atmospheric corrected reflectances (see {@link ScapeMResult})
      */
-    static ScapeMResult computeAcResult(Rectangle rect,
+    static ScapeMResult computeAcResult(CellBuffer cellBuffer,
                                         Tile visibilityTile,
-                                        ClearPixelStrategy clearPixelStrategy,
+                                        ClearPixelMask clearPixelMask,
                                         boolean useConstantWv,
-                                        double[][][] toaArrayCell,
-                                        double[][] hsurfArray,
-                                        double[][] cosSzaArray,
-                                        double cosSzaMeanCell,
-                                        double[][][] reflImg,
+                                        boolean useBrentWvSolver,
+                                        boolean useFloatReflKernel,
+                                        double[][] reflImg,
                                         Tile radianceTile13,
                                         Tile radianceTile14,
                                         ScapeMLut scapeMLut,
-                                        double[][][][] lpw,
-                                        double[][][][] e0tw,
-                                        double[][][][] ediftw,
-                                        double[][][][] tDirD,
-                                        double[][][][] sab) {
-
-        final int dimWv = scapeMLut.getCwvArrayLUT().length;
-        final int dimVis = scapeMLut.getVisArrayLUT().length;
-        final int dimHsurf = scapeMLut.getHsfArrayLUT().length;
+                                        CellAtmosphereCube atmosphereCube) {
+
+        final Rectangle rect = cellBuffer.getRectangle();
+        final float[] hsurfCell = cellBuffer.getHsurf();
+        final float[] cosSzaCell = cellBuffer.getCosSza();
+        final int cellSize = rect.width * rect.height;
+        final double[] visibilityCell = new double[cellSize];
+        TileAccess.readSamples(visibilityTile, rect, visibilityCell);
+        final double[] radianceCell13 = new double[cellSize];
+        TileAccess.readSamples(radianceTile13, rect, radianceCell13);
+        final double[] radianceCell14 = new double[cellSize];
+        TileAccess.readSamples(radianceTile14, rect, radianceCell14);
+
+        final double[] hsfArrayLUT = scapeMLut.getHsfArrayLUT();
+        final double[] visArrayLUT = scapeMLut.getVisArrayLUT();
+        final double[] cwvArrayLUT = scapeMLut.getCwvArrayLUT();
+        final int dimWv = cwvArrayLUT.length;
+
+        final double[] cubeData = atmosphereCube.getData();
+        final int cubeHsfStride = atmosphereCube.getHsfStride();
+        final int cubeVisStride = atmosphereCube.getVisStride();
+
+        // per-pixel buffers, reused for all pixels of the cell
+        final double[][] lpwSp = new double[ScapeMConstants.L1_BAND_NUM][dimWv];
+        final double[][] etwSp = new double[ScapeMConstants.L1_BAND_NUM][dimWv];
+        final double[][] sabSp = new double[ScapeMConstants.L1_BAND_NUM][dimWv];
+        final double[][][] parAtmH = new double[3][2][dimWv];
+        final double[] reflPix = new double[2];
+
+        final WaterVapourSolver wvSolver = new WaterVapourSolver(cwvArrayLUT,
+                                                                 scapeMLut.getCwvMin(), scapeMLut.getCwvMax(),
+                                                                 useBrentWvSolver);
+
+        // band-major rows of the clear pixels of an image line, used with the float kernel
+        float[][] toaRow = null;
+        float[][] lpwRow = null;
+        float[][] etwRow = null;
+        float[][] sabRow = null;
+        int[] xRow = null;
+        if (useFloatReflKernel) {
+            toaRow = new float[ScapeMConstants.L1_BAND_NUM][rect.width];
+            lpwRow = new float[ScapeMConstants.L1_BAND_NUM][rect.width];
+            etwRow = new float[ScapeMConstants.L1_BAND_NUM][rect.width];
+            sabRow = new float[ScapeMConstants.L1_BAND_NUM][rect.width];
+            xRow = new int[rect.width];
+        }
 
         ScapeMResult scapeMResult = new ScapeMResult(ScapeMConstants.L1_BAND_NUM, rect.width, rect.height);
 
         for (int y = rect.y; y < rect.y + rect.height; y++) {
+            int numClearInRow = 0;
             for (int x = rect.x; x < rect.x + rect.width; x++) {
 
-                final double pix1 = reflImg[1][x - rect.x][y - rect.y];
-                final double pix2 = reflImg[2][x - rect.x][y - rect.y];
-                final double demPix = hsurfArray[x - rect.x][y - rect.y];
-                final double visPix = visibilityTile.getSampleDouble(x, y);
-
-                if (clearPixelStrategy.isValid(x, y)) {
-                    final double ratioMeris =
-                            radianceTile14.getSampleDouble(x, y) / radianceTile13.getSampleDouble(x, y);
-                    final double[] reflPix = new double[]{pix1, pix2};
-
-                    final double[] hsfArrayLUT = scapeMLut.getHsfArrayLUT();
-                    int hsIndex = 0;
-                    for (int i = 0; i < dimHsurf - 1; i++) {
-                        if (demPix >= hsfArrayLUT[i]) {
-                            hsIndex = i;
-                        }
-                    }
-                    double hsP = 0.0;
-                    if (hsIndex >= 0 && hsIndex < hsfArrayLUT.length - 1) {
-                        hsP = (demPix - hsfArrayLUT[hsIndex]) /
-                                (hsfArrayLUT[hsIndex + 1] - hsfArrayLUT[hsIndex]);
-                    }
-
-                    int visIndex = 0;
-                    final double[] visArrayLUT = scapeMLut.getVisArrayLUT();
-                    for (int i = 0; i < dimVis - 1; i++) {
-                        if (visPix >= visArrayLUT[i]) {
-                            visIndex = i;
-                        }
-                    }
-
-                    double visP = 0.0;
-                    if (visIndex >= 0 && visIndex < visArrayLUT.length - 1) {
-                        visP = (visPix - visArrayLUT[visIndex]) /
-                                (visArrayLUT[visIndex + 1] - visArrayLUT[visIndex]);
-                    }
-
-                    double[][] lpwSp = new double[ScapeMConstants.L1_BAND_NUM][dimWv];
-                    for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-                        for (int i = 0; i < dimWv; i++) {
-                            lpwSp[bandId][i] = (1.0 - visP) * (1.0 - hsP) * lpw[bandId][i][visIndex][hsIndex] +
-                                    hsP * (1.0 - visP) * lpw[bandId][i][visIndex][hsIndex + 1] +
-                                    (1.0 - hsP) * visP * lpw[bandId][i][visIndex + 1][hsIndex] +
-                                    visP * hsP * lpw[bandId][i][visIndex + 1][hsIndex + 1];
-                        }
-
-                    }
-
-                    // adjust etw:
-                    double[][][][] etw = new double[ScapeMConstants.L1_BAND_NUM][dimWv][dimVis][dimHsurf];
-                    final double cosSza = cosSzaArray[x - rect.x][y - rect.y];
-                    for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-                        for (int i = 0; i < scapeMLut.getCwvArrayLUT().length; i++) {
-                            for (int j = 0; j < visArrayLUT.length; j++) {
-                                for (int k = 0; k < hsfArrayLUT.length; k++) {
-                                    // (1.- tdir_d * mus) * mun_term_arr[ind]:
-                                    final double sum1 = (1.0 - tDirD[bandId][i][j][k] * cosSzaMeanCell) * 1.0;   // this is less precise, but follows IDL
-//                                    final double sum1 = (1.0 - tDirD[bandId][i][j][k] * cosSza) * 1.0;
-                                    // tdir_d * mus_il_arr[ind] :
-                                    final double sum2 = tDirD[bandId][i][j][k] * cosSza;
-                                    // e0tw * mus_il_arr[ind] :
-                                    final double sum3 = e0tw[bandId][i][j][k] * cosSza;
-
-                                    etw[bandId][i][j][k] = sum3 + ediftw[bandId][i][j][k] * (sum2 + sum1);
-                                }
-                            }
+                final int cellIndex = cellBuffer.getIndex(x - rect.x, y - rect.y);
+                if (clearPixelMask.isClear(cellIndex)) {
+                    final double demPix = hsurfCell[cellIndex];
+                    final double visPix = visibilityCell[cellIndex];
+                    final double cosSza = cosSzaCell[cellIndex];
+                    final double ratioMeris = radianceCell14[cellIndex] / radianceCell13[cellIndex];
+                    reflPix[0] = reflImg[1][cellIndex];
+                    reflPix[1] = reflImg[2][cellIndex];
+
+                    final int hsIndex = getLowerGridIndex(hsfArrayLUT, demPix);
+                    final double hsP = (demPix - hsfArrayLUT[hsIndex]) /
+                            (hsfArrayLUT[hsIndex + 1] - hsfArrayLUT[hsIndex]);
+                    final int visIndex = getLowerGridIndex(visArrayLUT, visPix);
+                    final double visP = (visPix - visArrayLUT[visIndex]) /
+                            (visArrayLUT[visIndex + 1] - visArrayLUT[visIndex]);
+
+                    final double w00 = (1.0 - visP) * (1.0 - hsP);
+                    final double w01 = hsP * (1.0 - visP);
+                    final double w10 = (1.0 - hsP) * visP;
+                    final double w11 = visP * hsP;
+
+                    // bilinear vis/hsf blend of the four corners for all bands;
+                    // etw is affine in the pixel cos(SZA), so its blend is assembled from the two coefficient cubes
+                    for (int i = 0; i < dimWv; i++) {
+                        final int lpw00 = atmosphereCube.getIndex(CellAtmosphereCube.LPW, i, visIndex, hsIndex);
+                        final int sab00 = atmosphereCube.getIndex(CellAtmosphereCube.SAB, i, visIndex, hsIndex);
+                        final int etwA00 = atmosphereCube.getIndex(CellAtmosphereCube.ETW_COS_SZA, i, visIndex, hsIndex);
+                        final int etwB00 = atmosphereCube.getIndex(CellAtmosphereCube.ETW_CONST, i, visIndex, hsIndex);
+                        for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+                            lpwSp[bandId][i] = blend(cubeData, lpw00 + bandId, cubeHsfStride, cubeVisStride,
+                                                     w00, w01, w10, w11);
+                            sabSp[bandId][i] = blend(cubeData, sab00 + bandId, cubeHsfStride, cubeVisStride,
+                                                     w00, w01, w10, w11);
+                            etwSp[bandId][i] = cosSza * blend(cubeData, etwA00 + bandId, cubeHsfStride, cubeVisStride,
+                                                              w00, w01, w10, w11) +
+                                    blend(cubeData, etwB00 + bandId, cubeHsfStride, cubeVisStride, w00, w01, w10, w11);
                         }
                     }
 
-                    double[][] etwSp = new double[ScapeMConstants.L1_BAND_NUM][dimWv];
-                    double[][] sabSp = new double[ScapeMConstants.L1_BAND_NUM][dimWv];
-                    for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-                        for (int i = 0; i < dimWv; i++) {
-                            etwSp[bandId][i] = (1.0 - visP) * (1.0 - hsP) * etw[bandId][i][visIndex][hsIndex] +
-                                    hsP * (1.0 - visP) * etw[bandId][i][visIndex][hsIndex + 1] +
-                                    (1.0 - hsP) * visP * etw[bandId][i][visIndex + 1][hsIndex] +
-                                    visP * hsP * etw[bandId][i][visIndex + 1][hsIndex + 1];
-                            sabSp[bandId][i] = (1.0 - visP) * (1.0 - hsP) * sab[bandId][i][visIndex][hsIndex] +
-                                    hsP * (1.0 - visP) * sab[bandId][i][visIndex][hsIndex + 1] +
-                                    (1.0 - hsP) * visP * sab[bandId][i][visIndex + 1][hsIndex] +
-                                    visP * hsP * sab[bandId][i][visIndex + 1][hsIndex + 1];
-                        }
-
-                    }
-
-                    double[][][] parAtmH = new double[3][2][dimWv];
                     for (int i = 0; i < 2; i++) {
-                        for (int j = 0; j < dimWv; j++) {
-                            parAtmH[0][i][j] = lpwSp[i + 13][j];
-                            parAtmH[1][i][j] = etwSp[i + 13][j];
-                            parAtmH[2][i][j] = sabSp[i + 13][j];
-                        }
+                        System.arraycopy(lpwSp[i + 13], 0, parAtmH[0][i], 0, dimWv);
+                        System.arraycopy(etwSp[i + 13], 0, parAtmH[1][i], 0, dimWv);
+                        System.arraycopy(sabSp[i + 13], 0, parAtmH[2][i], 0, dimWv);
                     }
 
                     // now water vapour:
-                    // all numbers in this test taken from IDL test run, cellIndexX=1, cellIndexY=0
                     double wvResult = ScapeMConstants.WV_INIT;
                     double wvP = ScapeMConstants.WV_INIT;
                     int wvInf = dimWv/2;
                     if (!useConstantWv) {
-                        WaterVapourFunction wvFunction = new WaterVapourFunction();
-                        wvFunction.setMerisRatio(ratioMeris);
-                        wvFunction.setWvGr2(scapeMLut.getCwvArrayLUT());
-                        wvFunction.setParAtmH(parAtmH);
-                        wvFunction.setReflPix(reflPix);
-
-                        final double wvLower = scapeMLut.getCwvMin();
-                        final double wvUpper = scapeMLut.getCwvMax();
-
-                        BrentSolver brentSolver = new BrentSolver(ScapeMConstants.FTOL);
-                        try {
-                            wvResult = brentSolver.solve(ScapeMConstants.MAXITER, wvFunction,
-                                                         wvLower, wvUpper);
-                            wvInf = wvFunction.getWvInf();
-                            wvP = wvFunction.getWvP();
-                        } catch (NoBracketingException e) {
-                            // retrieval outside valid range, set to default value
-                            wvResult = ScapeMConstants.WV_INIT;
-                            wvP = ScapeMConstants.WV_INIT;
-                            wvInf = dimWv/2;
-                            // todo: check if flag should be raised
-//                    e.printStackTrace();
+                        if (wvSolver.solve(ratioMeris, reflPix, parAtmH)) {
+                            wvResult = wvSolver.getWv();
+                            wvInf = wvSolver.getWvInf();
+                            wvP = wvSolver.getWvP();
                         }
+                        // otherwise retrieval outside valid range, keep default value
+                        // todo: check if flag should be raised
                     }
                     scapeMResult.setWvPixel(x - rect.x, y - rect.y, wvResult);
 
-                    double[] lpwAc = new double[ScapeMConstants.L1_BAND_NUM];
-                    double[] etwAc = new double[ScapeMConstants.L1_BAND_NUM];
-                    double[] sabAc = new double[ScapeMConstants.L1_BAND_NUM];
                     for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
                         if (i != 10 && i != 14) {
-                            lpwAc[i] = lpwSp[i][wvInf] + wvP * (lpwSp[i][wvInf + 1] - lpwSp[i][wvInf]);
-                            etwAc[i] = etwSp[i][wvInf] + wvP * (etwSp[i][wvInf + 1] - etwSp[i][wvInf]);
-                            sabAc[i] = sabSp[i][wvInf] + wvP * (sabSp[i][wvInf + 1] - sabSp[i][wvInf]);
-
-                            final double xTerm =
-                                    Math.PI * (toaArrayCell[i][x - rect.x][y - rect.y] - lpwAc[i]) / etwAc[i];
-                            final double refl = xTerm / (1.0 + sabAc[i] * xTerm);
-                            scapeMResult.setReflPixel(i, x - rect.x, y - rect.y, refl);
+                            final double lpwAc = lpwSp[i][wvInf] + wvP * (lpwSp[i][wvInf + 1] - lpwSp[i][wvInf]);
+                            final double etwAc = etwSp[i][wvInf] + wvP * (etwSp[i][wvInf + 1] - etwSp[i][wvInf]);
+                            final double sabAc = sabSp[i][wvInf] + wvP * (sabSp[i][wvInf + 1] - sabSp[i][wvInf]);
+                            final double toa = cellBuffer.getToa(i)[cellIndex];
+                            if (useFloatReflKernel) {
+                                toaRow[i][numClearInRow] = (float) toa;
+                                lpwRow[i][numClearInRow] = (float) lpwAc;
+                                etwRow[i][numClearInRow] = (float) etwAc;
+                                sabRow[i][numClearInRow] = (float) sabAc;
+                            } else {
+                                final double refl = SurfaceReflectanceKernel.invert(toa, lpwAc, etwAc, sabAc);
+                                scapeMResult.setReflPixel(i, x - rect.x, y - rect.y, refl);
+                            }
                         }
                     }
+                    if (useFloatReflKernel) {
+                        xRow[numClearInRow++] = x - rect.x;
+                    }
                 } else {
                     // invalid due to one or more of the above cases
                     for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
@@ -675,18 +700,53 @@ public class ScapeMAlgorithm {
                     scapeMResult.setWvPixel(x - rect.x, y - rect.y, ScapeMConstants.AC_NODATA);
                 }
             }
+            if (useFloatReflKernel && numClearInRow > 0) {
+                for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
+                    if (i != 10 && i != 14) {
+                        // the TOA row receives the reflectances
+                        SurfaceReflectanceKernel.invert(toaRow[i], lpwRow[i], etwRow[i], sabRow[i], toaRow[i],
+                                                        numClearInRow);
+                        for (int k = 0; k < numClearInRow; k++) {
+                            scapeMResult.setReflPixel(i, xRow[k], y - rect.y, toaRow[i][k]);
+                        }
+                    }
+                }
+            }
 
         }
         return scapeMResult;
     }
 
+    // index i of the grid interval [grid[i], grid[i+1]] to be used for interpolation at given value:
+    // the last node not above the value, restricted to 0..length-2 (grid must be ascending)
+    static int getLowerGridIndex(double[] grid, double value) {
+        for (int i = grid.length - 2; i > 0; i--) {
+            if (value >= grid[i]) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    // bilinear blend of the four vis/hsf corners starting at given index of a CellAtmosphereCube
+    private static double blend(double[] data, int index00, int hsfStride, int visStride,
+                                double w00, double w01, double w10, double w11) {
+        final int index10 = index00 + visStride;
+        return w00 * data[index00] + w01 * data[index00 + hsfStride] +
+                w10 * data[index10] + w11 * data[index10 + hsfStride];
+    }
+
     // computes the 'refined' visibility value for the given cell:
     private static double computeRefinedVisibility(double visLim,
                                                    double[][][] refPixels,
-                                                   double vza, double sza, double raa,
+                                                   AtmParamSlice atmParamSlice,
                                                    double hsurfMeanCell,
                                                    double wvInit,
                                                    double cosSzaMeanCell,
+                                                   String refinementMethod,
+                                                   int limRefSets,
+                                                   RefinementSolution[] warmStarts,
+                                                   RefinementSolution[] cellSolutions,
                                                    ScapeMLut scapeMLut) {
 
         final int numSpec = 2;
@@ -700,9 +760,10 @@ public class ScapeMAlgorithm {
         double[][] etw = new double[ScapeMConstants.L1_BAND_NUM][scapeMLut.getVisArrayLUT().length];
         double[][] sab = new double[ScapeMConstants.L1_BAND_NUM][scapeMLut.getVisArrayLUT().length];
 
+        final double[][] fInt = new double[atmParamSlice.getNumWavelengths()][atmParamSlice.getNumParameters()];
         for (int i = 0; i < scapeMLut.getVisArrayLUT().length; i++) {
             double visArrayVal = Math.max(scapeMLut.getVisMin(), Math.min(scapeMLut.getVisMax(), scapeMLut.getVisArrayLUT()[i]));
-            double[][] fInt = LutAccess.interpolAtmParamLut(scapeMLut.getAtmParamLut(), vza, sza, raa, hsurfMeanCell, visArrayVal, wvInit);
+            atmParamSlice.interpolate(hsurfMeanCell, visArrayVal, wvInit, fInt);
             for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
                 lpw[bandId][i] = fInt[bandId][0];
                 etw[bandId][i] = fInt[bandId][1] * cosSzaMeanCell + fInt[bandId][2];
@@ -718,71 +779,63 @@ public class ScapeMAlgorithm {
         }
         powellInputInit[numX - 1] = 23.0;
 
-        double[][] xi = new double[numX][numX];
-        for (int i = 0; i < numX; i++) {
-            xi[i][i] = 1.0;
-        }
-
-        final int limRefSets = 1;    // for AOT_time_flg eq 1, see .inp file
         final int nEMVeg = 3;    // for AOT_time_flg eq 1, see .inp file
 
         final int nRefSets = Math.min(refPixels[0].length, limRefSets);
 
-        double[] visArr = new double[nRefSets];
-        double[] fminArr = new double[nEMVeg];
-        double[] visArrAux = new double[nEMVeg];
+        // abundances >= 0, visibility inside the range where the minimisation function is valid
+        final double[] lowerBounds = new double[numX];
+        final double[] upperBounds = new double[numX];
+        Arrays.fill(upperBounds, Double.MAX_VALUE);
+        lowerBounds[numX - 1] = visLim;
+        upperBounds[numX - 1] = scapeMLut.getVisMax();
 
-        ToaMinimization toaMinimization = new ToaMinimization(visLim, scapeMLut.getVisArrayLUT(), lpw, etw, sab, 0.0);
-        final double[][] xiInput = xi.clone();
+        // the runs for all reference sets and vegetation endmembers are independent, so run them in parallel
+        final List<RefinementRun> runs = new ArrayList<RefinementRun>(nRefSets * nEMVeg);
         for (int i = 0; i < nRefSets; i++) {
             double[][] refSetPixels = new double[ScapeMConstants.L1_BAND_NUM][ScapeMConstants.NUM_REF_PIXELS];
             for (int j = 0; j < ScapeMConstants.L1_BAND_NUM; j++) {
                 System.arraycopy(refPixels[j][i], 0, refSetPixels[j], 0, ScapeMConstants.NUM_REF_PIXELS);
             }
-            toaMinimization.setRefPixels(refSetPixels);
-
             for (int j = 0; j < nEMVeg; j++) {
+                final ToaMinimization toaMinimization =
+                        new ToaMinimization(visLim, scapeMLut.getVisArrayLUT(), lpw, etw, sab, 0.0);
+                toaMinimization.setRefPixels(refSetPixels);
+                toaMinimization.setRhoVeg(ScapeMConstants.RHO_VEG_ALL[j]);
                 double[] xVector = powellInputInit.clone();
                 xVector[10] = visLim + 0.01;
+                final RefinementSolution warmStart = warmStarts != null ? warmStarts[j] : null;
+                runs.add(new RefinementRun(toaMinimization, xVector, warmStart,
+                                           lowerBounds, upperBounds, refinementMethod));
+            }
+        }
+        final List<RefinementSolution> runResults;
+        try {
+            runResults = TaskExecutor.invokeAll(runs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperatorException("Interrupted during visibility refinement", e);
+        }
 
-                double[] weight = new double[]{2., 2., 1.5, 1.5, 1.};
-                toaMinimization.setWeight(weight);
-                toaMinimization.setRhoVeg(ScapeMConstants.RHO_VEG_ALL[j]);
-
-                // 'minim_TOA' is the function to be minimized by Powell!
-                // we have to  use this kind of interface:
-                // PowellTestFunction_1 function1 = new PowellTestFunction_1();
-                // double fmin = Powell.fmin(xVector, xi, ftol, function1);
-                double fmin = Powell.fmin(xVector,
-                                          xiInput,
-                                          ScapeMConstants.POWELL_FTOL,
-                                          toaMinimization);
-                double[] chiSqr = toaMinimization.getChiSquare();
-                double chiSqrMean = ScapeMUtils.getMeanDouble1D(chiSqr);
-
-                int chiSqrOutsideRangeCount = 0;
-                for (double aChiSqrVal : chiSqr) {
-                    if (aChiSqrVal > 2.0 * chiSqrMean) {
-                        chiSqrOutsideRangeCount++;
-                    }
-                }
-                if (chiSqrOutsideRangeCount > 0) {
-                    for (int k = 0; k < chiSqrOutsideRangeCount; k++) {
-                        weight[k] = 0.0;
-                    }
-                    toaMinimization.setWeight(weight);
-                    fmin = Powell.fmin(xVector,
-                                       xiInput,
-                                       ScapeMConstants.POWELL_FTOL,
-                                       toaMinimization);
-                }
-                visArrAux[j] = xVector[numX - 1];
-                fminArr[j] = fmin / (5.0 - chiSqrOutsideRangeCount);
+        double[] visArr = new double[nRefSets];
+        double[] fminArr = new double[nEMVeg];
+        double[] visArrAux = new double[nEMVeg];
+        for (int i = 0; i < nRefSets; i++) {
+            for (int j = 0; j < nEMVeg; j++) {
+                final RefinementSolution runResult = runResults.get(i * nEMVeg + j);
+                visArrAux[j] = runResult.getVisibility();
+                fminArr[j] = runResult.getFmin();
             }
             final int fMinIndex = ScapeMUtils.getMinimumIndexDouble1D(fminArr);
             visArr[i] = visArrAux[fMinIndex];
         }
 
+        if (cellSolutions != null) {
+            for (int j = 0; j < nEMVeg; j++) {
+                cellSolutions[j] = runResults.get(j);
+            }
+        }
+
         if (nRefSets > 1) {
             double visMean = ScapeMUtils.getMeanDouble1D(visArr);
             double visStdev = ScapeMUtils.getStdevDouble1D(visArr);
@@ -805,4 +858,84 @@ public class ScapeMAlgorithm {
         return visRefined;
     }
 
+    // one minimisation of the TOA function, for one reference set and vegetation endmember, followed by a rerun
+    // without the worst fitting reference pixels if needed. With a warm start, the minimisation starts from the
+    // solution of a neighbouring cell, and is repeated from the cold start if it ends far above the neighbour's minimum.
+    private static class RefinementRun implements Callable<RefinementSolution> {
+
+        // a warm start ending above this multiple of the neighbour's minimum is taken as caught in a wrong minimum.
+        // The minima of neighbouring cells easily differ by a factor of two or more just from the noise.
+        private static final double COLD_START_FACTOR = 10.0;
+
+        private final ToaMinimization toaMinimization;
+        private final double[] xVector;
+        private final RefinementSolution warmStart;
+        private final double[] lowerBounds;
+        private final double[] upperBounds;
+        private final String refinementMethod;
+
+        RefinementRun(ToaMinimization toaMinimization, double[] xVector, RefinementSolution warmStart,
+                      double[] lowerBounds, double[] upperBounds, String refinementMethod) {
+            this.toaMinimization = toaMinimization;
+            this.xVector = xVector;
+            this.warmStart = warmStart;
+            this.lowerBounds = lowerBounds;
+            this.upperBounds = upperBounds;
+            this.refinementMethod = refinementMethod;
+        }
+
+        @Override
+        public RefinementSolution call() {
+            if (warmStart == null) {
+                return minimize(xVector, null);
+            }
+            final double[] xWarm = warmStart.getXVector();
+            final int visIndex = xWarm.length - 1;
+            xWarm[visIndex] = Math.max(lowerBounds[visIndex] + 0.01, Math.min(upperBounds[visIndex], xWarm[visIndex]));
+            RefinementSolution solution = minimize(xWarm, warmStart.getDirections());
+            if (solution.getFmin() > COLD_START_FACTOR * warmStart.getFmin()) {
+                final RefinementSolution coldSolution = minimize(xVector, null);
+                if (coldSolution.getFmin() < solution.getFmin()) {
+                    solution = coldSolution;
+                }
+            }
+            return solution;
+        }
+
+        private RefinementSolution minimize(double[] xStart, double[][] directions) {
+            // created here, as the minimisers use work arrays of the executing thread
+            final ToaMinimizer toaMinimizer = ToaMinimizerFactory.create(refinementMethod);
+            final PowellToaMinimizer powellToaMinimizer =
+                    toaMinimizer instanceof PowellToaMinimizer ? (PowellToaMinimizer) toaMinimizer : null;
+            if (powellToaMinimizer != null && directions != null) {
+                powellToaMinimizer.setDirections(directions);
+            }
+            final double[] x = xStart.clone();
+
+            double[] weight = new double[]{2., 2., 1.5, 1.5, 1.};
+            toaMinimization.setWeight(weight);
+
+            // 'minim_TOA' is the function to be minimized, by the selected refinement method
+            double fmin = toaMinimizer.minimize(x, toaMinimization, lowerBounds, upperBounds);
+            double[] chiSqr = toaMinimization.getChiSquare();
+            double chiSqrMean = ScapeMUtils.getMeanDouble1D(chiSqr);
+
+            int chiSqrOutsideRangeCount = 0;
+            for (double aChiSqrVal : chiSqr) {
+                if (aChiSqrVal > 2.0 * chiSqrMean) {
+                    chiSqrOutsideRangeCount++;
+                }
+            }
+            if (chiSqrOutsideRangeCount > 0) {
+                for (int k = 0; k < chiSqrOutsideRangeCount; k++) {
+                    weight[k] = 0.0;
+                }
+                toaMinimization.setWeight(weight);
+                fmin = toaMinimizer.minimize(x, toaMinimization, lowerBounds, upperBounds);
+            }
+            final double[][] finalDirections = powellToaMinimizer != null ? powellToaMinimizer.getDirections() : null;
+            return new RefinementSolution(x, fmin / (5.0 - chiSqrOutsideRangeCount), finalDirections);
+        }
+    }
+
 }
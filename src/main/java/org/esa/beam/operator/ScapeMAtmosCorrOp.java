@@ -18,12 +18,14 @@ import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
 import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
 import org.esa.beam.framework.gpf.annotations.TargetProduct;
-import org.esa.beam.io.LutAccess;
+import org.esa.beam.io.AtmParamSlice;
 import org.esa.beam.meris.brr.HelperFunctions;
 import org.esa.beam.util.ClearLandAndWaterPixelStrategy;
 import org.esa.beam.util.ClearLandPixelStrategy;
+import org.esa.beam.util.ClearPixelMask;
 import org.esa.beam.util.ClearPixelStrategy;
 import org.esa.beam.util.ProductUtils;
+import org.esa.beam.util.TileAccess;
 
 import java.awt.*;
 import java.util.Calendar;
@@ -57,6 +59,16 @@ public class ScapeMAtmosCorrOp extends ScapeMMerisBasisOp {
                defaultValue = "false")
     private boolean useConstantWv;
 
+    @Parameter(description = "If set, water vapour is retrieved with the iterative Brent solver (reference mode)",
+               label = "Use Brent solver for water vapour",
+               defaultValue = "false")
+    private boolean useBrentWvSolver;
+
+    @Parameter(description = "If set, surface reflectances are inverted in float32 on compacted rows of clear pixels",
+               label = "Use float32 reflectance inversion kernel",
+               defaultValue = "false")
+    private boolean useFloatReflKernel;
+
     @Parameter(description = "If set, use GETASSE30 DEM, otherwise get altitudes from product TPGs",
                label = "Use GETASSE30 DEM",
                defaultValue = "false")
@@ -96,6 +108,9 @@ public class ScapeMAtmosCorrOp extends ScapeMMerisBasisOp {
 
     @Override
     public void initialize() throws OperatorException {
+        if (scapeMLut == null) {
+            scapeMLut = getSharedScapeMLut();
+        }
         if (useDEM) {
             String demName = ScapeMConstants.DEFAULT_DEM_NAME;
             final ElevationModelDescriptor demDescriptor = ElevationModelRegistry.getInstance().getDescriptor(demName);
@@ -125,6 +140,7 @@ public class ScapeMAtmosCorrOp extends ScapeMMerisBasisOp {
             clearPixelStrategy = new ClearLandPixelStrategy();
         }
         clearPixelStrategy.setTile(getSourceTile(cloudProduct.getBandAt(0), targetRect));
+        final ClearPixelMask clearPixelMask = ClearPixelMask.create(clearPixelStrategy, targetRect);
 
         Tile[] radianceTiles = new Tile[ScapeMConstants.L1_BAND_NUM];
         Band[] radianceBands = new Band[ScapeMConstants.L1_BAND_NUM];
@@ -147,108 +163,88 @@ public class ScapeMAtmosCorrOp extends ScapeMMerisBasisOp {
         final double saa = saaTile.getSampleDouble(centerX, centerY);
         final double phi = HelperFunctions.computeAzimuthDifference(vaa, saa);
 
-        double[][] hsurfArrayCell;
+        final CellBuffer cellBuffer = new CellBuffer(targetRect, ScapeMConstants.L1_BAND_NUM);
         try {
             if (useDEM && altitudeTile == null) {
-                hsurfArrayCell = ScapeMAlgorithm.getHsurfArrayCell(targetRect, geoCoding, elevationModel, scapeMLut);
+                ScapeMAlgorithm.fillHsurfCell(cellBuffer, geoCoding, elevationModel, scapeMLut);
             } else {
-                hsurfArrayCell = ScapeMAlgorithm.getHsurfArrayCell(targetRect, geoCoding, altitudeTile, scapeMLut);
+                ScapeMAlgorithm.fillHsurfCell(cellBuffer, geoCoding, altitudeTile, scapeMLut);
             }
 
-            final double hsurfMeanCell = ScapeMAlgorithm.getHsurfMeanCell(hsurfArrayCell, targetRect, clearPixelStrategy);
-            final double[][] cosSzaArrayCell = ScapeMAlgorithm.getCosSzaArrayCell(targetRect, szaTile);
-            final double cosSzaMeanCell = ScapeMAlgorithm.getCosSzaMeanCell(cosSzaArrayCell, targetRect, clearPixelStrategy);
+            ScapeMAlgorithm.fillCosSzaCell(cellBuffer, szaTile);
 
             final int doy = sourceProduct.getStartTime().getAsCalendar().get(Calendar.DAY_OF_YEAR);
-            double[][][] toaArrayCell = new double[ScapeMConstants.L1_BAND_NUM][targetRect.width][targetRect.height];
             for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-                toaArrayCell[bandId] = ScapeMAlgorithm.getToaArrayCell(radianceTiles[bandId], targetRect, doy);
+                ScapeMAlgorithm.fillToaCell(cellBuffer, bandId, radianceTiles[bandId], doy);
             }
 
+            final CellStatistics cellStatistics = CellStatistics.compute(cellBuffer, clearPixelMask);
+            final double hsurfMeanCell = cellStatistics.getHsurfMean();
+            final double cosSzaMeanCell = cellStatistics.getCosSzaMean();
+
             Tile[] reflTiles = getTargetTileGroup(reflBands, targetTiles);
             Tile[] rhoToaTiles = null;
             if (outputRhoToa) {
                 rhoToaTiles = getTargetTileGroup(rhoToaBands, targetTiles);
             }
 
-            final int dimWv = scapeMLut.getCwvArrayLUT().length;
-            final int dimVis = scapeMLut.getVisArrayLUT().length;
-            final int dimHurf = scapeMLut.getHsfArrayLUT().length;
-            double[][][][] lpw = new double[ScapeMConstants.L1_BAND_NUM][dimWv][dimVis][dimHurf];     // [15][6][7][3]
-            double[][][][] e0tw = new double[ScapeMConstants.L1_BAND_NUM][dimWv][dimVis][dimHurf];
-            double[][][][] ediftw = new double[ScapeMConstants.L1_BAND_NUM][dimWv][dimVis][dimHurf];
-            double[][][][] sab = new double[ScapeMConstants.L1_BAND_NUM][dimWv][dimVis][dimHurf];
-            double[][][][] tDirD = new double[ScapeMConstants.L1_BAND_NUM][dimWv][dimVis][dimHurf];
-
-            for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-                for (int i = 0; i < dimWv; i++) {
-                    for (int j = 0; j < dimVis; j++) {
-                        for (int k = 0; k < dimHurf; k++) {
-                            double[][] fInt = LutAccess.interpolAtmParamLut(scapeMLut.getAtmParamLut(),
-                                                                            vza, sza, phi,
-                                                                            scapeMLut.getHsfArrayLUT()[k],
-                                                                            scapeMLut.getVisArrayLUT()[j],
-                                                                            scapeMLut.getCwvArrayLUT()[i]);
-                            lpw[bandId][i][j][k] = fInt[bandId][0];
-                            e0tw[bandId][i][j][k] = fInt[bandId][1];
-                            ediftw[bandId][i][j][k] = fInt[bandId][2];
-                            sab[bandId][i][j][k] = fInt[bandId][4];
-                            tDirD[bandId][i][j][k] =
-                                    fInt[bandId][1] / (fInt[bandId][5] * (1.0 + fInt[bandId][3]) * solirr[bandId]);
-                        }
-                    }
-                }
-            }
+            final AtmParamSlice atmParamSlice = scapeMLut.createGeometrySlice(vza, sza, phi);
+            final CellAtmosphereCube atmosphereCube =
+                    ScapeMAlgorithm.computeAtmosphereCube(atmParamSlice, solirr, cosSzaMeanCell, scapeMLut);
 
             ScapeMResult acResult;
-            double[][] fInt = LutAccess.interpolAtmParamLut(scapeMLut.getAtmParamLut(),
-                                                            vza, sza, phi, hsurfMeanCell,
-                                                            ScapeMConstants.VIS_INIT, ScapeMConstants.WV_INIT);
-            double[][][] reflImage = ScapeMAlgorithm.getReflImage(fInt, toaArrayCell, cosSzaArrayCell);
+            final double[][] fInt = new double[atmParamSlice.getNumWavelengths()][atmParamSlice.getNumParameters()];
+            atmParamSlice.interpolate(hsurfMeanCell, ScapeMConstants.VIS_INIT, ScapeMConstants.WV_INIT, fInt);
+            double[][] reflImage = ScapeMAlgorithm.getReflImage(fInt, cellBuffer);
 
-            acResult = ScapeMAlgorithm.computeAcResult(targetRect,
+            acResult = ScapeMAlgorithm.computeAcResult(cellBuffer,
                                                        visibilityTile,
-                                                       clearPixelStrategy,
+                                                       clearPixelMask,
                                                        useConstantWv,
-                                                       toaArrayCell,
-                                                       hsurfArrayCell,
-                                                       cosSzaArrayCell,
-                                                       cosSzaMeanCell,
+                                                       useBrentWvSolver,
+                                                       useFloatReflKernel,
                                                        reflImage,
                                                        radianceTiles[13],
                                                        radianceTiles[14],
                                                        scapeMLut,
-                                                       lpw, e0tw, ediftw, tDirD, sab);
+                                                       atmosphereCube);
+
 
+            final int cellWidth = targetRect.width;
+            final int cellHeight = targetRect.height;
+            final float[] samples = new float[cellWidth * cellHeight];
 
             Tile wvTile = targetTiles.get(targetProduct.getBand(ScapeMConstants.WATER_VAPOUR_BAND_NAME));
-            for (int y = targetRect.y; y < targetRect.y + targetRect.height; y++) {
-                for (int x = targetRect.x; x < targetRect.x + targetRect.width; x++) {
-                    wvTile.setSample(x, y, acResult.getWvPixel(x - targetRect.x, y - targetRect.y));
-                    for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-                        final boolean writeOptionalBands = (bandId == 1 && outputReflBand2);
-                        if ((bandId != 1 && bandId != 10 && bandId != 14) || writeOptionalBands) {
-                            Tile reflTile = reflTiles[bandId];
-                            reflTile.setSample(x, y, acResult.getReflPixel(bandId, x - targetRect.x, y - targetRect.y));
+            for (int y = 0; y < cellHeight; y++) {
+                for (int x = 0; x < cellWidth; x++) {
+                    samples[y * cellWidth + x] = (float) acResult.getWvPixel(x, y);
+                }
+            }
+            TileAccess.writeSamples(wvTile, targetRect, samples);
+
+            for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+                final boolean writeOptionalBands = (bandId == 1 && outputReflBand2);
+                if ((bandId != 1 && bandId != 10 && bandId != 14) || writeOptionalBands) {
+                    for (int y = 0; y < cellHeight; y++) {
+                        for (int x = 0; x < cellWidth; x++) {
+                            samples[y * cellWidth + x] = (float) acResult.getReflPixel(bandId, x, y);
                         }
                     }
+                    TileAccess.writeSamples(reflTiles[bandId], targetRect, samples);
                 }
             }
             if (outputRhoToa) {
-                for (int y = targetRect.y; y < targetRect.y + targetRect.height; y++) {
-                    for (int x = targetRect.x; x < targetRect.x + targetRect.width; x++) {
-                        double cosSza = cosSzaArrayCell[x - targetRect.x][y - targetRect.y];
-                        for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-                            final boolean writeOptionalBands = (bandId == 1 && outputReflBand2);
-                            if ((bandId != 1 && bandId != 10 && bandId != 14) || writeOptionalBands) {
-                                Tile rhoToaTile = rhoToaTiles[bandId];
-                                // normalize to our rhoTOAs as e.g. from Rad2Refl...
-                                final double rhoToaFactor = Math.PI / (solirr[bandId] * cosSza);
-                                double toaArraySample =
-                                        toaArrayCell[bandId][x - targetRect.x][y - targetRect.y] * rhoToaFactor;
-                                rhoToaTile.setSample(x, y, toaArraySample);
-                            }
+                final float[] cosSzaCell = cellBuffer.getCosSza();
+                for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+                    final boolean writeOptionalBands = (bandId == 1 && outputReflBand2);
+                    if ((bandId != 1 && bandId != 10 && bandId != 14) || writeOptionalBands) {
+                        final float[] toaCell = cellBuffer.getToa(bandId);
+                        for (int i = 0; i < samples.length; i++) {
+                            // normalize to our rhoTOAs as e.g. from Rad2Refl...
+                            final double rhoToaFactor = Math.PI / (solirr[bandId] * cosSzaCell[i]);
+                            samples[i] = (float) (toaCell[i] * rhoToaFactor);
                         }
+                        TileAccess.writeSamples(rhoToaTiles[bandId], targetRect, samples);
                     }
                 }
             }
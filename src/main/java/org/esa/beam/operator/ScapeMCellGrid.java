@@ -0,0 +1,268 @@
+package org.esa.beam.operator;
+
+import org.esa.beam.jai.ResolutionLevel;
+import org.esa.beam.jai.SingleBandedOpImage;
+import org.esa.beam.util.TaskExecutor;
+
+import javax.media.jai.PlanarImage;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * One value per 30x30km cell of a scene, e.g. the cell visibility: the intermediate visibility products are
+ * constant over each cell, so they are held on the coarse cell grid instead of as full resolution rasters.
+ * The cells at the right and lower scene border may be smaller than the others.
+ * A full resolution view is provided by {@link #createImage()}, a smoothed one by {@link #createBoxFilteredImage(int)}.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class ScapeMCellGrid {
+
+    private final int sceneWidth;
+    private final int sceneHeight;
+    private final int cellWidth;
+    private final int cellHeight;
+    private final float[][] cellValues;
+
+    /**
+     * Creates a grid with all cell values NaN.
+     *
+     * @param sceneWidth  - the scene width in pixels
+     * @param sceneHeight - the scene height in pixels
+     * @param cellWidth   - the cell width in pixels
+     * @param cellHeight  - the cell height in pixels
+     */
+    public ScapeMCellGrid(int sceneWidth, int sceneHeight, int cellWidth, int cellHeight) {
+        this.sceneWidth = sceneWidth;
+        this.sceneHeight = sceneHeight;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        final int numCellColumns = (sceneWidth + cellWidth - 1) / cellWidth;
+        final int numCellRows = (sceneHeight + cellHeight - 1) / cellHeight;
+        cellValues = new float[numCellRows][numCellColumns];
+        for (float[] cellRow : cellValues) {
+            Arrays.fill(cellRow, Float.NaN);
+        }
+    }
+
+    public int getSceneWidth() {
+        return sceneWidth;
+    }
+
+    public int getSceneHeight() {
+        return sceneHeight;
+    }
+
+    public int getCellWidth() {
+        return cellWidth;
+    }
+
+    public int getCellHeight() {
+        return cellHeight;
+    }
+
+    public int getNumCellColumns() {
+        return cellValues[0].length;
+    }
+
+    public int getNumCellRows() {
+        return cellValues.length;
+    }
+
+    /**
+     * @param cellX - cell column index
+     * @param cellY - cell row index
+     * @return the scene pixels of the cell
+     */
+    public Rectangle getCellRectangle(int cellX, int cellY) {
+        final int x = cellX * cellWidth;
+        final int y = cellY * cellHeight;
+        return new Rectangle(x, y, Math.min(cellWidth, sceneWidth - x), Math.min(cellHeight, sceneHeight - y));
+    }
+
+    /**
+     * @param cellX - cell column index
+     * @param cellY - cell row index
+     * @return the cell value
+     */
+    public float getCellValue(int cellX, int cellY) {
+        return cellValues[cellY][cellX];
+    }
+
+    /**
+     * @param cellX - cell column index
+     * @param cellY - cell row index
+     * @param value - the cell value
+     */
+    public void setCellValue(int cellX, int cellY, float value) {
+        cellValues[cellY][cellX] = value;
+    }
+
+    /**
+     * Reads all cell values, the cell rows in parallel, each row from left to right. For a grid computing a cell
+     * value on first access, this computes the whole grid, where the left neighbour of a cell is already done.
+     * Tasks invoked by such a cell computation are run by the thread of its row, see {@link TaskExecutor}.
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting for a cell row
+     */
+    public void readAllCells() throws InterruptedException {
+        final List<Callable<Object>> rowTasks = new ArrayList<Callable<Object>>(getNumCellRows());
+        for (int y = 0; y < getNumCellRows(); y++) {
+            final int cellY = y;
+            rowTasks.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    for (int cellX = 0; cellX < getNumCellColumns(); cellX++) {
+                        getCellValue(cellX, cellY);
+                    }
+                    return null;
+                }
+            });
+        }
+        TaskExecutor.invokeAll(rowTasks);
+    }
+
+    /**
+     * Provides the grid as full resolution image, with one tile per cell. The tiles are filled from the cell
+     * values when requested, and are not kept in the tile cache.
+     *
+     * @return the image
+     */
+    public PlanarImage createImage() {
+        return new CellGridImage(this);
+    }
+
+    /**
+     * Provides the full resolution image smoothed by a box filter, the same as a JAI convolution of
+     * {@link #createImage()} with a constant kernelSize x kernelSize kernel (key element at kernelSize / 2) and
+     * BORDER_COPY extension. As the image is constant over each cell, each pixel is computed as blend of the values
+     * of the cells overlapped by the kernel, weighted by the overlap areas, instead of summing up the kernel.
+     *
+     * @param kernelSize - the kernel width and height in pixels
+     * @return the image
+     */
+    public PlanarImage createBoxFilteredImage(int kernelSize) {
+        return new BoxFilteredImage(this, kernelSize);
+    }
+
+    /* package local for testing*/
+    void boxFilter(int kernelSize, Rectangle rect, float[] values) {
+        // per column, the overlaps of the kernel with the cell columns, and per row with the cell rows
+        final int maxOverlappedCells = (kernelSize + cellWidth - 1) / cellWidth + 1;
+        final int maxOverlappedRows = (kernelSize + cellHeight - 1) / cellHeight + 1;
+        final int[] firstCellX = new int[rect.width];
+        final int[] numCellsX = new int[rect.width];
+        final int[] weightsX = new int[rect.width * maxOverlappedCells];
+        for (int i = 0; i < rect.width; i++) {
+            numCellsX[i] = computeKernelOverlaps(rect.x + i, kernelSize, cellWidth, sceneWidth,
+                                                 firstCellX, weightsX, i, maxOverlappedCells);
+        }
+        final int[] firstCellY = new int[1];
+        final int[] weightsY = new int[maxOverlappedRows];
+
+        final int minCellX = firstCellX[0];
+        final int maxCellX = firstCellX[rect.width - 1] + numCellsX[rect.width - 1] - 1;
+        final double[] rowBlend = new double[maxCellX - minCellX + 1];
+        final double norm = 1.0 / ((double) kernelSize * kernelSize);
+        int index = 0;
+        for (int y = rect.y; y < rect.y + rect.height; y++) {
+            // the cell rows blended over the kernel height
+            final int numCellsY = computeKernelOverlaps(y, kernelSize, cellHeight, sceneHeight,
+                                                        firstCellY, weightsY, 0, maxOverlappedRows);
+            for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+                double blend = 0.0;
+                for (int k = 0; k < numCellsY; k++) {
+                    blend += weightsY[k] * getCellValue(cellX, firstCellY[0] + k);
+                }
+                rowBlend[cellX - minCellX] = blend;
+            }
+            for (int i = 0; i < rect.width; i++) {
+                double sum = 0.0;
+                final int weightOffset = i * maxOverlappedCells;
+                for (int k = 0; k < numCellsX[i]; k++) {
+                    sum += weightsX[weightOffset + k] * rowBlend[firstCellX[i] + k - minCellX];
+                }
+                values[index++] = (float) (sum * norm);
+            }
+        }
+    }
+
+    // number of pixels of the kernel at the given position falling into each cell, along one axis. Kernel pixels
+    // outside of the scene count for the border cells (BORDER_COPY). Returns the number of cells overlapped.
+    private static int computeKernelOverlaps(int position, int kernelSize, int cellSize, int sceneSize,
+                                             int[] firstCell, int[] weights, int index, int stride) {
+        final int start = position - kernelSize / 2;
+        final int end = start + kernelSize - 1;
+        final int clampedStart = Math.max(start, 0);
+        final int clampedEnd = Math.min(end, sceneSize - 1);
+        final int first = clampedStart / cellSize;
+        final int last = clampedEnd / cellSize;
+        for (int cell = first; cell <= last; cell++) {
+            final int overlapStart = Math.max(clampedStart, cell * cellSize);
+            final int overlapEnd = Math.min(clampedEnd, (cell + 1) * cellSize - 1);
+            weights[index * stride + cell - first] = overlapEnd - overlapStart + 1;
+        }
+        weights[index * stride] += clampedStart - start;
+        weights[index * stride + last - first] += end - clampedEnd;
+        firstCell[index] = first;
+        return last - first + 1;
+    }
+
+    private static class BoxFilteredImage extends SingleBandedOpImage {
+
+        private final ScapeMCellGrid cellGrid;
+        private final int kernelSize;
+
+        private BoxFilteredImage(ScapeMCellGrid cellGrid, int kernelSize) {
+            super(DataBuffer.TYPE_FLOAT, cellGrid.getSceneWidth(), cellGrid.getSceneHeight(),
+                  new Dimension(cellGrid.getCellWidth(), cellGrid.getCellHeight()), null, ResolutionLevel.MAXRES);
+            this.cellGrid = cellGrid;
+            this.kernelSize = kernelSize;
+        }
+
+        @Override
+        protected void computeRect(PlanarImage[] sources, WritableRaster dest, Rectangle destRect) {
+            final float[] elems = new float[destRect.width * destRect.height];
+            cellGrid.boxFilter(kernelSize, destRect, elems);
+            dest.setDataElements(destRect.x, destRect.y, destRect.width, destRect.height, elems);
+        }
+    }
+
+    private static class CellGridImage extends SingleBandedOpImage {
+
+        private final ScapeMCellGrid cellGrid;
+
+        private CellGridImage(ScapeMCellGrid cellGrid) {
+            super(DataBuffer.TYPE_FLOAT, cellGrid.getSceneWidth(), cellGrid.getSceneHeight(),
+                  new Dimension(cellGrid.getCellWidth(), cellGrid.getCellHeight()), null, ResolutionLevel.MAXRES);
+            this.cellGrid = cellGrid;
+            // refilling a tile is cheaper than keeping it
+            setTileCache(null);
+        }
+
+        @Override
+        protected void computeRect(PlanarImage[] sources, WritableRaster dest, Rectangle destRect) {
+            final float[] elems = new float[destRect.width * destRect.height];
+            int index = 0;
+            for (int y = destRect.y; y < destRect.y + destRect.height; y++) {
+                final int cellY = y / cellGrid.getCellHeight();
+                int x = destRect.x;
+                while (x < destRect.x + destRect.width) {
+                    final int cellX = x / cellGrid.getCellWidth();
+                    final int cellEndX = Math.min((cellX + 1) * cellGrid.getCellWidth(), destRect.x + destRect.width);
+                    final float value = cellGrid.getCellValue(cellX, cellY);
+                    Arrays.fill(elems, index, index + cellEndX - x, value);
+                    index += cellEndX - x;
+                    x = cellEndX;
+                }
+            }
+            dest.setDataElements(destRect.x, destRect.y, destRect.width, destRect.height, elems);
+        }
+    }
+}
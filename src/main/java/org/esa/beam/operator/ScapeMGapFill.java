@@ -3,15 +3,8 @@ package org.esa.beam.operator;
 import org.esa.beam.ScapeMConstants;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.Product;
-import org.esa.beam.jai.ResolutionLevel;
-import org.esa.beam.jai.SingleBandedOpImage;
 
-import javax.media.jai.PlanarImage;
-import java.awt.*;
-import java.awt.image.DataBuffer;
-import java.awt.image.WritableRaster;
 import java.io.IOException;
-import java.util.Map;
 
 /**
  * Class providing the visibility gap filling as used in IDL breadboard
@@ -29,30 +22,51 @@ public class ScapeMGapFill {
      */
     public static Product gapFill(Product product) throws IOException {
         final Band visibilityBand = product.getBand(ScapeMConstants.VISIBILITY_BAND_NAME);
-        final double noDataValue = visibilityBand.getNoDataValue();
         final int tileWidth = (int) product.getPreferredTileSize().getWidth();
         final int tileHeight = (int) product.getPreferredTileSize().getHeight();
-        final int numberOfCellColumns = (int) Math.ceil(product.getSceneRasterWidth() * 1.0 / tileWidth);
-        final int numberOfCellRows = (int) Math.ceil(product.getSceneRasterHeight() * 1.0 / tileHeight);
+        final ScapeMCellGrid cellGrid = new ScapeMCellGrid(product.getSceneRasterWidth(),
+                                                           product.getSceneRasterHeight(),
+                                                           tileWidth, tileHeight);
+        for (int y = 0; y < cellGrid.getNumCellRows(); y++) {
+            for (int x = 0; x < cellGrid.getNumCellColumns(); x++) {
+                cellGrid.setCellValue(x, y, visibilityBand.getSampleFloat(x * tileWidth, y * tileHeight));
+            }
+        }
+        visibilityBand.setSourceImage(gapFill(cellGrid, visibilityBand.getNoDataValue()).createImage());
+        return product;
+    }
+
+    /**
+     * Provides the gap-filled cell visibilities
+     *
+     * @param cellGrid    - the cell visibilities, usually containing gaps
+     * @param noDataValue - the no-data value of the visibility
+     * @return the gap-filled cell visibilities
+     */
+    public static ScapeMCellGrid gapFill(ScapeMCellGrid cellGrid, double noDataValue) {
+        final int numberOfCellColumns = cellGrid.getNumCellColumns();
+        final int numberOfCellRows = cellGrid.getNumCellRows();
         float[][] cellSamples = new float[numberOfCellColumns][numberOfCellRows];
         float areaMean = 0;
         int numberOfValidCells = 0;
         for (int y = 0; y < numberOfCellRows; y++) {
             for (int x = 0; x < numberOfCellColumns; x++) {
-                final float cellValue = visibilityBand.getSampleFloat(x * tileWidth, y * tileHeight);
+                final float cellValue = cellGrid.getCellValue(x, y);
                 if (Double.isNaN(cellValue) || cellValue == 0.0f) {
                     cellSamples[x][y] = (float) noDataValue;
                 } else {
                     cellSamples[x][y] = cellValue;
                 }
-                if (cellValue != noDataValue) {
-                    areaMean += cellValue;
+                if (cellSamples[x][y] != noDataValue) {
+                    areaMean += cellSamples[x][y];
                     numberOfValidCells++;
                 }
             }
         }
-        float[][] updatedCellValues = new float[numberOfCellColumns][numberOfCellRows];
-        areaMean /= numberOfValidCells;
+        final ScapeMCellGrid updatedCellGrid = new ScapeMCellGrid(cellGrid.getSceneWidth(), cellGrid.getSceneHeight(),
+                                                                  cellGrid.getCellWidth(), cellGrid.getCellHeight());
+        // without any valid cell, the gaps are kept
+        areaMean = numberOfValidCells > 0 ? areaMean / numberOfValidCells : (float) noDataValue;
         for (int y = 0; y < numberOfCellRows; y++) {
             for (int x = 0; x < numberOfCellColumns; x++) {
                 float cellSample = cellSamples[x][y];
@@ -74,17 +88,13 @@ public class ScapeMGapFill {
                     if (interpolationValue == 0) {
                         interpolationValue = areaMean;
                     }
-                    updatedCellValues[x][y] = interpolationValue;
+                    updatedCellGrid.setCellValue(x, y, interpolationValue);
                 } else {
-                    updatedCellValues[x][y] = cellSamples[x][y];
+                    updatedCellGrid.setCellValue(x, y, cellSample);
                 }
             }
         }
-        ScapeMGapFilledImage image = new ScapeMGapFilledImage(DataBuffer.TYPE_FLOAT, product.getSceneRasterWidth(), product.getSceneRasterHeight(),
-                                                              new Dimension(tileWidth, tileHeight), null, ResolutionLevel.MAXRES,
-                                                              updatedCellValues);
-        visibilityBand.setSourceImage(image);
-        return product;
+        return updatedCellGrid;
     }
 
     /* package local for testing*/
@@ -143,46 +153,4 @@ public class ScapeMGapFill {
         return mean;
     }
 
-
-
-    private static class ScapeMGapFilledImage extends SingleBandedOpImage {
-        private final int tileHeight;
-        private final int tileWidth;
-        private final float[][] updatedCellValues;
-
-        /**
-         * Used to construct an image.
-         *
-         * @param dataBufferType The data type.
-         * @param sourceWidth    The width of the level 0 image.
-         * @param sourceHeight   The height of the level 0 image.
-         * @param tileSize       The tile size for this image.
-         * @param configuration  The configuration map (can be null).
-         * @param level          The resolution level.
-         */
-        protected ScapeMGapFilledImage(int dataBufferType, int sourceWidth, int sourceHeight, Dimension tileSize,
-                                       Map configuration, ResolutionLevel level, float[][] updatedCellValues) {
-            super(dataBufferType, sourceWidth, sourceHeight, tileSize, configuration, level);
-            tileHeight = tileSize.height;
-            tileWidth = tileSize.width;
-            this.updatedCellValues = updatedCellValues;
-        }
-
-        @Override
-        protected void computeRect(PlanarImage[] sources, WritableRaster dest, Rectangle destRect) {
-            float[] elems = new float[destRect.width * destRect.height];
-            int index = 0;
-            for (int y = destRect.y; y < destRect.height + destRect.y; y++) {
-                int yCellIndex = y / tileHeight;
-                for (int x = destRect.x; x < destRect.width + destRect.x; x++) {
-                    int xCellIndex = x / tileWidth;
-                    float value = updatedCellValues[xCellIndex][yCellIndex];
-                    elems[index++] = value;
-                }
-            }
-            dest.setDataElements(destRect.x, destRect.y, destRect.width, destRect.height, elems);
-
-        }
-    }
-
 }
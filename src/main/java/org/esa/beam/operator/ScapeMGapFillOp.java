@@ -1,22 +1,19 @@
 package org.esa.beam.operator;
 
-import com.bc.ceres.core.ProgressMonitor;
 import org.esa.beam.ScapeMConstants;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.datamodel.ProductData;
 import org.esa.beam.framework.gpf.OperatorException;
 import org.esa.beam.framework.gpf.OperatorSpi;
-import org.esa.beam.framework.gpf.Tile;
 import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
 import org.esa.beam.framework.gpf.annotations.TargetProduct;
-import org.esa.beam.util.RectangleExtender;
-
-import java.awt.*;
 
 /**
- * Operator providing the visibility gap filling as used in IDL breadboard
+ * Operator providing the visibility gap filling as used in IDL breadboard.
+ * The gaps are filled once over the whole cell grid, when the first target tile is requested: the cell grid is
+ * completed first, with the cell rows computed in parallel, and then gap-filled by {@link ScapeMGapFill}.
  *
  * @author Tonio Fincke, Olaf Danne
  */
@@ -36,94 +33,43 @@ public class ScapeMGapFillOp extends ScapeMMerisBasisOp {
     @TargetProduct
     private Product targetProduct;
 
-    private RectangleExtender rectCalculator;
-
-    private int pixelsPerCell;
-    private Band gapVisibilityBand;
-    private double visImageMean;
-    private int tileWidth;
-    private int tileHeight;
-    private int numberOfCellColumns;
-    private int numberOfCellRows;
+    // the cell visibilities with gaps, read from the gap product if not set
+    private ScapeMCellGrid cellVisibilityGrid;
 
+    private GapFilledGrid gapFilledGrid;
 
     @Override
     public void initialize() throws OperatorException {
-        if (sourceProduct.getProductType().contains("_RR")) {
-            pixelsPerCell = ScapeMConstants.RR_PIXELS_PER_CELL;
-        } else {
-            pixelsPerCell = ScapeMConstants.FR_PIXELS_PER_CELL;
+        final Band gapVisibilityBand = gapProduct.getBand(ScapeMConstants.VISIBILITY_BAND_NAME);
+        if (cellVisibilityGrid == null) {
+            cellVisibilityGrid = new BandCellGrid(gapVisibilityBand,
+                                                  gapProduct.getSceneRasterWidth(),
+                                                  gapProduct.getSceneRasterHeight(),
+                                                  (int) gapProduct.getPreferredTileSize().getWidth(),
+                                                  (int) gapProduct.getPreferredTileSize().getHeight());
         }
-
-        rectCalculator = new RectangleExtender(
-                new Rectangle(sourceProduct.getSceneRasterWidth(),
-                        sourceProduct.getSceneRasterHeight()),
-                3 * pixelsPerCell,
-                3 * pixelsPerCell);
-
-        tileWidth = (int) gapProduct.getPreferredTileSize().getWidth();
-        tileHeight = (int) gapProduct.getPreferredTileSize().getHeight();
-        numberOfCellColumns = (int) Math.ceil(gapProduct.getSceneRasterWidth() * 1.0 / tileWidth);
-        numberOfCellRows = (int) Math.ceil(gapProduct.getSceneRasterHeight() * 1.0 / tileHeight);
+        gapFilledGrid = new GapFilledGrid(cellVisibilityGrid, gapVisibilityBand.getNoDataValue());
 
         createTargetProduct();
-
-        gapVisibilityBand = gapProduct.getBand(ScapeMConstants.VISIBILITY_BAND_NAME);
-        visImageMean = 0.0;
-//        visImageMean = getVisibilityImageMean();
     }
 
-    @Override
-    public void computeTile(Band targetBand, Tile targetTile, ProgressMonitor pm) throws OperatorException {
-
-        final double noDataValue = gapVisibilityBand.getNoDataValue();
-        final Rectangle targetRect = targetTile.getRectangle();
-        final Rectangle sourceRect = rectCalculator.extend(targetRect);
-
-        final Tile sourceVisibilityTile = getSourceTile(gapVisibilityBand, sourceRect);
-
-        final int tileIndexX = targetRect.x / pixelsPerCell;
-        final int tileIndexY = targetRect.y / pixelsPerCell;
-
-        final double visCellOrigValue = sourceVisibilityTile.getSampleDouble(targetRect.x, targetRect.y);
-
-        if (isVisibilityValid(visCellOrigValue)) {
-            setCellVisibilitySamples(targetTile, targetRect, visCellOrigValue);
-        } else {
-            // do gap filling by interpolation
-            final int minimumDistanceToEdge = getMinimumDistanceToEdge(tileIndexX,
-                    tileIndexY,
-                    numberOfCellColumns,
-                    numberOfCellRows);
-
-            double visInterpolValue;
-            if (minimumDistanceToEdge >= 2) {
-                visInterpolValue = interpolateOverRegion(sourceVisibilityTile, tileIndexX, tileIndexY, 2, noDataValue);
-            } else if (minimumDistanceToEdge == 1) {
-                visInterpolValue = interpolateOverRegion(sourceVisibilityTile, tileIndexX, tileIndexY, 1, noDataValue);
-            } else {
-                visInterpolValue = interpolateAtCornerOrBorder(numberOfCellColumns, numberOfCellRows,
-                        sourceVisibilityTile, tileIndexX, tileIndexY, noDataValue);
-            }
-            if (visInterpolValue == 0 && minimumDistanceToEdge >= 3) {
-                visInterpolValue = interpolateOverRegion(sourceVisibilityTile, tileIndexX, tileIndexY, 3, noDataValue);
-            }
-            if (visInterpolValue == 0) {
-                synchronized (this) {
-                    if (visImageMean == 0.0) {
-                        visImageMean = getVisibilityImageMean();
-                    }
-                }
-                visInterpolValue = visImageMean;
-            }
-
-            setCellVisibilitySamples(targetTile, targetRect, visInterpolValue);
-        }
+    /**
+     * Sets the cell visibilities to be gap-filled, instead of reading them from the gap product.
+     * Must be called before the target product is requested.
+     *
+     * @param cellVisibilityGrid - the cell visibilities, usually containing gaps
+     */
+    public void setCellVisibilityGrid(ScapeMCellGrid cellVisibilityGrid) {
+        this.cellVisibilityGrid = cellVisibilityGrid;
     }
 
-     /* package local for testing*/
-    static int getMinimumDistanceToEdge(int x, int y, int numberOfCellColumns, int numberOfCellRows) {
-        return Math.min(x, Math.min(y, Math.min(numberOfCellColumns - 1 - x, numberOfCellRows - 1 - y)));
+    /**
+     * Provides the gap-filled cell visibilities. The gaps are filled when a cell value is first accessed.
+     *
+     * @return the gap-filled cell visibilities
+     */
+    public ScapeMCellGrid getGapFilledGrid() {
+        return gapFilledGrid;
     }
 
     private void createTargetProduct() throws OperatorException {
@@ -132,83 +78,70 @@ public class ScapeMGapFillOp extends ScapeMMerisBasisOp {
         Band visibilityBand = targetProduct.addBand(ScapeMConstants.VISIBILITY_BAND_NAME, ProductData.TYPE_FLOAT32);
         visibilityBand.setNoDataValue(ScapeMConstants.VISIBILITY_NODATA_VALUE);
         visibilityBand.setValidPixelExpression(ScapeMConstants.SCAPEM_VALID_EXPR);
+        // the gap-filled cell grid up-sampled to the full resolution
+        visibilityBand.setSourceImage(gapFilledGrid.createImage());
     }
 
-    private double getVisibilityImageMean() {
-        double areaMean = 0.0;
-        int numberOfValidCells = 0;
-        for (int y = 0; y < numberOfCellRows; y++) {
-            for (int x = 0; x < numberOfCellColumns; x++) {
-                final double cellValue = gapVisibilityBand.getSampleFloat(x * tileWidth, y * tileHeight);
-                if (isVisibilityValid(cellValue)) {
-                    areaMean += cellValue;
-                    numberOfValidCells++;
-                }
-            }
+    // cell grid gap-filling the whole source grid on first access. The first access, usually from computeRect of a
+    // target tile, computes the whole cell visibility grid while holding the grid monitor: all other tile requests
+    // block on it meanwhile, as they need the gap-filled grid anyway.
+    /* package local for testing*/
+    static class GapFilledGrid extends ScapeMCellGrid {
+
+        private final ScapeMCellGrid sourceGrid;
+        private final double noDataValue;
+        private volatile boolean filled;
+
+        GapFilledGrid(ScapeMCellGrid sourceGrid, double noDataValue) {
+            super(sourceGrid.getSceneWidth(), sourceGrid.getSceneHeight(),
+                  sourceGrid.getCellWidth(), sourceGrid.getCellHeight());
+            this.sourceGrid = sourceGrid;
+            this.noDataValue = noDataValue;
         }
-        return areaMean / numberOfValidCells;
-    }
-
-    private boolean isVisibilityValid(double visValue) {
-        return !Double.isNaN(visValue) && visValue != ScapeMConstants.VISIBILITY_NODATA_VALUE;
-    }
 
-    private void setCellVisibilitySamples(Tile targetTile, Rectangle targetRect, double visibility) {
-        for (int y = targetRect.y; y < targetRect.y + targetRect.height; y++) {
-            for (int x = targetRect.x; x < targetRect.x + targetRect.width; x++) {
-                targetTile.setSample(x, y, visibility);
+        @Override
+        public float getCellValue(int cellX, int cellY) {
+            if (!filled) {
+                fill();
             }
+            return super.getCellValue(cellX, cellY);
         }
-    }
 
-    private float interpolateOverRegion(Tile visSourceTile, int x, int y, int neighboringDistance, double noDataValue) {
-        float meanValue = 0;
-        int validNeighboringCellsCounter = 0;
-        for (int i = -neighboringDistance; i <= neighboringDistance; i++) {
-            for (int j = -neighboringDistance; j <= neighboringDistance; j++) {
-                final int xAssign = x + i;
-                final int yAssign = y + j;
-                final double visValue = visSourceTile.getSampleDouble(xAssign * tileWidth, yAssign * tileHeight);
-                if (visValue != noDataValue) {
-                    meanValue += visValue;
-                    validNeighboringCellsCounter++;
+        private synchronized void fill() {
+            if (filled) {
+                return;
+            }
+            try {
+                sourceGrid.readAllCells();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OperatorException("Interrupted during visibility gap filling", e);
+            }
+            final ScapeMCellGrid filledGrid = ScapeMGapFill.gapFill(sourceGrid, noDataValue);
+            for (int y = 0; y < getNumCellRows(); y++) {
+                for (int x = 0; x < getNumCellColumns(); x++) {
+                    setCellValue(x, y, filledGrid.getCellValue(x, y));
                 }
             }
+            filled = true;
         }
-        if (validNeighboringCellsCounter > 0) {
-            meanValue /= validNeighboringCellsCounter;
-        }
-        return meanValue;
     }
 
-    private float interpolateAtCornerOrBorder(int numberOfCellColumns, int numberOfCellRows, Tile visSourceTile,
-                                              int x, int y, double noDataValue) {
-        float mean = 0;
-        int validCellsCounter = 0;
-
-        for (int i = -1; i <= 1; i++) {
-            for (int j = -1; j <= 1; j++) {
-                final int xAssign = x + i;
-                final int yAssign = y + j;
-                final int minimumDistanceToEdgeAssign
-                        = getMinimumDistanceToEdge(xAssign, yAssign, numberOfCellColumns, numberOfCellRows);
-                if (minimumDistanceToEdgeAssign >= 0) {
-                    final double visValue = visSourceTile.getSampleDouble(xAssign * tileWidth, yAssign * tileHeight);
-                    if (visValue != noDataValue) {
-                        mean += visValue;
-                        validCellsCounter++;
-                        if (minimumDistanceToEdgeAssign == 0 && (i == 0 || j == 0)) {
-                            mean += visValue;
-                            validCellsCounter++;
-                        }
-                    }
-                }
-            }
+    // cell grid reading the cell values from a band, one pixel per cell
+    /* package local for testing*/
+    static class BandCellGrid extends ScapeMCellGrid {
+
+        private final Band band;
+
+        BandCellGrid(Band band, int sceneWidth, int sceneHeight, int cellWidth, int cellHeight) {
+            super(sceneWidth, sceneHeight, cellWidth, cellHeight);
+            this.band = band;
         }
-        if (validCellsCounter > 0) {
-            mean /= validCellsCounter;
+
+        @Override
+        public float getCellValue(int cellX, int cellY) {
+            return band.getSampleFloat(cellX * getCellWidth(), cellY * getCellHeight());
         }
-        return mean;
     }
 
     public static class Spi extends OperatorSpi {
@@ -1,37 +1,61 @@
 package org.esa.beam.operator;
 
-import org.esa.beam.util.math.LookupTable;
+import org.esa.beam.io.AtmParamLookupTable;
+import org.esa.beam.io.AtmParamSlice;
 
 /**
  * SCAPE-M lookup table object.
+ * Instances are immutable and shared between operators (see {@link ScapeMLutRegistry}),
+ * so the arrays returned by the getters must not be modified.
  *
  * @author Tonio Fincke, Olaf Danne
  */
 public class ScapeMLut {
-    private LookupTable atmParamLut;
+    private final AtmParamLookupTable atmParamLut;
 
-    private double hsfMin;
-    private double hsfMax;
-    private double visMin;
-    private double visMax;
-    private double cwvMin;
-    private double cwvMax;
+    private final double hsfMin;
+    private final double hsfMax;
+    private final double visMin;
+    private final double visMax;
+    private final double cwvMin;
+    private final double cwvMax;
 
-    private double[] visArrayLUT;
-    private double[] hsfArrayLUT;
-    private double[] cwvArrayLUT;
+    private final double[] visArrayLUT;
+    private final double[] hsfArrayLUT;
+    private final double[] cwvArrayLUT;
 
-    public ScapeMLut(LookupTable atmParamLut) {
+    public ScapeMLut(AtmParamLookupTable atmParamLut) {
         this.atmParamLut = atmParamLut;
-        setHsf();
-        setVis();
-        setCwv();
+
+        hsfArrayLUT = atmParamLut.getDimension(3).getSequence();
+        hsfMin = hsfArrayLUT[0] + 0.001;
+        hsfMax = hsfArrayLUT[hsfArrayLUT.length - 1] - 0.001;
+
+        visArrayLUT = atmParamLut.getDimension(4).getSequence();
+        visMin = visArrayLUT[0] + 0.001;
+        visMax = visArrayLUT[visArrayLUT.length - 1] - 0.001;
+
+        cwvArrayLUT = atmParamLut.getDimension(5).getSequence();
+        cwvMin = cwvArrayLUT[0] + 0.001;
+        cwvMax = cwvArrayLUT[cwvArrayLUT.length - 1] - 0.001;
     }
 
-    public LookupTable getAtmParamLut() {
+    public AtmParamLookupTable getAtmParamLut() {
         return atmParamLut;
     }
 
+    /**
+     * Collapses the atmospheric LUT to the given geometry, for cheap hsf/vis/cwv lookups within a cell.
+     *
+     * @param vza - view zenith angle
+     * @param sza - sun zenith angle
+     * @param raa - relative azimuth angle
+     * @return the geometry slice
+     */
+    public AtmParamSlice createGeometrySlice(double vza, double sza, double raa) {
+        return AtmParamSlice.create(atmParamLut, vza, sza, raa);
+    }
+
     public double getHsfMin() {
         return hsfMin;
     }
@@ -68,22 +92,4 @@ public class ScapeMLut {
         return hsfArrayLUT;
     }
 
-    private void setHsf() {
-        hsfArrayLUT = atmParamLut.getDimension(3).getSequence();
-        hsfMin = hsfArrayLUT[0] + 0.001;
-        hsfMax = hsfArrayLUT[hsfArrayLUT.length - 1] - 0.001;
-    }
-
-    private void setVis() {
-        visArrayLUT = atmParamLut.getDimension(4).getSequence();
-        visMin = visArrayLUT[0] + 0.001;
-        visMax = visArrayLUT[visArrayLUT.length - 1] - 0.001;
-    }
-
-    private void setCwv() {
-        cwvArrayLUT = atmParamLut.getDimension(5).getSequence();
-        cwvMin = cwvArrayLUT[0] + 0.001;
-        cwvMax = cwvArrayLUT[cwvArrayLUT.length - 1] - 0.001;
-    }
-
 }
@@ -0,0 +1,106 @@
+package org.esa.beam.operator;
+
+import org.esa.beam.io.LutAccess;
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide registry of SCAPE-M lookup tables.
+ * Tables are loaded once and shared between all operator instances in the JVM. They are held by
+ * soft references, so that the garbage collector may reclaim them under memory pressure, in which
+ * case they are loaded again on the next request.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class ScapeMLutRegistry {
+
+    public static final String MERIS_LUT_NAME = "SCAPEM_LUT_MERIS";
+
+    private static final ScapeMLutRegistry INSTANCE = new ScapeMLutRegistry();
+
+    private final Map<String, SoftReference<ScapeMLut>> luts;
+    private long loadCount;
+    private long hitCount;
+
+    /* package local for testing*/
+    ScapeMLutRegistry() {
+        luts = new HashMap<String, SoftReference<ScapeMLut>>();
+    }
+
+    public static ScapeMLutRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Provides the shared MERIS atmospheric lookup table, loading it if not yet available.
+     *
+     * @return the shared lookup table
+     * @throws IOException - if the table cannot be read
+     */
+    public ScapeMLut getMerisLut() throws IOException {
+        return getLut(MERIS_LUT_NAME, new Loader() {
+            @Override
+            public ScapeMLut load() throws IOException {
+                return new ScapeMLut(LutAccess.getAtmParmsLookupTable());
+            }
+        });
+    }
+
+    /**
+     * Provides the lookup table registered under the given name. If the table is not registered
+     * or has been reclaimed, it is loaded with the given loader and registered.
+     *
+     * @param name   - the lookup table name
+     * @param loader - the loader used if the table is not available
+     * @return the shared lookup table
+     * @throws IOException - if the table cannot be loaded
+     */
+    synchronized ScapeMLut getLut(String name, Loader loader) throws IOException {
+        final SoftReference<ScapeMLut> reference = luts.get(name);
+        ScapeMLut lut = reference != null ? reference.get() : null;
+        if (lut != null) {
+            hitCount++;
+            return lut;
+        }
+        lut = loader.load();
+        loadCount++;
+        luts.put(name, new SoftReference<ScapeMLut>(lut));
+        BeamLogManager.getSystemLogger().info("SCAPE-M lookup table '" + name + "' loaded (" + getStatistics() + ")");
+        return lut;
+    }
+
+    /**
+     * @return the number of lookup table loads since startup or the last {@link #clear()}
+     */
+    public synchronized long getLoadCount() {
+        return loadCount;
+    }
+
+    /**
+     * @return the number of requests served from the registry since startup or the last {@link #clear()}
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized String getStatistics() {
+        return "loads: " + loadCount + ", hits: " + hitCount;
+    }
+
+    /**
+     * Removes all registered lookup tables and resets the statistics.
+     */
+    public synchronized void clear() {
+        luts.clear();
+        loadCount = 0;
+        hitCount = 0;
+    }
+
+    interface Loader {
+        ScapeMLut load() throws IOException;
+    }
+}
@@ -10,6 +10,7 @@ import org.esa.beam.framework.gpf.Tile;
 import org.esa.beam.util.ProductUtils;
 
 import java.awt.*;
+import java.io.IOException;
 
 /**
  * A copy of MerisBasisOp, but suppressing the 'copyAllTiePoints' option
@@ -96,6 +97,19 @@ public abstract class ScapeMMerisBasisOp extends Operator {
         return altitudeTile;
     }
 
+    /**
+     * Provides the atmospheric LUT shared by all SCAPE-M operators in this JVM
+     *
+     * @return the shared LUT
+     */
+    ScapeMLut getSharedScapeMLut() {
+        try {
+            return ScapeMLutRegistry.getInstance().getMerisLut();
+        } catch (IOException e) {
+            throw new OperatorException("Cannot read atmospheric LUT: ", e);
+        }
+    }
+
     /**
      * Copies the tie point data.
      *
@@ -11,10 +11,8 @@ import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
 import org.esa.beam.framework.gpf.annotations.TargetProduct;
 import org.esa.beam.idepix.algorithms.scapem.FubScapeMOp;
-import org.esa.beam.io.LutAccess;
 import org.esa.beam.util.ProductUtils;
 
-import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -65,6 +63,33 @@ public class ScapeMOp extends ScapeMMerisBasisOp {
                defaultValue = "false")
     private boolean outputReflBand2;
 
+    @Parameter(description = "Minimisation method of the cell visibility refinement",
+               label = "Visibility refinement method",
+               valueSet = {ScapeMConstants.VIS_REFINEMENT_POWELL, ScapeMConstants.VIS_REFINEMENT_LEVENBERG_MARQUARDT,
+                       ScapeMConstants.VIS_REFINEMENT_VARIABLE_PROJECTION, ScapeMConstants.VIS_REFINEMENT_BOBYQA,
+                       ScapeMConstants.VIS_REFINEMENT_NELDER_MEAD},
+               defaultValue = ScapeMConstants.VIS_REFINEMENT_POWELL)
+    private String visRefinementMethod;
+
+    @Parameter(description = "Maximum number of reference pixel sets of a cell used in the visibility refinement",
+               label = "Maximum number of reference pixel sets",
+               interval = "[1,10]",
+               defaultValue = "1")
+    private int maxRefSets;
+
+    @Parameter(description = "If set, the visibility refinement of a cell starts from the solution of the " +
+                             "left neighbouring cell, which is computed first, and from the default start only if " +
+                             "that one fails",
+               label = "Warm start of the visibility refinement",
+               defaultValue = "false")
+    private boolean warmStartRefinement;
+
+    @Parameter(description = "If set, the warm start also takes over the final Powell directions of the " +
+                             "left neighbouring cell. Saves little, and may get single cells caught in a wrong minimum",
+               label = "Warm start with Powell directions",
+               defaultValue = "false")
+    private boolean warmStartDirections;
+
     @SourceProduct(alias = "MERIS_L1b", description = "MERIS L1B product")
     private Product sourceProduct;
 
@@ -96,28 +121,38 @@ public class ScapeMOp extends ScapeMMerisBasisOp {
         scapeMVisibilityOp.setSourceProduct("cloud", cloudProduct);
         scapeMVisibilityOp.setParameter("computeOverWater", computeOverWater);
         scapeMVisibilityOp.setParameter("useDEM", useDEM);
+        scapeMVisibilityOp.setParameter("visRefinementMethod", visRefinementMethod);
+        scapeMVisibilityOp.setParameter("maxRefSets", maxRefSets);
+        scapeMVisibilityOp.setParameter("warmStartRefinement", warmStartRefinement);
+        scapeMVisibilityOp.setParameter("warmStartDirections", warmStartDirections);
         scapeMVisibilityOp.setScapeMLut(scapeMLut);
         Product cellVisibilityProduct = scapeMVisibilityOp.getTargetProduct();
 
         // fill gaps...
         Product gapFilledVisibilityProduct;
+        ScapeMCellGrid gapFilledVisibilityGrid;
         if (skipGapFilling) {
             gapFilledVisibilityProduct = cellVisibilityProduct;
+            gapFilledVisibilityGrid = scapeMVisibilityOp.getCellVisibilityGrid();
         } else {
-            // todo: improve gap filling performance!
             final ScapeMGapFillOp scapeMGapFillOp = new ScapeMGapFillOp();
             scapeMGapFillOp.setSourceProduct("source", sourceProduct);
             scapeMGapFillOp.setSourceProduct("gap", cellVisibilityProduct);
+            // gap filling on the cell grid, not on the full resolution visibility image
+            scapeMGapFillOp.setCellVisibilityGrid(scapeMVisibilityOp.getCellVisibilityGrid());
             gapFilledVisibilityProduct = scapeMGapFillOp.getTargetProduct();
+            gapFilledVisibilityGrid = scapeMGapFillOp.getGapFilledGrid();
         }
 
         Product smoothedVisibilityProduct;
         if (skipVisibilitySmoothing) {
             smoothedVisibilityProduct = gapFilledVisibilityProduct;
         } else {
-            Map<String, Product> smoothInput = new HashMap<String, Product>(4);
-            smoothInput.put("source", gapFilledVisibilityProduct);
-            smoothedVisibilityProduct = GPF.createProduct(OperatorSpi.getOperatorAlias(ScapeMSmoothSimpleKernelOp.class), GPF.NO_PARAMS, smoothInput);
+            final ScapeMSmoothSimpleKernelOp scapeMSmoothOp = new ScapeMSmoothSimpleKernelOp();
+            scapeMSmoothOp.setSourceProduct("source", gapFilledVisibilityProduct);
+            // smoothing on the cell grid, not on the full resolution visibility image
+            scapeMSmoothOp.setCellVisibilityGrid(gapFilledVisibilityGrid);
+            smoothedVisibilityProduct = scapeMSmoothOp.getTargetProduct();
         }
 
         // convert visibility to AOT
@@ -163,11 +198,7 @@ public class ScapeMOp extends ScapeMMerisBasisOp {
     }
 
     private void readAuxdata() {
-        try {
-            scapeMLut = new ScapeMLut(LutAccess.getAtmParmsLookupTable());
-        } catch (IOException e) {
-            throw new OperatorException("Cannot read atmospheric LUT: ", e);
-        }
+        scapeMLut = getSharedScapeMLut();
     }
 
     public static class Spi extends OperatorSpi {
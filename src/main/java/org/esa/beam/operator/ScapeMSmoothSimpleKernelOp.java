@@ -12,14 +12,14 @@ import org.esa.beam.util.ProductUtils;
 
 import javax.media.jai.BorderExtender;
 import javax.media.jai.JAI;
-import javax.media.jai.KernelJAI;
-import javax.media.jai.RenderedOp;
-import javax.media.jai.operator.ConvolveDescriptor;
+import javax.media.jai.operator.BoxFilterDescriptor;
 import java.awt.*;
 import java.awt.image.RenderedImage;
 
 /**
- * Operator for smoothing 30km-cell visibility onto target grid, using a JAI convolution with simple constant kernel.
+ * Operator for smoothing 30km-cell visibility onto target grid, using a convolution with simple constant kernel.
+ * If the cell visibilities are given as cell grid, the convolution is computed from the cell values directly,
+ * otherwise by a JAI box filter on the source image.
  *
  * @author olafd
  */
@@ -38,6 +38,9 @@ public class ScapeMSmoothSimpleKernelOp extends ScapeMMerisBasisOp {
 
     private int pixelsPerCell;
 
+    // the cell visibilities, if available as cell grid
+    private ScapeMCellGrid cellVisibilityGrid;
+
     @Override
     public void initialize() throws OperatorException {
 
@@ -50,6 +53,16 @@ public class ScapeMSmoothSimpleKernelOp extends ScapeMMerisBasisOp {
         createTargetProduct();
     }
 
+    /**
+     * Sets the cell visibilities of the source product as cell grid, so that the smoothing does not need to go
+     * through the full resolution source image. Must be called before the target product is requested.
+     *
+     * @param cellVisibilityGrid - the cell visibilities
+     */
+    public void setCellVisibilityGrid(ScapeMCellGrid cellVisibilityGrid) {
+        this.cellVisibilityGrid = cellVisibilityGrid;
+    }
+
     private void createTargetProduct() throws OperatorException {
         targetProduct = new Product(sourceProduct.getName(),
                                     sourceProduct.getProductType(),
@@ -65,23 +78,28 @@ public class ScapeMSmoothSimpleKernelOp extends ScapeMMerisBasisOp {
         ProductUtils.copyFlagBands(sourceProduct, targetProduct, true);
         ProductUtils.copyMasks(sourceProduct, targetProduct);
 
-        Band b = sourceProduct.getBand(ScapeMConstants.VISIBILITY_BAND_NAME);
-        RenderedImage sourceImage = b.getSourceImage();
-
         final int kernelSize = pixelsPerCell;
-        float[] kernelMatrix = new float[kernelSize * kernelSize];
-        for (int k = 0; k < kernelMatrix.length; k++) {
-            kernelMatrix[k] = 1.0f / (kernelSize * kernelSize);
+        RenderedImage targetImage;
+        if (cellVisibilityGrid != null) {
+            // at most four cells per pixel instead of kernelSize x kernelSize pixels
+            targetImage = cellVisibilityGrid.createBoxFilteredImage(kernelSize);
+        } else {
+            Band b = sourceProduct.getBand(ScapeMConstants.VISIBILITY_BAND_NAME);
+            targetImage = createBoxFilteredImage(b.getSourceImage(), kernelSize);
         }
-        KernelJAI kernel = new KernelJAI(kernelSize, kernelSize, kernelMatrix);
-        final BorderExtender borderExtender = BorderExtender.createInstance(BorderExtender.BORDER_COPY);
-        RenderingHints testHints = new RenderingHints(JAI.KEY_BORDER_EXTENDER, borderExtender);
-        RenderedOp targetImage = ConvolveDescriptor.create(sourceImage, kernel, testHints);
 
         Band targetBand = ProductUtils.copyBand(ScapeMConstants.VISIBILITY_BAND_NAME, sourceProduct, targetProduct, false);
         targetBand.setSourceImage(targetImage);
     }
 
+    /* package local for testing*/
+    static RenderedImage createBoxFilteredImage(RenderedImage sourceImage, int kernelSize) {
+        // separable, kernel element at kernelSize / 2 as for KernelJAI
+        final BorderExtender borderExtender = BorderExtender.createInstance(BorderExtender.BORDER_COPY);
+        RenderingHints testHints = new RenderingHints(JAI.KEY_BORDER_EXTENDER, borderExtender);
+        return BoxFilterDescriptor.create(sourceImage, kernelSize, kernelSize, kernelSize / 2, kernelSize / 2, testHints);
+    }
+
     public static class Spi extends OperatorSpi {
 
         public Spi() {
@@ -17,6 +17,7 @@ import org.esa.beam.framework.gpf.annotations.OperatorMetadata;
 import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
 import org.esa.beam.framework.gpf.annotations.TargetProduct;
+import org.esa.beam.util.TileAccess;
 
 import java.awt.*;
 
@@ -56,6 +57,9 @@ public class ScapeMVis2AotOp extends ScapeMMerisBasisOp {
     @Override
     public void initialize() throws OperatorException {
 
+        if (scapeMLut == null) {
+            scapeMLut = getSharedScapeMLut();
+        }
         if (useDEM) {
             final ElevationModelDescriptor demDescriptor = ElevationModelRegistry.getInstance().getDescriptor(demName);
             if (demDescriptor == null || !demDescriptor.isDemInstalled()) {
@@ -80,29 +84,35 @@ public class ScapeMVis2AotOp extends ScapeMMerisBasisOp {
         Tile visibilityTile = getSourceTile(visibilityBand, targetRect);
 
 
-        double[][] hsurfArrayCell;
+        final CellBuffer cellBuffer = new CellBuffer(targetRect, 0);
         pm.beginTask("Processing frame...", targetRect.height + 1);
         try {
             if (useDEM && altitudeTile == null) {
-                hsurfArrayCell = ScapeMAlgorithm.getHsurfArrayCell(targetRect, geoCoding, elevationModel, scapeMLut);
+                ScapeMAlgorithm.fillHsurfCell(cellBuffer, geoCoding, elevationModel, scapeMLut);
             } else {
-                hsurfArrayCell = ScapeMAlgorithm.getHsurfArrayCell(targetRect, geoCoding, altitudeTile, scapeMLut);
+                ScapeMAlgorithm.fillHsurfCell(cellBuffer, geoCoding, altitudeTile, scapeMLut);
             }
 
+            final int cellSize = targetRect.width * targetRect.height;
+            final double[] visibilityCell = new double[cellSize];
+            TileAccess.readSamples(visibilityTile, targetRect, visibilityCell);
+            final float[] hsurfCell = cellBuffer.getHsurf();
+            final float[] aot550Cell = new float[cellSize];
+            int index = 0;
             for (int y = targetRect.y; y < targetRect.y + targetRect.height; y++) {
                 for (int x = targetRect.x; x < targetRect.x + targetRect.width; x++) {
-                    final double visibility = visibilityTile.getSampleDouble(x, y);
+                    final double visibility = visibilityCell[index];
                     if (visibility != ScapeMConstants.VISIBILITY_NODATA_VALUE) {
-                        final double aot550 = ScapeMAlgorithm.getCellAot550(visibility,
-                                hsurfArrayCell[x-targetRect.x][y-targetRect.y],
-                                scapeMLut);
-                        targetTile.setSample(x, y, aot550);
+                        final double aot550 = ScapeMAlgorithm.getCellAot550(visibility, hsurfCell[index], scapeMLut);
+                        aot550Cell[index] = (float) aot550;
                     } else {
-                        targetTile.setSample(x, y, ScapeMConstants.AOT_NODATA_VALUE);
+                        aot550Cell[index] = (float) ScapeMConstants.AOT_NODATA_VALUE;
                     }
+                    index++;
                 }
                 pm.worked(1);
             }
+            TileAccess.writeSamples(targetTile, targetRect, aot550Cell);
         } catch (Exception e) {
             // todo
             e.printStackTrace();
@@ -1,6 +1,5 @@
 package org.esa.beam.operator;
 
-import com.bc.ceres.core.ProgressMonitor;
 import org.esa.beam.ScapeMConstants;
 import org.esa.beam.dataio.envisat.EnvisatConstants;
 import org.esa.beam.framework.datamodel.Band;
@@ -21,6 +20,7 @@ import org.esa.beam.framework.gpf.annotations.TargetProduct;
 import org.esa.beam.meris.brr.HelperFunctions;
 import org.esa.beam.util.ClearLandAndWaterPixelStrategy;
 import org.esa.beam.util.ClearLandPixelStrategy;
+import org.esa.beam.util.ClearPixelMask;
 import org.esa.beam.util.ClearPixelStrategy;
 import org.esa.beam.util.ProductUtils;
 
@@ -52,6 +52,33 @@ public class ScapeMVisibilityOp extends ScapeMMerisBasisOp {
                defaultValue = "false")
     private boolean useDEM;
 
+    @Parameter(description = "Minimisation method of the cell visibility refinement",
+               label = "Visibility refinement method",
+               valueSet = {ScapeMConstants.VIS_REFINEMENT_POWELL, ScapeMConstants.VIS_REFINEMENT_LEVENBERG_MARQUARDT,
+                       ScapeMConstants.VIS_REFINEMENT_VARIABLE_PROJECTION, ScapeMConstants.VIS_REFINEMENT_BOBYQA,
+                       ScapeMConstants.VIS_REFINEMENT_NELDER_MEAD},
+               defaultValue = ScapeMConstants.VIS_REFINEMENT_POWELL)
+    private String visRefinementMethod;
+
+    @Parameter(description = "Maximum number of reference pixel sets of a cell used in the visibility refinement",
+               label = "Maximum number of reference pixel sets",
+               interval = "[1,10]",
+               defaultValue = "1")
+    private int maxRefSets;
+
+    @Parameter(description = "If set, the visibility refinement of a cell starts from the solution of the " +
+                             "left neighbouring cell, which is computed first, and from the default start only if " +
+                             "that one fails",
+               label = "Warm start of the visibility refinement",
+               defaultValue = "false")
+    private boolean warmStartRefinement;
+
+    @Parameter(description = "If set, the warm start also takes over the final Powell directions of the " +
+                             "left neighbouring cell. Saves little, and may get single cells caught in a wrong minimum",
+               label = "Warm start with Powell directions",
+               defaultValue = "false")
+    private boolean warmStartDirections;
+
     @SourceProduct(alias = "source")
     private Product sourceProduct;
 
@@ -64,8 +91,18 @@ public class ScapeMVisibilityOp extends ScapeMMerisBasisOp {
 
     private ElevationModel elevationModel;
 
+    // the cell visibilities, computed when first accessed
+    private CellVisibilityGrid cellVisibilityGrid;
+
+    // results of the cells computed so far, used as warm start of the visibility refinement in the
+    // neighbouring cells
+    private CellResultStore cellResults;
+
     @Override
     public void initialize() throws OperatorException {
+        if (scapeMLut == null) {
+            scapeMLut = getSharedScapeMLut();
+        }
         if (useDEM) {
             String demName = ScapeMConstants.DEFAULT_DEM_NAME;
             final ElevationModelDescriptor demDescriptor = ElevationModelRegistry.getInstance().getDescriptor(demName);
@@ -76,19 +113,37 @@ public class ScapeMVisibilityOp extends ScapeMMerisBasisOp {
         }
 
         createTargetProduct();
+
+        final Dimension tileSize = targetProduct.getPreferredTileSize();
+        cellVisibilityGrid = new CellVisibilityGrid(targetProduct.getSceneRasterWidth(),
+                                                    targetProduct.getSceneRasterHeight(),
+                                                    tileSize.width, tileSize.height);
+        cellResults = new CellResultStore(cellVisibilityGrid.getNumCellColumns(),
+                                          cellVisibilityGrid.getNumCellRows(),
+                                          warmStartDirections);
+        // the cell grid up-sampled to the full resolution, instead of full resolution tiles of constant cells
+        targetProduct.getBand(ScapeMConstants.VISIBILITY_BAND_NAME).setSourceImage(cellVisibilityGrid.createImage());
     }
 
-    @Override
-    public void computeTile(Band targetBand, Tile targetTile, ProgressMonitor pm) throws OperatorException {
+    /**
+     * Provides the cell visibilities. A cell visibility is computed when first accessed.
+     *
+     * @return the cell visibilities
+     */
+    public ScapeMCellGrid getCellVisibilityGrid() {
+        return cellVisibilityGrid;
+    }
 
-        final Rectangle targetRect = targetTile.getRectangle();
+    private float computeCellVisibility(int cellX, int cellY) {
 
-        final Tile szaTile = getSourceTile(sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_SUN_ZENITH_DS_NAME), targetRect);
-        final Tile vzaTile = getSourceTile(sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_VIEW_ZENITH_DS_NAME), targetRect);
-        final Tile saaTile = getSourceTile(sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_SUN_AZIMUTH_DS_NAME), targetRect);
-        final Tile vaaTile = getSourceTile(sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_VIEW_AZIMUTH_DS_NAME), targetRect);
+        final Rectangle cellRect = cellVisibilityGrid.getCellRectangle(cellX, cellY);
 
-        Tile altitudeTile = getAltitudeTile(targetRect, sourceProduct, useDEM);
+        final Tile szaTile = getSourceTile(sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_SUN_ZENITH_DS_NAME), cellRect);
+        final Tile vzaTile = getSourceTile(sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_VIEW_ZENITH_DS_NAME), cellRect);
+        final Tile saaTile = getSourceTile(sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_SUN_AZIMUTH_DS_NAME), cellRect);
+        final Tile vaaTile = getSourceTile(sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_VIEW_AZIMUTH_DS_NAME), cellRect);
+
+        Tile altitudeTile = getAltitudeTile(cellRect, sourceProduct, useDEM);
 
         ClearPixelStrategy clearPixelStrategy;
         if (computeOverWater) {
@@ -96,27 +151,26 @@ public class ScapeMVisibilityOp extends ScapeMMerisBasisOp {
         } else {
             clearPixelStrategy = new ClearLandPixelStrategy();
         }
-        clearPixelStrategy.setTile(getSourceTile(cloudProduct.getBandAt(0), targetRect));
+        clearPixelStrategy.setTile(getSourceTile(cloudProduct.getBandAt(0), cellRect));
+        final ClearPixelMask clearPixelMask = ClearPixelMask.create(clearPixelStrategy, cellRect);
 
         Tile[] radianceTiles = new Tile[ScapeMConstants.L1_BAND_NUM];
         Band[] radianceBands = new Band[ScapeMConstants.L1_BAND_NUM];
         for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
             radianceBands[bandId] = sourceProduct.getBand(RADIANCE_BAND_PREFIX + "_" + (bandId + 1));
-            radianceTiles[bandId] = getSourceTile(radianceBands[bandId], targetRect);
+            radianceTiles[bandId] = getSourceTile(radianceBands[bandId], cellRect);
         }
 
-        double[] toaMinCell = new double[ScapeMConstants.L1_BAND_NUM];
-
         final GeoCoding geoCoding = sourceProduct.getGeoCoding();
 
         final boolean cellIsClear35Percent =
-                ScapeMAlgorithm.isCellClearLand(targetRect, clearPixelStrategy, 0.35);
+                ScapeMAlgorithm.isCellClearLand(clearPixelMask, 0.35);
 
         if (cellIsClear35Percent) {
             // compute visibility...
 
-            final int centerX = targetRect.x + targetRect.width / 2;
-            final int centerY = targetRect.y + targetRect.height / 2;
+            final int centerX = cellRect.x + cellRect.width / 2;
+            final int centerY = cellRect.y + cellRect.height / 2;
 
             final double vza = vzaTile.getSampleDouble(centerX, centerY);
             final double sza = szaTile.getSampleDouble(centerX, centerY);
@@ -125,55 +179,57 @@ public class ScapeMVisibilityOp extends ScapeMMerisBasisOp {
             final double phi = HelperFunctions.computeAzimuthDifference(vaa, saa);
 
             try {
-                double[][] hsurfArrayCell;
+                final CellBuffer cellBuffer = new CellBuffer(cellRect, ScapeMConstants.L1_BAND_NUM);
                 if (useDEM && altitudeTile == null) {
-                    hsurfArrayCell = ScapeMAlgorithm.getHsurfArrayCell(targetRect, geoCoding, elevationModel, scapeMLut);
+                    ScapeMAlgorithm.fillHsurfCell(cellBuffer, geoCoding, elevationModel, scapeMLut);
                 } else {
-                    hsurfArrayCell = ScapeMAlgorithm.getHsurfArrayCell(targetRect, geoCoding, altitudeTile, scapeMLut);
+                    ScapeMAlgorithm.fillHsurfCell(cellBuffer, geoCoding, altitudeTile, scapeMLut);
                 }
 
-                final double hsurfMeanCell = ScapeMAlgorithm.getHsurfMeanCell(hsurfArrayCell, targetRect, clearPixelStrategy);
-
-                final double[][] cosSzaArrayCell = ScapeMAlgorithm.getCosSzaArrayCell(targetRect, szaTile);
-                final double cosSzaMeanCell = ScapeMAlgorithm.getCosSzaMeanCell(cosSzaArrayCell, targetRect, clearPixelStrategy);
-
+                ScapeMAlgorithm.fillCosSzaCell(cellBuffer, szaTile);
 
                 final int doy = sourceProduct.getStartTime().getAsCalendar().get(Calendar.DAY_OF_YEAR);
-                double[][][] toaArrayCell = new double[ScapeMConstants.L1_BAND_NUM][targetRect.width][targetRect.height];
                 for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-                    toaArrayCell[bandId] = ScapeMAlgorithm.getToaArrayCell(radianceTiles[bandId], targetRect, doy);
-                    toaMinCell[bandId] = ScapeMAlgorithm.getToaMinCell(toaArrayCell[bandId]);
+                    ScapeMAlgorithm.fillToaCell(cellBuffer, bandId, radianceTiles[bandId], doy);
                 }
 
+                // hsurf and cos(SZA) means, TOA minima
+                final CellStatistics cellStatistics = CellStatistics.compute(cellBuffer, clearPixelMask);
+
                 // now get visibility estimate...
                 final boolean cellIsClear45Percent =
-                        ScapeMAlgorithm.isCellClearLand(targetRect, clearPixelStrategy, 0.45);
-
-                final double visibility = ScapeMAlgorithm.getCellVisibility(toaArrayCell,
-                                                                            toaMinCell, vza, sza, phi,
-                                                                            hsurfArrayCell,
-                                                                            hsurfMeanCell,
-                                                                            cosSzaArrayCell,
-                                                                            cosSzaMeanCell,
+                        ScapeMAlgorithm.isCellClearLand(clearPixelMask, 0.45);
+
+                RefinementSolution[] warmStarts = null;
+                RefinementSolution[] cellSolutions = null;
+                if (warmStartRefinement) {
+                    // the left neighbour only, computed first: the result does not depend on the order the cells
+                    // are computed in. Holding this cell, only cells further left are waited for.
+                    if (cellX > 0) {
+                        cellVisibilityGrid.getCellValue(cellX - 1, cellY);
+                        warmStarts = cellResults.getSolutions(cellX - 1, cellY);
+                    }
+                    cellSolutions = new RefinementSolution[ScapeMConstants.RHO_VEG_ALL.length];
+                }
+                final double visibility = ScapeMAlgorithm.getCellVisibility(cellBuffer,
+                                                                            cellStatistics,
+                                                                            vza, sza, phi,
                                                                             cellIsClear45Percent,
+                                                                            visRefinementMethod,
+                                                                            maxRefSets,
+                                                                            warmStarts,
+                                                                            cellSolutions,
                                                                             scapeMLut);
+                cellResults.put(cellX, cellY, visibility, cellSolutions);
 
-                setCellVisibilitySamples(targetTile, targetRect, visibility);
+                return (float) visibility;
             } catch (Exception e) {
                 // todo
                 e.printStackTrace();
-                setCellVisibilitySamples(targetTile, targetRect, ScapeMConstants.AOT_NODATA_VALUE);
+                return (float) ScapeMConstants.AOT_NODATA_VALUE;
             }
         } else {
-            setCellVisibilitySamples(targetTile, targetRect, ScapeMConstants.AOT_NODATA_VALUE);
-        }
-    }
-
-    private void setCellVisibilitySamples(Tile targetTile, Rectangle targetRect, double visibility) {
-        for (int y = targetRect.y; y < targetRect.y + targetRect.height; y++) {
-            for (int x = targetRect.x; x < targetRect.x + targetRect.width; x++) {
-                targetTile.setSample(x, y, visibility);
-            }
+            return (float) ScapeMConstants.AOT_NODATA_VALUE;
         }
     }
 
@@ -192,6 +248,34 @@ public class ScapeMVisibilityOp extends ScapeMMerisBasisOp {
         this.scapeMLut = scapeMLut;
     }
 
+    // cell grid computing each cell visibility on first access, once
+    private class CellVisibilityGrid extends ScapeMCellGrid {
+
+        private final Object[] cellLocks;
+        private final boolean[] cellComputed;
+
+        private CellVisibilityGrid(int sceneWidth, int sceneHeight, int cellWidth, int cellHeight) {
+            super(sceneWidth, sceneHeight, cellWidth, cellHeight);
+            cellLocks = new Object[getNumCellColumns() * getNumCellRows()];
+            for (int i = 0; i < cellLocks.length; i++) {
+                cellLocks[i] = new Object();
+            }
+            cellComputed = new boolean[cellLocks.length];
+        }
+
+        @Override
+        public float getCellValue(int cellX, int cellY) {
+            final int cellIndex = cellY * getNumCellColumns() + cellX;
+            synchronized (cellLocks[cellIndex]) {
+                if (!cellComputed[cellIndex]) {
+                    setCellValue(cellX, cellY, computeCellVisibility(cellX, cellY));
+                    cellComputed[cellIndex] = true;
+                }
+            }
+            return super.getCellValue(cellX, cellY);
+        }
+    }
+
     public static class Spi extends OperatorSpi {
 
         public Spi() {
@@ -0,0 +1,50 @@
+package org.esa.beam.operator;
+
+/**
+ * Inversion of the TOA radiance to surface reflectance, the final step of the SCAPE-M AC part:
+ * x = PI * (toa - lpw) / etw, refl = x / (1 + sab * x).
+ * <p/>
+ * Besides the scalar form, a row kernel is provided which works on compacted, contiguous float32 rows
+ * (one row per band, holding the clear pixels of an image line only). The loop body has no branches and no
+ * indirect accesses, so that the JIT compiles it to SIMD instructions.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class SurfaceReflectanceKernel {
+
+    private static final float PI_F = (float) Math.PI;
+
+    private SurfaceReflectanceKernel() {
+    }
+
+    /**
+     * Scalar inversion for a single pixel.
+     *
+     * @param toa - TOA radiance
+     * @param lpw - path radiance
+     * @param etw - global irradiance at surface times transmittance
+     * @param sab - spherical albedo
+     * @return the surface reflectance
+     */
+    public static double invert(double toa, double lpw, double etw, double sab) {
+        final double xTerm = Math.PI * (toa - lpw) / etw;
+        return xTerm / (1.0 + sab * xTerm);
+    }
+
+    /**
+     * Inversion for a compacted row of pixels. Input and output rows may be the same array.
+     *
+     * @param toa    - TOA radiances
+     * @param lpw    - path radiances
+     * @param etw    - global irradiances at surface times transmittance
+     * @param sab    - spherical albedos
+     * @param refl   - the surface reflectances (output)
+     * @param length - number of pixels in the rows
+     */
+    public static void invert(float[] toa, float[] lpw, float[] etw, float[] sab, float[] refl, int length) {
+        for (int i = 0; i < length; i++) {
+            final float xTerm = PI_F * (toa[i] - lpw[i]) / etw[i];
+            refl[i] = xTerm / (1.0f + sab[i] * xTerm);
+        }
+    }
+}
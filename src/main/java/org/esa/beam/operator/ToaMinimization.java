@@ -1,14 +1,19 @@
 package org.esa.beam.operator;
 
 import org.esa.beam.ScapeMConstants;
+import org.esa.beam.math.LeastSquaresFunction;
 import org.esa.beam.math.MvFunction;
 
 /**
- * Representation of TOA minimization function ('minim_TOA' from IDL breadboard)
+ * Representation of TOA minimization function ('minim_TOA' from IDL breadboard).
+ * The function is a weighted sum of squares, so it can also be minimised as least squares problem.
  *
  * @author olafd
  */
-public class ToaMinimization implements MvFunction {
+public class ToaMinimization implements MvFunction, LeastSquaresFunction {
+
+    private static final int MAX_GAUSS_NEWTON_STEPS = 5;
+
     private double[] chiSquare;
 
     private double visLowerLim;
@@ -23,6 +28,8 @@ public class ToaMinimization implements MvFunction {
     private double[] lpwInt;
     private double[] etwInt;
     private double[] sabInt;
+    private int visInf;
+    private final double[] abundances = new double[2];
 
 
     public ToaMinimization(double visLowerLim, double[] visArrayLUT,
@@ -43,9 +50,6 @@ public class ToaMinimization implements MvFunction {
 
     @Override
     public double f(double[] x) {
-        double[] surfRefl = new double[ScapeMConstants.L1_BAND_NUM];
-        double[][] toa = new double[ScapeMConstants.L1_BAND_NUM][ScapeMConstants.NUM_REF_PIXELS];
-
         double vis = x[10];
 
         final double visUpperLim = visArrayLUT[visArrayLUT.length - 1];
@@ -59,51 +63,231 @@ public class ToaMinimization implements MvFunction {
 
         if (!xVectorInvalid && vis >= visLowerLim && vis < visUpperLim) {
             double toaMin = 0.0;
-            if (vis != visOld) {
-                int visInf = 0;
-                for (int i =0; i < visArrayLUT.length; i++) {
-                    if (vis >= visArrayLUT[i]) {
-                        visInf = i;
-                    }
+            interpolate(vis);
+            for (int j = 0; j < ScapeMConstants.NUM_REF_PIXELS; j++) {
+                chiSquare[j] = 0.0;
+                for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
+                    final double surfRefl = x[2 * j] * rhoVeg[i] + x[2 * j + 1] * ScapeMConstants.RHO_SUE[i];
+                    final double toa = lpwInt[i] + surfRefl * etwInt[i] / (Math.PI * (1.0 - sabInt[i] * surfRefl));
+                    final double diff = ScapeMConstants.WL_CENTER_INV[i] * (refPixels[i][j] - toa);
+                    chiSquare[j] += diff * diff;
                 }
+                toaMin += weight[j] * chiSquare[j];
+            }
+            return toaMin;
 
-                final double delta = 1.0/(visArrayLUT[visInf + 1] - visArrayLUT[visInf]);
+        } else {
+            return 5.E+8; // todo: this is from breadboard, check more appropriate 'invalid' value
+        }
+    }
 
-                for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
-                    lpwInt[i] = ((lpwArray[i][visInf + 1] - lpwArray[i][visInf]) * vis +
-                            lpwArray[i][visInf] * visArrayLUT[visInf + 1] -
-                            lpwArray[i][visInf + 1] * visArrayLUT[visInf]) * delta;
-                    etwInt[i] = ((etwArray[i][visInf + 1] - etwArray[i][visInf]) * vis +
-                            etwArray[i][visInf] * visArrayLUT[visInf + 1] -
-                            etwArray[i][visInf + 1] * visArrayLUT[visInf]) * delta;
-                    sabInt[i] = ((sabArray[i][visInf + 1] - sabArray[i][visInf]) * vis +
-                            sabArray[i][visInf] * visArrayLUT[visInf + 1] -
-                            sabArray[i][visInf + 1] * visArrayLUT[visInf]) * delta;
+    @Override
+    public int getNumResiduals() {
+        return ScapeMConstants.NUM_REF_PIXELS * ScapeMConstants.L1_BAND_NUM;
+    }
+
+    /**
+     * Computes the residuals r[j * L1_BAND_NUM + i] = sqrt(weight[j]) * WL_CENTER_INV[i] * (refPixels[i][j] - toa[i][j])
+     * of reference pixel j and band i, so that f(x) is the sum of their squares, and their analytic derivatives.
+     * x must be inside the valid range: abundances >= 0, visLowerLim <= vis < upper LUT visibility.
+     *
+     * @param x         - the abundances and the visibility
+     * @param residuals - array receiving the residuals
+     * @param jacobian  - array receiving the derivatives of the residuals
+     */
+    @Override
+    public void computeResiduals(double[] x, double[] residuals, double[][] jacobian) {
+        final double vis = x[10];
+        interpolate(vis);
+        final double delta = 1.0 / (visArrayLUT[visInf + 1] - visArrayLUT[visInf]);
+
+        for (int j = 0; j < ScapeMConstants.NUM_REF_PIXELS; j++) {
+            final double sqrtWeight = Math.sqrt(weight[j]);
+            chiSquare[j] = 0.0;
+            for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
+                final int k = j * ScapeMConstants.L1_BAND_NUM + i;
+                final double surfRefl = x[2 * j] * rhoVeg[i] + x[2 * j + 1] * ScapeMConstants.RHO_SUE[i];
+                final double denom = 1.0 - sabInt[i] * surfRefl;
+                final double toa = lpwInt[i] + surfRefl * etwInt[i] / (Math.PI * denom);
+                final double diff = ScapeMConstants.WL_CENTER_INV[i] * (refPixels[i][j] - toa);
+                chiSquare[j] += diff * diff;
+                residuals[k] = sqrtWeight * diff;
+
+                // d(toa)/d(surfRefl) and d(toa)/d(vis), with the LUT parameters linear in vis between the nodes
+                final double dToaDRefl = etwInt[i] / (Math.PI * denom * denom);
+                final double lpwSlope = (lpwArray[i][visInf + 1] - lpwArray[i][visInf]) * delta;
+                final double etwSlope = (etwArray[i][visInf + 1] - etwArray[i][visInf]) * delta;
+                final double sabSlope = (sabArray[i][visInf + 1] - sabArray[i][visInf]) * delta;
+                final double dToaDVis = lpwSlope + surfRefl * etwSlope / (Math.PI * denom) +
+                        surfRefl * surfRefl * etwInt[i] * sabSlope / (Math.PI * denom * denom);
+
+                final double factor = -sqrtWeight * ScapeMConstants.WL_CENTER_INV[i];
+                final double[] jacobianRow = jacobian[k];
+                for (int l = 0; l < jacobianRow.length; l++) {
+                    jacobianRow[l] = 0.0;
                 }
+                jacobianRow[2 * j] = factor * dToaDRefl * rhoVeg[i];
+                jacobianRow[2 * j + 1] = factor * dToaDRefl * ScapeMConstants.RHO_SUE[i];
+                jacobianRow[10] = factor * dToaDVis;
             }
-            for (int j = 0; j < ScapeMConstants.NUM_REF_PIXELS; j++) {
-                chiSquare[j] = 0.0;
+        }
+    }
+
+    /**
+     * Minimises the function over the abundances for a fixed visibility. The abundances only enter through
+     * the surface reflectance mix of each reference pixel, so each reference pixel is fitted separately:
+     * a linear non-negative fit of the inverted surface reflectances, refined by a few Gauss-Newton steps.
+     *
+     * @param vis - the visibility, visLowerLim <= vis < upper LUT visibility
+     * @param x   - array receiving the abundances at the minimum, and vis
+     * @return the function value at the minimum
+     */
+    public double minimizeAbundances(double vis, double[] x) {
+        interpolate(vis);
+        double toaMin = 0.0;
+        for (int j = 0; j < ScapeMConstants.NUM_REF_PIXELS; j++) {
+            // start: fit of the surface reflectances from inverting toa = lpw + refl * etw / (pi * (1 - sab * refl))
+            double sVV = 0.0;
+            double sVS = 0.0;
+            double sSS = 0.0;
+            double sZV = 0.0;
+            double sZS = 0.0;
+            for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
+                final double e = etwInt[i] / Math.PI;
+                final double y = refPixels[i][j] - lpwInt[i];
+                final double surfRefl = y / (e + sabInt[i] * y);
+                final double w = ScapeMConstants.WL_CENTER_INV[i] * e;
+                final double w2 = w * w;
+                sVV += w2 * rhoVeg[i] * rhoVeg[i];
+                sVS += w2 * rhoVeg[i] * ScapeMConstants.RHO_SUE[i];
+                sSS += w2 * ScapeMConstants.RHO_SUE[i] * ScapeMConstants.RHO_SUE[i];
+                sZV += w2 * surfRefl * rhoVeg[i];
+                sZS += w2 * surfRefl * ScapeMConstants.RHO_SUE[i];
+            }
+            solveNonNegative(sVV, sVS, sSS, sZV, sZS, abundances);
+            double a = abundances[0];
+            double b = abundances[1];
+            double chi = computeChiSquare(j, a, b);
+
+            for (int iter = 0; iter < MAX_GAUSS_NEWTON_STEPS; iter++) {
+                // linearised model around (a, b)
+                sVV = 0.0;
+                sVS = 0.0;
+                sSS = 0.0;
+                sZV = 0.0;
+                sZS = 0.0;
                 for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
-                    surfRefl[i] = x[2 * j] * rhoVeg[i] + x[2 * j + 1] * ScapeMConstants.RHO_SUE[i];
-                    toa[i][j] = lpwInt[i] + surfRefl[i] * etwInt[i] / (Math.PI * (1.0 - sabInt[i] * surfRefl[i]));
-                    chiSquare[j] += Math.pow(ScapeMConstants.WL_CENTER_INV[i] * (refPixels[i][j] - toa[i][j]), 2.0);
+                    final double surfRefl = a * rhoVeg[i] + b * ScapeMConstants.RHO_SUE[i];
+                    final double denom = 1.0 - sabInt[i] * surfRefl;
+                    final double toa = lpwInt[i] + surfRefl * etwInt[i] / (Math.PI * denom);
+                    final double dToaDRefl = etwInt[i] / (Math.PI * denom * denom);
+                    final double gV = ScapeMConstants.WL_CENTER_INV[i] * dToaDRefl * rhoVeg[i];
+                    final double gS = ScapeMConstants.WL_CENTER_INV[i] * dToaDRefl * ScapeMConstants.RHO_SUE[i];
+                    final double z = ScapeMConstants.WL_CENTER_INV[i] * (refPixels[i][j] - toa) + gV * a + gS * b;
+                    sVV += gV * gV;
+                    sVS += gV * gS;
+                    sSS += gS * gS;
+                    sZV += z * gV;
+                    sZS += z * gS;
+                }
+                solveNonNegative(sVV, sVS, sSS, sZV, sZS, abundances);
+                double step = 1.0;
+                double aNew = abundances[0];
+                double bNew = abundances[1];
+                double chiNew = computeChiSquare(j, aNew, bNew);
+                while (chiNew > chi && step > 0.1) {
+                    step *= 0.5;
+                    aNew = a + step * (abundances[0] - a);
+                    bNew = b + step * (abundances[1] - b);
+                    chiNew = computeChiSquare(j, aNew, bNew);
+                }
+                if (chiNew > chi) {
+                    break;
+                }
+                final boolean converged = chi - chiNew <= 1.E-12 * chi;
+                a = aNew;
+                b = bNew;
+                chi = chiNew;
+                if (converged) {
+                    break;
                 }
-                toaMin += weight[j] * chiSquare[j];
             }
+            x[2 * j] = a;
+            x[2 * j + 1] = b;
+            chiSquare[j] = chi;
+            toaMin += weight[j] * chi;
+        }
+        x[2 * ScapeMConstants.NUM_REF_PIXELS] = vis;
+        return toaMin;
+    }
 
-            visOld = vis;
-            StringBuffer buffer = new StringBuffer("toaMin, chisq = " + toaMin + "// ");
-            for (int i = 0; i <chiSquare.length; i++) {
-                buffer.append(chiSquare[i] + " ");
-            }
-//            System.out.println(buffer);
-            return toaMin;
+    private double computeChiSquare(int j, double a, double b) {
+        double chi = 0.0;
+        for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
+            final double surfRefl = a * rhoVeg[i] + b * ScapeMConstants.RHO_SUE[i];
+            final double toa = lpwInt[i] + surfRefl * etwInt[i] / (Math.PI * (1.0 - sabInt[i] * surfRefl));
+            final double diff = ScapeMConstants.WL_CENTER_INV[i] * (refPixels[i][j] - toa);
+            chi += diff * diff;
+        }
+        return chi;
+    }
 
+    // minimises p^T S p - 2 p^T z for p = (a, b) >= 0, with S = ((sVV, sVS), (sVS, sSS)) and z = (sZV, sZS)
+    private static void solveNonNegative(double sVV, double sVS, double sSS, double sZV, double sZS,
+                                         double[] result) {
+        final double det = sVV * sSS - sVS * sVS;
+        if (det > 1.E-12 * sVV * sSS) {
+            final double a = (sZV * sSS - sZS * sVS) / det;
+            final double b = (sZS * sVV - sZV * sVS) / det;
+            if (a >= 0.0 && b >= 0.0) {
+                result[0] = a;
+                result[1] = b;
+                return;
+            }
+        }
+        // minimum on the boundary: one of the abundances is zero
+        final double a = sVV > 0.0 ? Math.max(0.0, sZV / sVV) : 0.0;
+        final double b = sSS > 0.0 ? Math.max(0.0, sZS / sSS) : 0.0;
+        if (a * a * sVV - 2.0 * a * sZV <= b * b * sSS - 2.0 * b * sZS) {
+            result[0] = a;
+            result[1] = 0.0;
         } else {
-            return 5.E+8; // todo: this is from breadboard, check more appropriate 'invalid' value
+            result[0] = 0.0;
+            result[1] = b;
         }
     }
 
+    // interpolates the LUT parameters to the given visibility, if it has changed
+    private void interpolate(double vis) {
+        if (vis != visOld) {
+            visInf = 0;
+            for (int i =0; i < visArrayLUT.length; i++) {
+                if (vis >= visArrayLUT[i]) {
+                    visInf = i;
+                }
+            }
+
+            final double delta = 1.0/(visArrayLUT[visInf + 1] - visArrayLUT[visInf]);
+
+            for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
+                lpwInt[i] = ((lpwArray[i][visInf + 1] - lpwArray[i][visInf]) * vis +
+                        lpwArray[i][visInf] * visArrayLUT[visInf + 1] -
+                        lpwArray[i][visInf + 1] * visArrayLUT[visInf]) * delta;
+                etwInt[i] = ((etwArray[i][visInf + 1] - etwArray[i][visInf]) * vis +
+                        etwArray[i][visInf] * visArrayLUT[visInf + 1] -
+                        etwArray[i][visInf + 1] * visArrayLUT[visInf]) * delta;
+                sabInt[i] = ((sabArray[i][visInf + 1] - sabArray[i][visInf]) * vis +
+                        sabArray[i][visInf] * visArrayLUT[visInf + 1] -
+                        sabArray[i][visInf + 1] * visArrayLUT[visInf]) * delta;
+            }
+            visOld = vis;
+        }
+    }
+
+    double[] getVisArrayLUT() {
+        return visArrayLUT;
+    }
+
     public double[] getChiSquare() {
         return chiSquare;
     }
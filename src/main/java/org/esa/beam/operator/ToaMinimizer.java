@@ -0,0 +1,33 @@
+package org.esa.beam.operator;
+
+/**
+ * Minimiser of the TOA minimization function (see {@link ToaMinimization}) used in the visibility refinement.
+ * Implementations are obtained from {@link ToaMinimizerFactory} by the name of the refinement method. An instance
+ * may keep state between the minimisations of one cell, and must not be used by several threads.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public interface ToaMinimizer {
+
+    /**
+     * Minimises the TOA function. Afterwards, the chi squares of the TOA function are those of the last
+     * evaluated point, which is the minimum or close to it.
+     *
+     * @param xVector         - the abundances and the visibility: start point on input, minimum on output
+     * @param toaMinimization - the TOA minimization function, with reference pixels, weights and endmember set
+     * @param lowerBounds     - the lower bounds of the variables
+     * @param upperBounds     - the upper bounds of the variables
+     * @return the minimum
+     */
+    double minimize(double[] xVector, ToaMinimization toaMinimization, double[] lowerBounds, double[] upperBounds);
+
+    /**
+     * @return the number of iterations of the last minimisation
+     */
+    int getNumIterations();
+
+    /**
+     * @return the number of evaluations of the TOA function in the last minimisation
+     */
+    int getNumEvaluations();
+}
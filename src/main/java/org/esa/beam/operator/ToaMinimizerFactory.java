@@ -0,0 +1,56 @@
+package org.esa.beam.operator;
+
+import org.esa.beam.ScapeMConstants;
+import org.esa.beam.math.LevenbergMarquardt;
+import org.esa.beam.math.PowellWorkspace;
+
+/**
+ * Provides the minimisers of the visibility refinement by the names of the refinement methods
+ * (ScapeMConstants.VIS_REFINEMENT_* values).
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class ToaMinimizerFactory {
+
+    // work arrays of the Powell minimisation, reused for all cells of a thread
+    private static final ThreadLocal<PowellWorkspace> POWELL_WORKSPACE = new ThreadLocal<PowellWorkspace>() {
+        @Override
+        protected PowellWorkspace initialValue() {
+            return new PowellWorkspace();
+        }
+    };
+
+    // Levenberg-Marquardt minimiser, one per thread
+    private static final ThreadLocal<LevenbergMarquardt> LEVENBERG_MARQUARDT = new ThreadLocal<LevenbergMarquardt>() {
+        @Override
+        protected LevenbergMarquardt initialValue() {
+            return new LevenbergMarquardt();
+        }
+    };
+
+    private ToaMinimizerFactory() {
+    }
+
+    /**
+     * Creates a minimiser for the current thread. Work arrays are shared with the other minimisers created by
+     * the same thread, so these must not be used at the same time.
+     *
+     * @param refinementMethod - the refinement method, one of the ScapeMConstants.VIS_REFINEMENT_* values
+     * @return the minimiser
+     * @throws IllegalArgumentException if the refinement method is unknown
+     */
+    public static ToaMinimizer create(String refinementMethod) {
+        if (ScapeMConstants.VIS_REFINEMENT_POWELL.equals(refinementMethod)) {
+            return new PowellToaMinimizer(POWELL_WORKSPACE.get());
+        } else if (ScapeMConstants.VIS_REFINEMENT_LEVENBERG_MARQUARDT.equals(refinementMethod)) {
+            return new LevenbergMarquardtToaMinimizer(LEVENBERG_MARQUARDT.get());
+        } else if (ScapeMConstants.VIS_REFINEMENT_VARIABLE_PROJECTION.equals(refinementMethod)) {
+            return new VariableProjectionToaMinimizer();
+        } else if (ScapeMConstants.VIS_REFINEMENT_BOBYQA.equals(refinementMethod)) {
+            return new BobyqaToaMinimizer();
+        } else if (ScapeMConstants.VIS_REFINEMENT_NELDER_MEAD.equals(refinementMethod)) {
+            return new NelderMeadToaMinimizer();
+        }
+        throw new IllegalArgumentException("Unknown visibility refinement method: " + refinementMethod);
+    }
+}
@@ -0,0 +1,117 @@
+package org.esa.beam.operator;
+
+import org.esa.beam.ScapeMConstants;
+import org.esa.beam.math.Brent;
+import org.esa.beam.math.Function;
+
+/**
+ * Variable projection of the TOA minimization: for a given visibility, the abundances are fitted for each
+ * reference pixel separately (see {@link ToaMinimization#minimizeAbundances(double, double[])}), so that
+ * the visibility is left as the only variable of a 1-D minimisation.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class ToaProfileMinimization implements Function {
+
+    private static final double VIS_TOL = 1.E-5;
+
+    private final ToaMinimization toaMinimization;
+    private final double[] x;
+    private final double[] brentResult;
+    private double visLowerLim;
+    private double visUpperLim;
+    private int numEvaluations;
+    private int numIterations;
+
+    /**
+     * @param toaMinimization - the TOA minimization function, with reference pixels, weights and endmember set
+     */
+    public ToaProfileMinimization(ToaMinimization toaMinimization) {
+        this.toaMinimization = toaMinimization;
+        x = new double[2 * ScapeMConstants.NUM_REF_PIXELS + 1];
+        brentResult = new double[2];
+    }
+
+    /**
+     * The TOA minimization function, minimised over the abundances
+     *
+     * @param vis - the visibility
+     * @return f - the minimum for this visibility
+     */
+    @Override
+    public double f(double vis) {
+        numEvaluations++;
+        return toaMinimization.minimizeAbundances(Math.max(visLowerLim, Math.min(visUpperLim, vis)), x);
+    }
+
+    /**
+     * Minimises over the visibility: the function is evaluated at the LUT visibilities within the limits, and
+     * the minimum is then located by Brent in the intervals next to the best of these.
+     *
+     * @param xVector     - array receiving the abundances and the visibility at the minimum
+     * @param visLowerLim - lower visibility limit
+     * @param visUpperLim - upper visibility limit, below the last LUT visibility
+     * @return the minimum
+     */
+    public double fmin(double[] xVector, double visLowerLim, double visUpperLim) {
+        this.visLowerLim = visLowerLim;
+        this.visUpperLim = visUpperLim;
+        numEvaluations = 0;
+
+        final double[] visArrayLUT = toaMinimization.getVisArrayLUT();
+        final double[] visGrid = new double[visArrayLUT.length + 2];
+        int numVis = 0;
+        visGrid[numVis++] = visLowerLim;
+        for (double vis : visArrayLUT) {
+            if (vis > visLowerLim && vis < visUpperLim) {
+                visGrid[numVis++] = vis;
+            }
+        }
+        visGrid[numVis++] = visUpperLim;
+
+        int minIndex = 0;
+        double fmin = Double.MAX_VALUE;
+        for (int i = 0; i < numVis; i++) {
+            final double fVis = f(visGrid[i]);
+            if (fVis < fmin) {
+                fmin = fVis;
+                minIndex = i;
+            }
+        }
+
+        // the LUT parameters are linear in vis between the LUT visibilities, so the function is smooth only
+        // between these: search both intervals next to the best grid visibility separately
+        double visMin = visGrid[minIndex];
+        final int numGridEvaluations = numEvaluations;
+        int numSearches = 0;
+        for (int i = Math.max(minIndex - 1, 0); i < Math.min(minIndex + 1, numVis - 1); i++) {
+            final double ax = visGrid[i];
+            final double cx = visGrid[i + 1];
+            Brent.brent(ax, 0.5 * (ax + cx), cx, this, VIS_TOL, brentResult);
+            numSearches++;
+            if (brentResult[1] < fmin) {
+                fmin = brentResult[1];
+                visMin = brentResult[0];
+            }
+        }
+        // Brent evaluates once at the start and once per iteration
+        numIterations = numEvaluations - numGridEvaluations - numSearches;
+
+        numEvaluations++;
+        return toaMinimization.minimizeAbundances(Math.max(visLowerLim, Math.min(visUpperLim, visMin)), xVector);
+    }
+
+    /**
+     * @return the number of Brent iterations of the last minimisation
+     */
+    public int getNumIterations() {
+        return numIterations;
+    }
+
+    /**
+     * @return the number of evaluations of the last minimisation
+     */
+    public int getNumEvaluations() {
+        return numEvaluations;
+    }
+}
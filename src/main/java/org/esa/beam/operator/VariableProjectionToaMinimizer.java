@@ -0,0 +1,35 @@
+package org.esa.beam.operator;
+
+/**
+ * Variable-projection minimisation of the TOA function (see {@link ToaProfileMinimization}): a 1-D minimisation
+ * over the visibility, with the abundances fitted per reference pixel. The evaluations counted are those of
+ * the visibility profile, each of which includes a small fit of the abundances.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class VariableProjectionToaMinimizer implements ToaMinimizer {
+
+    private int numIterations;
+    private int numEvaluations;
+
+    @Override
+    public double minimize(double[] xVector, ToaMinimization toaMinimization,
+                           double[] lowerBounds, double[] upperBounds) {
+        final int visIndex = xVector.length - 1;
+        final ToaProfileMinimization profileMinimization = new ToaProfileMinimization(toaMinimization);
+        final double fmin = profileMinimization.fmin(xVector, lowerBounds[visIndex], upperBounds[visIndex]);
+        numIterations = profileMinimization.getNumIterations();
+        numEvaluations = profileMinimization.getNumEvaluations();
+        return fmin;
+    }
+
+    @Override
+    public int getNumIterations() {
+        return numIterations;
+    }
+
+    @Override
+    public int getNumEvaluations() {
+        return numEvaluations;
+    }
+}
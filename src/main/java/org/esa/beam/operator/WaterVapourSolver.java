@@ -0,0 +1,324 @@
+package org.esa.beam.operator;
+
+import org.apache.commons.math3.analysis.solvers.BrentSolver;
+import org.apache.commons.math3.exception.NoBracketingException;
+import org.esa.beam.ScapeMConstants;
+
+/**
+ * Solves the water vapour retrieval function ({@link WaterVapourFunction}, 'chisq_merisWV' in IDL breadboard)
+ * for a pixel.
+ * <p/>
+ * Between two adjacent cwv grid nodes, the path radiance, transmittance and spherical albedo terms are linear in
+ * the interpolation weight p, so the modelled TOA radiances are rational functions of p and the root of
+ * 'ratio - L_14/L_13' is a root of a polynomial of degree 3 in p. The solver finds it in closed form, segment by
+ * segment, without iteration and without allocation. The root is searched in the same half interval as the
+ * Brent solver would do, and the same default applies if the root is not bracketed. If that interval holds more
+ * than one root, the Brent solver is used, so that the results agree within its accuracy.
+ * <p/>
+ * In reference mode, the Brent solver is used as before, to allow cross-checks.
+ * Instances are not thread-safe.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class WaterVapourSolver {
+
+    // value accuracy of the Brent solver, which returns an interval end point if good enough
+    private static final double FUNCTION_VALUE_ACCURACY = 1.E-15;
+    // below this relative size, the cubic coefficient is dropped before root polishing
+    private static final double CUBIC_EPS = 1.E-8;
+    // tolerance for roots at segment boundaries
+    private static final double SEGMENT_EPS = 1.E-12;
+
+    private final double[] wvGr;
+    private final double wvLower;
+    private final double wvUpper;
+    private final boolean referenceMode;
+
+    private final double[] coefficients;
+    private final double[] roots;
+    private double merisRatio;
+    private double[] reflPix;
+    private double[][][] parAtmH;
+
+    private double wv;
+    private int wvInf;
+    private double wvP;
+
+    // used in reference mode, and as fallback if the closed form root is not unique
+    private final WaterVapourFunction wvFunction;
+    private final BrentSolver brentSolver;
+
+    /**
+     * @param wvGr          - the cwv grid of the atmospheric LUT
+     * @param wvLower       - lower bound of the retrieval range
+     * @param wvUpper       - upper bound of the retrieval range
+     * @param referenceMode - if set, the iterative Brent solver is used
+     */
+    public WaterVapourSolver(double[] wvGr, double wvLower, double wvUpper, boolean referenceMode) {
+        this.wvGr = wvGr;
+        this.wvLower = wvLower;
+        this.wvUpper = wvUpper;
+        this.referenceMode = referenceMode;
+        coefficients = new double[4];
+        roots = new double[3];
+        wvFunction = new WaterVapourFunction();
+        wvFunction.setWvGr2(wvGr);
+        brentSolver = new BrentSolver(ScapeMConstants.FTOL);
+    }
+
+    /**
+     * Retrieves the water vapour for a pixel. On success, the result is available from
+     * {@link #getWv()}, {@link #getWvInf()} and {@link #getWvP()}.
+     *
+     * @param merisRatio - ratio of radiances at band 15 and band 14
+     * @param reflPix    - the 'reflectance images' at bands 14 and 15 of the pixel
+     * @param parAtmH    - lpw, etw and sab at bands 14 and 15 on the cwv grid, [3][2][cwv]
+     * @return false if there is no solution in the retrieval range
+     */
+    public boolean solve(double merisRatio, double[] reflPix, double[][][] parAtmH) {
+        if (referenceMode) {
+            return solveReference(merisRatio, reflPix, parAtmH);
+        }
+        this.merisRatio = merisRatio;
+        this.reflPix = reflPix;
+        this.parAtmH = parAtmH;
+
+        // same bracketing strategy as the Brent solver
+        final double wvInitial = wvLower + 0.5 * (wvUpper - wvLower);
+        final double yInitial = value(wvInitial);
+        if (Math.abs(yInitial) <= FUNCTION_VALUE_ACCURACY) {
+            return setResult(wvInitial);
+        }
+        final double yLower = value(wvLower);
+        if (Math.abs(yLower) <= FUNCTION_VALUE_ACCURACY) {
+            return setResult(wvLower);
+        }
+        if (yInitial * yLower < 0) {
+            return findRoot(wvLower, wvInitial) || solveReference(merisRatio, reflPix, parAtmH);
+        }
+        final double yUpper = value(wvUpper);
+        if (Math.abs(yUpper) <= FUNCTION_VALUE_ACCURACY) {
+            return setResult(wvUpper);
+        }
+        if (yInitial * yUpper < 0) {
+            return findRoot(wvInitial, wvUpper) || solveReference(merisRatio, reflPix, parAtmH);
+        }
+        return false;
+    }
+
+    public double getWv() {
+        return wv;
+    }
+
+    public int getWvInf() {
+        return wvInf;
+    }
+
+    public double getWvP() {
+        return wvP;
+    }
+
+    private boolean solveReference(double merisRatio, double[] reflPix, double[][][] parAtmH) {
+        wvFunction.setMerisRatio(merisRatio);
+        wvFunction.setReflPix(reflPix);
+        wvFunction.setParAtmH(parAtmH);
+        try {
+            wv = brentSolver.solve(ScapeMConstants.MAXITER, wvFunction, wvLower, wvUpper);
+            wvInf = wvFunction.getWvInf();
+            wvP = wvFunction.getWvP();
+            return true;
+        } catch (NoBracketingException e) {
+            return false;
+        }
+    }
+
+    // the retrieval function, as in WaterVapourFunction
+    private double value(double wv) {
+        final int inf = getSegment(wv);
+        if (inf < 0) {
+            return 0.0;
+        }
+        final double p = (wv - wvGr[inf]) / (wvGr[inf + 1] - wvGr[inf]);
+        final double lToa0 = getToaRadiance(0, inf, p);
+        final double lToa1 = getToaRadiance(1, inf, p);
+        return merisRatio - lToa1 / lToa0;
+    }
+
+    private double getToaRadiance(int band, int inf, double p) {
+        final double lpw = interpolate(parAtmH[0][band], inf, p);
+        final double etw = interpolate(parAtmH[1][band], inf, p);
+        final double sab = interpolate(parAtmH[2][band], inf, p);
+        return lpw + reflPix[band] * etw / (Math.PI * (1.0 - reflPix[band] * sab));
+    }
+
+    private static double interpolate(double[] values, int inf, double p) {
+        return values[inf] + p * (values[inf + 1] - values[inf]);
+    }
+
+    // last grid node below wv, -1 if none
+    private int getSegment(double wv) {
+        for (int i = wvGr.length - 1; i >= 0; i--) {
+            if (wv > wvGr[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // finds the root in the bracketing interval [lo, hi]; fails if it is not unique, as the root the Brent
+    // solver converges to then depends on its iteration path
+    private boolean findRoot(double lo, double hi) {
+        final int firstSegment = Math.max(getSegment(lo), 0);
+        final int lastSegment = Math.min(getSegment(hi), wvGr.length - 2);
+        int numFound = 0;
+        for (int s = firstSegment; s <= lastSegment; s++) {
+            final double width = wvGr[s + 1] - wvGr[s];
+            final double pLo = Math.max(0.0, (lo - wvGr[s]) / width);
+            final double pHi = Math.min(1.0, (hi - wvGr[s]) / width);
+            final int numRoots = findSegmentRoots(s);
+            for (int i = 0; i < numRoots; i++) {
+                final double p = Math.max(pLo, Math.min(pHi, roots[i]));
+                if (Math.abs(p - roots[i]) <= SEGMENT_EPS) {
+                    final double root = wvGr[s] + p * width;
+                    if (numFound > 0 && Math.abs(root - wv) <= SEGMENT_EPS * width) {
+                        // same root found at a segment boundary or as a double root
+                        continue;
+                    }
+                    if (++numFound > 1) {
+                        return false;
+                    }
+                    wv = root;
+                    wvInf = s;
+                    wvP = p;
+                }
+            }
+        }
+        return numFound == 1;
+    }
+
+    // roots in p of ratio * D_14 * N_13 - N_14 * D_13 on segment s, where L = N / D, ascending
+    private int findSegmentRoots(int s) {
+        final double[] c = coefficients;
+        c[0] = c[1] = c[2] = c[3] = 0.0;
+        addRadianceProduct(c, 0, s, merisRatio);
+        addRadianceProduct(c, 1, s, -1.0);
+        return solveCubic(c[3], c[2], c[1], c[0], roots);
+    }
+
+    // adds factor * N_band * D_otherBand to the polynomial coefficients c
+    private void addRadianceProduct(double[] c, int band, int s, double factor) {
+        final int other = 1 - band;
+        final double r = reflPix[band];
+        final double l0 = parAtmH[0][band][s];
+        final double dl = parAtmH[0][band][s + 1] - l0;
+        final double e0 = parAtmH[1][band][s];
+        final double de = parAtmH[1][band][s + 1] - e0;
+        final double s0 = parAtmH[2][band][s];
+        final double ds = parAtmH[2][band][s + 1] - s0;
+        // D = PI * (1 - r * sab) = d0 + d1 * p
+        final double d0 = Math.PI * (1.0 - r * s0);
+        final double d1 = -Math.PI * r * ds;
+        // N = lpw * D + r * etw = n0 + n1 * p + n2 * p^2
+        final double n0 = l0 * d0 + r * e0;
+        final double n1 = l0 * d1 + dl * d0 + r * de;
+        final double n2 = dl * d1;
+
+        final double ro = reflPix[other];
+        final double so = parAtmH[2][other][s];
+        final double dso = parAtmH[2][other][s + 1] - so;
+        final double od0 = Math.PI * (1.0 - ro * so);
+        final double od1 = -Math.PI * ro * dso;
+
+        c[0] += factor * n0 * od0;
+        c[1] += factor * (n0 * od1 + n1 * od0);
+        c[2] += factor * (n1 * od1 + n2 * od0);
+        c[3] += factor * n2 * od1;
+    }
+
+    /**
+     * Provides the real roots of c3 * x^3 + c2 * x^2 + c1 * x + c0 in ascending order.
+     *
+     * @param c3    - cubic coefficient
+     * @param c2    - quadratic coefficient
+     * @param c1    - linear coefficient
+     * @param c0    - constant coefficient
+     * @param roots - array of length 3 receiving the roots
+     * @return the number of roots
+     */
+    static int solveCubic(double c3, double c2, double c1, double c0, double[] roots) {
+        final double scale = Math.max(Math.max(Math.abs(c3), Math.abs(c2)), Math.max(Math.abs(c1), Math.abs(c0)));
+        if (scale == 0.0) {
+            return 0;
+        }
+        int numRoots;
+        if (Math.abs(c3) <= CUBIC_EPS * scale) {
+            numRoots = solveQuadratic(c2, c1, c0, roots);
+        } else {
+            final double a = c2 / c3;
+            final double b = c1 / c3;
+            final double c = c0 / c3;
+            final double q = (a * a - 3.0 * b) / 9.0;
+            final double r = (2.0 * a * a * a - 9.0 * a * b + 27.0 * c) / 54.0;
+            final double q3 = q * q * q;
+            if (r * r < q3) {
+                final double theta = Math.acos(r / Math.sqrt(q3));
+                final double sqrtQ = Math.sqrt(q);
+                roots[0] = -2.0 * sqrtQ * Math.cos(theta / 3.0) - a / 3.0;
+                roots[1] = -2.0 * sqrtQ * Math.cos((theta + 2.0 * Math.PI) / 3.0) - a / 3.0;
+                roots[2] = -2.0 * sqrtQ * Math.cos((theta - 2.0 * Math.PI) / 3.0) - a / 3.0;
+                numRoots = 3;
+            } else {
+                final double aa = -Math.signum(r) * Math.cbrt(Math.abs(r) + Math.sqrt(r * r - q3));
+                final double bb = aa == 0.0 ? 0.0 : q / aa;
+                roots[0] = aa + bb - a / 3.0;
+                numRoots = 1;
+            }
+        }
+        for (int i = 0; i < numRoots; i++) {
+            // one Newton step on the full polynomial
+            final double x = roots[i];
+            final double f = ((c3 * x + c2) * x + c1) * x + c0;
+            final double df = (3.0 * c3 * x + 2.0 * c2) * x + c1;
+            if (df != 0.0) {
+                roots[i] = x - f / df;
+            }
+        }
+        // insertion sort
+        for (int i = 1; i < numRoots; i++) {
+            final double x = roots[i];
+            int j = i - 1;
+            while (j >= 0 && roots[j] > x) {
+                roots[j + 1] = roots[j];
+                j--;
+            }
+            roots[j + 1] = x;
+        }
+        return numRoots;
+    }
+
+    private static int solveQuadratic(double c2, double c1, double c0, double[] roots) {
+        if (c2 == 0.0) {
+            if (c1 == 0.0) {
+                return 0;
+            }
+            roots[0] = -c0 / c1;
+            return 1;
+        }
+        final double discriminant = c1 * c1 - 4.0 * c2 * c0;
+        if (discriminant < 0.0) {
+            return 0;
+        }
+        // numerically stable form
+        final double q = -0.5 * (c1 + (c1 >= 0.0 ? 1.0 : -1.0) * Math.sqrt(discriminant));
+        roots[0] = q / c2;
+        roots[1] = q != 0.0 ? c0 / q : roots[0];
+        return 2;
+    }
+
+    private boolean setResult(double wv) {
+        this.wv = wv;
+        wvInf = getSegment(wv);
+        wvP = (wv - wvGr[wvInf]) / (wvGr[wvInf + 1] - wvGr[wvInf]);
+        return true;
+    }
+}
@@ -4,6 +4,8 @@ import org.esa.beam.ScapeMConstants;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.gpf.Tile;
 
+import java.awt.*;
+
 /**
  * todo: add comment
  * To change this template use File | Settings | File Templates.
@@ -14,22 +16,31 @@ import org.esa.beam.framework.gpf.Tile;
  */
 public class ClearLandAndWaterPixelStrategy implements ClearPixelStrategy {
 
-    private Tile tile;
+    private static final int INVALID_FLAGS = (1 << ScapeMConstants.CLOUD_INVALID_BIT) |
+            (1 << ScapeMConstants.CLOUD_CERTAIN_BIT);
+
+    private Rectangle rectangle;
+    private int[] flags;
 
     public ClearLandAndWaterPixelStrategy() {
     }
 
     @Override
     public boolean isValid(int x, int y) {
-        int sampleInt = tile.getSampleInt(x, y);
-        boolean isInvalid = BitSetter.isFlagSet(sampleInt, ScapeMConstants.CLOUD_INVALID_BIT);
-        boolean isCloud = BitSetter.isFlagSet(sampleInt, ScapeMConstants.CLOUD_CERTAIN_BIT);
-        return !isCloud && !isInvalid;
+        int sampleInt = flags[(y - rectangle.y) * rectangle.width + (x - rectangle.x)];
+        return (sampleInt & INVALID_FLAGS) == 0;
+    }
+
+    @Override
+    public void fillMask(Rectangle rect, long[] bits) {
+        ClearPixelMask.fillMask(flags, rectangle, INVALID_FLAGS, rect, bits);
     }
 
     @Override
     public void setTile(Tile tile) {
-        this.tile = tile;
+        rectangle = tile.getRectangle();
+        flags = new int[rectangle.width * rectangle.height];
+        TileAccess.readSamples(tile, rectangle, flags);
     }
 
 }
@@ -16,7 +16,12 @@ import java.awt.*;
  */
 public class ClearLandPixelStrategy implements ClearPixelStrategy{
 
-    private Tile tile;
+    private static final int INVALID_FLAGS = (1 << ScapeMConstants.CLOUD_INVALID_BIT) |
+            (1 << ScapeMConstants.CLOUD_CERTAIN_BIT) |
+            (1 << ScapeMConstants.CLOUD_OCEAN_BIT);
+
+    private Rectangle rectangle;
+    private int[] flags;
 
     public ClearLandPixelStrategy() {
 
@@ -24,16 +29,20 @@ public class ClearLandPixelStrategy implements ClearPixelStrategy{
 
     @Override
     public boolean isValid(int x, int y) {
-        int sampleInt = tile.getSampleInt(x, y);
-        boolean isInvalid = BitSetter.isFlagSet(sampleInt, ScapeMConstants.CLOUD_INVALID_BIT);
-        boolean isCloud = BitSetter.isFlagSet(sampleInt, ScapeMConstants.CLOUD_CERTAIN_BIT);
-        boolean isOcean = BitSetter.isFlagSet(sampleInt, ScapeMConstants.CLOUD_OCEAN_BIT);
-        return !isCloud && !isInvalid && !isOcean;
+        int sampleInt = flags[(y - rectangle.y) * rectangle.width + (x - rectangle.x)];
+        return (sampleInt & INVALID_FLAGS) == 0;
+    }
+
+    @Override
+    public void fillMask(Rectangle rect, long[] bits) {
+        ClearPixelMask.fillMask(flags, rectangle, INVALID_FLAGS, rect, bits);
     }
 
     @Override
     public void setTile(Tile tile) {
-        this.tile = tile;
+        rectangle = tile.getRectangle();
+        flags = new int[rectangle.width * rectangle.height];
+        TileAccess.readSamples(tile, rectangle, flags);
     }
 
 }
@@ -0,0 +1,124 @@
+package org.esa.beam.util;
+
+import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * Bit-packed mask of the clear pixels of a cell, built once per cell by a {@link ClearPixelStrategy}.
+ * Bit i is set if the pixel with row-major index i in the cell rectangle is clear, i.e. pixel (x, y) is found at
+ * index (y - rect.y) * rect.width + (x - rect.x), in word index / 64 at bit index % 64.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class ClearPixelMask {
+
+    private final Rectangle rectangle;
+    private final long[] bits;
+    private final int clearCount;
+
+    private ClearPixelMask(Rectangle rectangle, long[] bits) {
+        this.rectangle = new Rectangle(rectangle);
+        this.bits = bits;
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        clearCount = count;
+    }
+
+    /**
+     * Builds the mask for a cell.
+     *
+     * @param clearPixelStrategy - strategy how clear pixels are determined
+     * @param rect               - the cell rectangle
+     * @return the mask
+     */
+    public static ClearPixelMask create(ClearPixelStrategy clearPixelStrategy, Rectangle rect) {
+        final long[] bits = new long[getNumWords(rect)];
+        clearPixelStrategy.fillMask(rect, bits);
+        return new ClearPixelMask(rect, bits);
+    }
+
+    /**
+     * @param rect - the cell rectangle
+     * @return the number of words needed for the mask of the rectangle
+     */
+    public static int getNumWords(Rectangle rect) {
+        return (rect.width * rect.height + 63) >>> 6;
+    }
+
+    /**
+     * Fills a mask from the flags of a tile: a pixel is clear if none of the given flags is set.
+     *
+     * @param flags        - the flag samples of the tile, in row-major order
+     * @param flagRect     - the tile rectangle
+     * @param invalidFlags - the flags marking a pixel as not clear
+     * @param rect         - the cell rectangle, inside the tile rectangle
+     * @param bits         - the mask to fill
+     */
+    public static void fillMask(int[] flags, Rectangle flagRect, int invalidFlags, Rectangle rect, long[] bits) {
+        Arrays.fill(bits, 0, getNumWords(rect), 0L);
+        int index = 0;
+        for (int y = rect.y; y < rect.y + rect.height; y++) {
+            int flagIndex = (y - flagRect.y) * flagRect.width + (rect.x - flagRect.x);
+            for (int x = 0; x < rect.width; x++) {
+                if ((flags[flagIndex++] & invalidFlags) == 0) {
+                    bits[index >>> 6] |= 1L << index;
+                }
+                index++;
+            }
+        }
+    }
+
+    /**
+     * Fills a mask from the per-pixel result of {@link ClearPixelStrategy#isValid(int, int)}.
+     *
+     * @param clearPixelStrategy - strategy how clear pixels are determined
+     * @param rect               - the cell rectangle
+     * @param bits               - the mask to fill
+     */
+    public static void fillMask(ClearPixelStrategy clearPixelStrategy, Rectangle rect, long[] bits) {
+        Arrays.fill(bits, 0, getNumWords(rect), 0L);
+        int index = 0;
+        for (int y = rect.y; y < rect.y + rect.height; y++) {
+            for (int x = rect.x; x < rect.x + rect.width; x++) {
+                if (clearPixelStrategy.isValid(x, y)) {
+                    bits[index >>> 6] |= 1L << index;
+                }
+                index++;
+            }
+        }
+    }
+
+    public Rectangle getRectangle() {
+        return new Rectangle(rectangle);
+    }
+
+    /**
+     * @param index - row-major index in the cell rectangle
+     * @return true if the pixel is clear
+     */
+    public boolean isClear(int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * @param x - the x coord
+     * @param y - the y coord
+     * @return true if the pixel is clear
+     */
+    public boolean isClear(int x, int y) {
+        return isClear((y - rectangle.y) * rectangle.width + (x - rectangle.x));
+    }
+
+    public int getClearCount() {
+        return clearCount;
+    }
+
+    /**
+     * @return the fraction of clear pixels in the cell
+     */
+    public double getClearFraction() {
+        return clearCount / (rectangle.getWidth() * rectangle.getHeight());
+    }
+}
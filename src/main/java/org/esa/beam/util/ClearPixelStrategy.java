@@ -2,6 +2,8 @@ package org.esa.beam.util;
 
 import org.esa.beam.framework.gpf.Tile;
 
+import java.awt.*;
+
 /**
  * Strategy to determine how clear pixels shall be defined in given tile
  * (i.e., over land only or both over land and water)
@@ -19,6 +21,14 @@ public interface ClearPixelStrategy {
      */
     boolean isValid(int x, int y);
 
+    /**
+     * fills a bit-packed mask of the valid clear pixels in given rectangle (see {@link ClearPixelMask})
+     *
+     * @param rect - the rectangle, inside the underlying tile
+     * @param bits - the mask, of at least {@link ClearPixelMask#getNumWords} words
+     */
+    void fillMask(Rectangle rect, long[] bits);
+
     /**
      * sets the underlying tile
      *
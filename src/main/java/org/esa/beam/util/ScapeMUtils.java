@@ -97,6 +97,66 @@ public class ScapeMUtils {
         return Math.sqrt(diffSqr/(src.length-1));
     }
 
+    /**
+     * Provides the indices belonging to the k largest values, in descending order of the values.
+     * Equal values keep the order of their indices, as a stable descending sort by
+     * {@link CellSampleComparator} would give. Only the k largest values are ordered (partial heap sort).
+     * The first count entries of values and indices are reordered.
+     *
+     * @param values  - the values
+     * @param indices - the indices belonging to the values, in ascending order
+     * @param count   - the number of valid entries in values and indices
+     * @param k       - the number of indices to provide, k <= count
+     * @return the indices of the k largest values
+     */
+    public static int[] getLargestValueIndices(double[] values, int[] indices, int count, int k) {
+        for (int i = count / 2 - 1; i >= 0; i--) {
+            siftDown(values, indices, i, count);
+        }
+        final int[] largest = new int[k];
+        int heapSize = count;
+        for (int i = 0; i < k; i++) {
+            largest[i] = indices[0];
+            heapSize--;
+            swap(values, indices, 0, heapSize);
+            siftDown(values, indices, 0, heapSize);
+        }
+        return largest;
+    }
+
+    // max-heap order: larger value first, lower index first for equal values
+    private static boolean isBefore(double[] values, int[] indices, int i, int j) {
+        final int compare = Double.compare(values[i], values[j]);
+        return compare > 0 || (compare == 0 && indices[i] < indices[j]);
+    }
+
+    private static void siftDown(double[] values, int[] indices, int i, int heapSize) {
+        while (true) {
+            final int left = 2 * i + 1;
+            if (left >= heapSize) {
+                return;
+            }
+            int first = left;
+            if (left + 1 < heapSize && isBefore(values, indices, left + 1, left)) {
+                first = left + 1;
+            }
+            if (!isBefore(values, indices, first, i)) {
+                return;
+            }
+            swap(values, indices, i, first);
+            i = first;
+        }
+    }
+
+    private static void swap(double[] values, int[] indices, int i, int j) {
+        final double value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+        final int index = indices[i];
+        indices[i] = indices[j];
+        indices[j] = index;
+    }
+
     // todo: check if still needed
     public static double getImageMeanValue(RenderedImage image) {
         // retrieve mean of source image of given band
@@ -0,0 +1,95 @@
+package org.esa.beam.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs small independent tasks of the SCAPE-M processing in parallel on a shared pool of daemon threads, one per
+ * processor. The calling thread takes part: it runs all tasks no pool thread has started yet, so that no task
+ * waits for a pool kept busy by other callers, e.g. by the tile computations of GPF.
+ * A task may itself invoke tasks, e.g. a cell row task the refinement runs of its cells: such nested tasks are run
+ * by the pool thread one after the other, as the pool is already kept busy by the outer tasks.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class TaskExecutor {
+
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService executorService;
+
+    private TaskExecutor() {
+    }
+
+    /**
+     * Runs the given tasks and waits for their results.
+     *
+     * @param tasks - the tasks, which may invoke tasks, but must not wait for other tasks of this executor otherwise
+     * @param <T>   - the result type
+     * @return the results, in the order of the tasks
+     * @throws InterruptedException if the calling thread is interrupted while waiting for a task
+     * @throws RuntimeException     the exception thrown by the first failing task
+     */
+    public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws InterruptedException {
+        final List<FutureTask<T>> futureTasks = new ArrayList<FutureTask<T>>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futureTasks.add(new FutureTask<T>(task));
+        }
+        if (NUM_THREADS > 1 && !(Thread.currentThread() instanceof PoolThread)) {
+            final ExecutorService executor = getExecutorService();
+            // the first task is run by the calling thread anyway
+            for (int i = 1; i < futureTasks.size(); i++) {
+                executor.execute(futureTasks.get(i));
+            }
+        }
+        for (FutureTask<T> futureTask : futureTasks) {
+            // does nothing if the task has been started by a pool thread
+            futureTask.run();
+        }
+
+        final List<T> results = new ArrayList<T>(tasks.size());
+        for (FutureTask<T> futureTask : futureTasks) {
+            try {
+                results.add(futureTask.get());
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+        return results;
+    }
+
+    private static synchronized ExecutorService getExecutorService() {
+        if (executorService == null) {
+            executorService = Executors.newFixedThreadPool(NUM_THREADS, new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new PoolThread(runnable, "scape-m-task-" + threadNumber.getAndIncrement());
+                }
+            });
+        }
+        return executorService;
+    }
+
+    private static class PoolThread extends Thread {
+
+        private PoolThread(Runnable runnable, String name) {
+            super(runnable, name);
+            setDaemon(true);
+        }
+    }
+}
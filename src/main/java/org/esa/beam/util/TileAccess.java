@@ -0,0 +1,270 @@
+package org.esa.beam.util;
+
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.esa.beam.framework.gpf.Tile;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Bulk access to the samples of a tile rectangle, as alternative to per-pixel calls of
+ * {@link Tile#getSampleDouble(int, int)} and {@link Tile#setSample(int, int, double)}.
+ * Samples are read from the tile data buffer scanline by scanline, and scaling is applied once per
+ * tile with the factor and offset of the raster. The results are identical to the per-pixel access.
+ * All sample arrays are in row-major order of the given rectangle.
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class TileAccess {
+
+    private TileAccess() {
+    }
+
+    /**
+     * Reads the geophysical samples of a rectangle, multiplied by a factor.
+     *
+     * @param tile    - the source tile
+     * @param rect    - the rectangle, must be inside the tile
+     * @param factor  - factor to apply to the geophysical values
+     * @param samples - array receiving (float) (geophysical value * factor)
+     */
+    public static void readSamples(Tile tile, Rectangle rect, double factor, float[] samples) {
+        final double[] row = new double[rect.width];
+        int index = 0;
+        for (int y = rect.y; y < rect.y + rect.height; y++) {
+            readGeophysicalRow(tile, rect.x, y, row);
+            for (int i = 0; i < rect.width; i++) {
+                samples[index++] = (float) (row[i] * factor);
+            }
+        }
+    }
+
+    /**
+     * Reads the geophysical samples of a rectangle.
+     *
+     * @param tile    - the source tile
+     * @param rect    - the rectangle, must be inside the tile
+     * @param samples - array receiving the geophysical values
+     */
+    public static void readSamples(Tile tile, Rectangle rect, double[] samples) {
+        final double[] row = new double[rect.width];
+        for (int y = rect.y; y < rect.y + rect.height; y++) {
+            readGeophysicalRow(tile, rect.x, y, row);
+            System.arraycopy(row, 0, samples, (y - rect.y) * rect.width, rect.width);
+        }
+    }
+
+    /**
+     * Reads the samples of a rectangle as integers, e.g. flags, as {@link Tile#getSampleInt(int, int)} does.
+     *
+     * @param tile    - the source tile
+     * @param rect    - the rectangle, must be inside the tile
+     * @param samples - array receiving the values
+     */
+    public static void readSamples(Tile tile, Rectangle rect, int[] samples) {
+        final RasterDataNode rasterDataNode = tile.getRasterDataNode();
+        if (rasterDataNode.isScalingApplied()) {
+            int index = 0;
+            for (int y = rect.y; y < rect.y + rect.height; y++) {
+                for (int x = rect.x; x < rect.x + rect.width; x++) {
+                    samples[index++] = tile.getSampleInt(x, y);
+                }
+            }
+            return;
+        }
+        final int dataType = rasterDataNode.getDataType();
+        if (isIntegerType(dataType)) {
+            // without the detour via double, which would saturate unsigned 32 bit values
+            for (int y = rect.y; y < rect.y + rect.height; y++) {
+                readRawIntRow(tile, dataType, rect.x, y, samples, (y - rect.y) * rect.width, rect.width);
+            }
+            return;
+        }
+        final double[] row = new double[rect.width];
+        int index = 0;
+        for (int y = rect.y; y < rect.y + rect.height; y++) {
+            readRawRow(tile, dataType, rect.x, y, row);
+            for (int i = 0; i < rect.width; i++) {
+                samples[index++] = (int) row[i];
+            }
+        }
+    }
+
+    /**
+     * Writes samples of a rectangle into a target tile. Float32 rasters without scaling are written
+     * in complete rows into the tile data buffer.
+     *
+     * @param tile    - the target tile
+     * @param rect    - the rectangle, must be inside the tile
+     * @param samples - the geophysical values
+     */
+    public static void writeSamples(Tile tile, Rectangle rect, float[] samples) {
+        if (isFloatBuffer(tile)) {
+            final float[] buffer = tile.getDataBufferFloat();
+            for (int y = rect.y; y < rect.y + rect.height; y++) {
+                System.arraycopy(samples, (y - rect.y) * rect.width,
+                                 buffer, tile.getDataBufferIndex(rect.x, y), rect.width);
+            }
+        } else {
+            int index = 0;
+            for (int y = rect.y; y < rect.y + rect.height; y++) {
+                for (int x = rect.x; x < rect.x + rect.width; x++) {
+                    tile.setSample(x, y, samples[index++]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets all samples of a rectangle in a target tile to the same value.
+     *
+     * @param tile  - the target tile
+     * @param rect  - the rectangle, must be inside the tile
+     * @param value - the geophysical value
+     */
+    public static void fillSamples(Tile tile, Rectangle rect, double value) {
+        if (isFloatBuffer(tile)) {
+            final float[] buffer = tile.getDataBufferFloat();
+            for (int y = rect.y; y < rect.y + rect.height; y++) {
+                final int rowIndex = tile.getDataBufferIndex(rect.x, y);
+                Arrays.fill(buffer, rowIndex, rowIndex + rect.width, (float) value);
+            }
+        } else {
+            for (int y = rect.y; y < rect.y + rect.height; y++) {
+                for (int x = rect.x; x < rect.x + rect.width; x++) {
+                    tile.setSample(x, y, value);
+                }
+            }
+        }
+    }
+
+    private static boolean isFloatBuffer(Tile tile) {
+        final RasterDataNode rasterDataNode = tile.getRasterDataNode();
+        return rasterDataNode.getDataType() == ProductData.TYPE_FLOAT32 && !rasterDataNode.isScalingApplied();
+    }
+
+    private static boolean isIntegerType(int dataType) {
+        return dataType == ProductData.TYPE_INT8 || dataType == ProductData.TYPE_UINT8 ||
+                dataType == ProductData.TYPE_INT16 || dataType == ProductData.TYPE_UINT16 ||
+                dataType == ProductData.TYPE_INT32 || dataType == ProductData.TYPE_UINT32;
+    }
+
+    // raw samples of a scanline segment of an integer raster, unsigned 32 bit values keeping their bit pattern
+    private static void readRawIntRow(Tile tile, int dataType, int x, int y, int[] samples, int index, int length) {
+        final int offset = tile.getDataBufferIndex(x, y);
+        switch (dataType) {
+            case ProductData.TYPE_INT8: {
+                final byte[] data = tile.getDataBufferByte();
+                for (int i = 0; i < length; i++) {
+                    samples[index + i] = data[offset + i];
+                }
+                break;
+            }
+            case ProductData.TYPE_UINT8: {
+                final byte[] data = tile.getDataBufferByte();
+                for (int i = 0; i < length; i++) {
+                    samples[index + i] = data[offset + i] & 0xff;
+                }
+                break;
+            }
+            case ProductData.TYPE_INT16: {
+                final short[] data = tile.getDataBufferShort();
+                for (int i = 0; i < length; i++) {
+                    samples[index + i] = data[offset + i];
+                }
+                break;
+            }
+            case ProductData.TYPE_UINT16: {
+                final short[] data = tile.getDataBufferShort();
+                for (int i = 0; i < length; i++) {
+                    samples[index + i] = data[offset + i] & 0xffff;
+                }
+                break;
+            }
+            default: {
+                // INT32 and UINT32
+                System.arraycopy(tile.getDataBufferInt(), offset, samples, index, length);
+            }
+        }
+    }
+
+    private static void readGeophysicalRow(Tile tile, int x, int y, double[] row) {
+        final RasterDataNode rasterDataNode = tile.getRasterDataNode();
+        if (rasterDataNode.isLog10Scaled()) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = tile.getSampleDouble(x + i, y);
+            }
+            return;
+        }
+        readRawRow(tile, rasterDataNode.getDataType(), x, y, row);
+        if (rasterDataNode.isScalingApplied()) {
+            final double scalingFactor = rasterDataNode.getScalingFactor();
+            final double scalingOffset = rasterDataNode.getScalingOffset();
+            for (int i = 0; i < row.length; i++) {
+                row[i] = row[i] * scalingFactor + scalingOffset;
+            }
+        }
+    }
+
+    // raw samples of a scanline segment, read from the data buffer of the given type
+    private static void readRawRow(Tile tile, int dataType, int x, int y, double[] row) {
+        final int offset = tile.getDataBufferIndex(x, y);
+        final int length = row.length;
+        switch (dataType) {
+            case ProductData.TYPE_INT8: {
+                final byte[] data = tile.getDataBufferByte();
+                for (int i = 0; i < length; i++) {
+                    row[i] = data[offset + i];
+                }
+                break;
+            }
+            case ProductData.TYPE_UINT8: {
+                final byte[] data = tile.getDataBufferByte();
+                for (int i = 0; i < length; i++) {
+                    row[i] = data[offset + i] & 0xff;
+                }
+                break;
+            }
+            case ProductData.TYPE_INT16: {
+                final short[] data = tile.getDataBufferShort();
+                for (int i = 0; i < length; i++) {
+                    row[i] = data[offset + i];
+                }
+                break;
+            }
+            case ProductData.TYPE_UINT16: {
+                final short[] data = tile.getDataBufferShort();
+                for (int i = 0; i < length; i++) {
+                    row[i] = data[offset + i] & 0xffff;
+                }
+                break;
+            }
+            case ProductData.TYPE_INT32: {
+                final int[] data = tile.getDataBufferInt();
+                for (int i = 0; i < length; i++) {
+                    row[i] = data[offset + i];
+                }
+                break;
+            }
+            case ProductData.TYPE_FLOAT32: {
+                final float[] data = tile.getDataBufferFloat();
+                for (int i = 0; i < length; i++) {
+                    row[i] = data[offset + i];
+                }
+                break;
+            }
+            case ProductData.TYPE_FLOAT64: {
+                final double[] data = tile.getDataBufferDouble();
+                System.arraycopy(data, offset, row, 0, length);
+                break;
+            }
+            default: {
+                final ProductData data = tile.getDataBuffer();
+                for (int i = 0; i < length; i++) {
+                    row[i] = data.getElemDoubleAt(offset + i);
+                }
+            }
+        }
+    }
+}
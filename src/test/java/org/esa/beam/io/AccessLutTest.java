@@ -3,7 +3,10 @@ package org.esa.beam.io;
 import junit.framework.TestCase;
 import org.esa.beam.util.math.LookupTable;
 
+import javax.imageio.stream.ImageInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 
 public class AccessLutTest extends TestCase {
@@ -195,4 +198,97 @@ public class AccessLutTest extends TestCase {
         assertEquals(0.540305, fInt[14][5], 1.E-4);
         assertEquals(0.474061, fInt[14][6], 1.E-4);
     }
+
+    public void testReadAtmParamLutFromBuffer() throws IOException {
+        final float[][] storedDimensions = {
+                {0.0f, 9.0f}, {10.0f, 20.0f}, {25.0f, 50.0f}, {0.0f, 0.7f}, {23.0f, 35.0f}, {2.0f, 2.7f}
+        };
+        int numValues = 7 * 15;
+        int headerLength = 0;
+        for (float[] dimension : storedDimensions) {
+            numValues *= dimension.length;
+            headerLength += 4 * (dimension.length + 1);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(headerLength + 4 * numValues).order(ByteOrder.LITTLE_ENDIAN);
+        for (float[] dimension : storedDimensions) {
+            buffer.putInt(dimension.length);
+            for (float value : dimension) {
+                buffer.putFloat(value);
+            }
+        }
+        for (int i = 0; i < numValues; i++) {
+            buffer.putFloat(0.5f * i);
+        }
+        buffer.flip();
+
+        final float[][] dimensions = LutAccess.readAtmParamLutDimensions(buffer);
+        assertEquals(8, dimensions.length);
+        assertEquals(2, dimensions[0].length);
+        assertEquals(9.0f, dimensions[0][1], 1.E-6);
+        assertEquals(50.0f, dimensions[2][1], 1.E-6);
+        assertEquals(7, dimensions[6].length);
+        assertEquals(15, dimensions[7].length);
+        assertEquals(headerLength, buffer.position());
+
+        final float[] values = LutAccess.readAtmParamLutValues(buffer, dimensions);
+        assertEquals(numValues, values.length);
+        for (int i = 0; i < numValues; i++) {
+            assertEquals(0.5f * i, values[i], 0.0);
+        }
+
+        // VZA is the slowest varying index, wavelength the fastest
+        LookupTable lut = new LookupTable(values, dimensions);
+        final double[] coord = {9.0, 10.0, 25.0, 0.0, 23.0, 2.0, 1.0, dimensions[7][1]};
+        assertEquals(0.5 * (numValues / 2 + 1), lut.getValue(coord), 1.E-4);
+    }
+
+    public void testBulkReadIsIdenticalToSequentialRead() throws IOException {
+        final ByteBuffer buffer = LutAccess.readAtmParamLutBuffer();
+        final float[][] dimensions = LutAccess.readAtmParamLutDimensions(buffer);
+        final float[] values = LutAccess.readAtmParamLutValues(buffer, dimensions);
+
+        ImageInputStream iis = LutAccess.getAtmParamLutData();
+        try {
+            for (int i = 0; i < 6; i++) {
+                final float[] dimension = LutAccess.readDimension(iis);
+                assertEquals(dimensions[i].length, dimension.length);
+                for (int j = 0; j < dimension.length; j++) {
+                    assertEquals(Float.floatToIntBits(dimension[j]), Float.floatToIntBits(dimensions[i][j]));
+                }
+            }
+            for (float value : values) {
+                assertEquals(Float.floatToIntBits(iis.readFloat()), Float.floatToIntBits(value));
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    public void testInterpolatorIsIdenticalToFullInterpolation() throws IOException {
+        LookupTable lut = LutAccess.getAtmParmsLookupTable();
+        final double[][] geometries = {{5.2, 30.7, 12.4}, {0.0, 60.0, 180.0}, {33.3, 17.0, 99.9}};
+        final double[][] conditions = {{0.3, 23.0, 2.0}, {1.2, 37.4, 0.9}, {0.0, 140.0, 4.5}};
+
+        final AtmParamInterpolator interpolator = new AtmParamInterpolator(lut);
+        final double[][] fInt = interpolator.createResultArray();
+        assertEquals(15, fInt.length);
+        assertEquals(7, fInt[0].length);
+
+        final double[] params = lut.getDimension(6).getSequence();
+        final double[] wvl = lut.getDimension(7).getSequence();
+        for (double[] geometry : geometries) {
+            interpolator.setGeometry(geometry[0], geometry[1], geometry[2]);
+            for (double[] condition : conditions) {
+                interpolator.interpolate(condition[0], condition[1], condition[2], fInt);
+                for (int i = 0; i < wvl.length; i++) {
+                    for (int j = 0; j < params.length; j++) {
+                        final double expected = lut.getValue(geometry[0], geometry[1], geometry[2],
+                                                             condition[0], condition[1], condition[2],
+                                                             params[j], wvl[i]);
+                        assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(fInt[i][j]));
+                    }
+                }
+            }
+        }
+    }
 }
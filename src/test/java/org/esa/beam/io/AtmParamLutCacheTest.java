@@ -0,0 +1,89 @@
+package org.esa.beam.io;
+
+import org.esa.beam.util.math.LookupTable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+
+public class AtmParamLutCacheTest {
+
+    private File cacheFile;
+    private float[][] dimensions;
+    private float[] values;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheFile = File.createTempFile("SCAPEM_LUT_MERIS", ".cache");
+        cacheFile.delete();
+        dimensions = new float[][]{{0.0f, 9.0f}, {10.0f, 20.0f, 35.0f}, {1.0f, 2.0f}};
+        values = new float[2 * 3 * 2];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 0.25f * i;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        cacheFile.delete();
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        AtmParamLutCache.write(cacheFile, dimensions, values, 1234L, 5678L);
+
+        final LookupTable lut = AtmParamLutCache.read(cacheFile, 1234L, 5678L);
+        assertNotNull(lut);
+        assertEquals(3, lut.getDimensionCount());
+        assertEquals(3, lut.getDimension(1).getCardinal());
+        assertEquals(35.0, lut.getDimension(1).get(2), 1.E-6);
+        assertEquals(0.25 * 9, lut.getValue(9.0, 20.0, 2.0), 1.E-6);
+    }
+
+    @Test
+    public void testMissingCacheIsNotRead() {
+        assertNull(AtmParamLutCache.read(cacheFile, 1234L, 5678L));
+    }
+
+    @Test
+    public void testStaleCacheIsNotRead() throws IOException {
+        AtmParamLutCache.write(cacheFile, dimensions, values, 1234L, 5678L);
+
+        assertNull(AtmParamLutCache.read(cacheFile, 1235L, 5678L));
+        assertNull(AtmParamLutCache.read(cacheFile, 1234L, 5679L));
+    }
+
+    @Test
+    public void testCorruptCacheIsNotRead() throws IOException {
+        AtmParamLutCache.write(cacheFile, dimensions, values, 1234L, 5678L);
+        RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+        try {
+            raf.seek(raf.length() - 2);
+            raf.write(0x7f);
+        } finally {
+            raf.close();
+        }
+
+        assertNull(AtmParamLutCache.read(cacheFile, 1234L, 5678L));
+    }
+
+    @Test
+    public void testTruncatedCacheIsNotRead() throws IOException {
+        AtmParamLutCache.write(cacheFile, dimensions, values, 1234L, 5678L);
+        RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+        try {
+            raf.setLength(raf.length() - 4);
+        } finally {
+            raf.close();
+        }
+
+        assertNull(AtmParamLutCache.read(cacheFile, 1234L, 5678L));
+    }
+}
@@ -0,0 +1,80 @@
+package org.esa.beam.io;
+
+import org.esa.beam.ScapeMConstants;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+
+public class AtmParamSliceTest {
+
+    private AtmParamLookupTable lut;
+
+    @Before
+    public void setUp() {
+        final float[][] dimensions = new float[][]{
+                {0.0f, 9.0f, 18.0f},
+                {10.0f, 25.0f, 40.0f},
+                {0.0f, 90.0f, 180.0f},
+                {0.0f, 0.75f, 1.5f},
+                {10.0f, 23.0f, 40.0f, 80.0f},
+                {0.3f, 1.0f, 2.5f},
+                {1.0f, 2.0f, 3.0f, 4.0f, 5.0f, 6.0f, 7.0f},
+                ScapeMConstants.MERIS_WAVELENGTHS
+        };
+        int numValues = 1;
+        for (float[] dimension : dimensions) {
+            numValues *= dimension.length;
+        }
+        final Random random = new Random(4711);
+        final float[] values = new float[numValues];
+        for (int i = 0; i < numValues; i++) {
+            values[i] = random.nextFloat();
+        }
+        lut = new AtmParamLookupTable(values, dimensions);
+    }
+
+    @Test
+    public void testInterpolateAllParameters() {
+        final double[][] geometries = {{5.2, 30.7, 12.4}, {0.0, 40.0, 180.0}, {17.9, 10.0, 99.9}};
+        final double[][] conditions = {{0.3, 23.0, 2.0}, {1.5, 37.4, 0.3}, {0.0, 80.0, 2.5}, {0.75, 10.0, 1.0}};
+
+        for (double[] geometry : geometries) {
+            final AtmParamSlice slice = AtmParamSlice.create(lut, geometry[0], geometry[1], geometry[2]);
+            final double[][] fInt = new double[slice.getNumWavelengths()][slice.getNumParameters()];
+            for (double[] condition : conditions) {
+                slice.interpolate(condition[0], condition[1], condition[2], fInt);
+                final double[][] expected = LutAccess.interpolAtmParamLut(lut, geometry[0], geometry[1], geometry[2],
+                                                                          condition[0], condition[1], condition[2]);
+                for (int i = 0; i < expected.length; i++) {
+                    for (int j = 0; j < expected[i].length; j++) {
+                        assertEquals(expected[i][j], fInt[i][j], 1.E-12);
+                        assertEquals(expected[i][j],
+                                     slice.interpolate(condition[0], condition[1], condition[2], i, j), 1.E-12);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGetValueAtGridNodes() {
+        final AtmParamSlice slice = AtmParamSlice.create(lut, 5.2, 30.7, 12.4);
+        final double[] hsf = lut.getDimension(3).getSequence();
+        final double[] vis = lut.getDimension(4).getSequence();
+        final double[] cwv = lut.getDimension(5).getSequence();
+
+        for (int k = 0; k < hsf.length; k++) {
+            for (int j = 0; j < vis.length; j++) {
+                for (int i = 0; i < cwv.length; i++) {
+                    final double[][] expected = LutAccess.interpolAtmParamLut(lut, 5.2, 30.7, 12.4,
+                                                                              hsf[k], vis[j], cwv[i]);
+                    assertEquals(expected[3][0], slice.getValue(k, j, i, 3, 0), 1.E-12);
+                    assertEquals(expected[14][6], slice.getValue(k, j, i, 14, 6), 1.E-12);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.esa.beam.math;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests for the bounded Levenberg-Marquardt minimisation
+ *
+ * @author Tonio Fincke, Olaf Danne
+ */
+public class LevenbergMarquardtTest {
+
+    // Rosenbrock function as sum of squares: r0 = 10 * (x1 - x0^2), r1 = 1 - x0
+    private static final LeastSquaresFunction ROSENBROCK = new LeastSquaresFunction() {
+        @Override
+        public int getNumResiduals() {
+            return 2;
+        }
+
+        @Override
+        public void computeResiduals(double[] x, double[] residuals, double[][] jacobian) {
+            residuals[0] = 10.0 * (x[1] - x[0] * x[0]);
+            residuals[1] = 1.0 - x[0];
+            jacobian[0][0] = -20.0 * x[0];
+            jacobian[0][1] = 10.0;
+            jacobian[1][0] = -1.0;
+            jacobian[1][1] = 0.0;
+        }
+    };
+
+    @Test
+    public void testUnboundedMinimum() {
+        final double[] x = {-1.2, 1.0};
+        final double[] lower = {-10.0, -10.0};
+        final double[] upper = {10.0, 10.0};
+        final LevenbergMarquardt levenbergMarquardt = new LevenbergMarquardt();
+        final double fmin = levenbergMarquardt.fmin(x, lower, upper, 1.E-12, ROSENBROCK);
+
+        assertEquals(0.0, fmin, 1.E-10);
+        assertEquals(1.0, x[0], 1.E-5);
+        assertEquals(1.0, x[1], 1.E-5);
+        assertTrue(levenbergMarquardt.getNumIterations() < 100);
+        assertTrue(levenbergMarquardt.getNumEvaluations() >= levenbergMarquardt.getNumIterations());
+    }
+
+    @Test
+    public void testMinimumOnBound() {
+        // x0 <= 0.5: minimum of (1 - x0)^2 + 100 * (x1 - x0^2)^2 is at (0.5, 0.25)
+        final double[] x = {0.0, 0.0};
+        final double[] lower = {-10.0, -10.0};
+        final double[] upper = {0.5, 10.0};
+        final LevenbergMarquardt levenbergMarquardt = new LevenbergMarquardt();
+        final double fmin = levenbergMarquardt.fmin(x, lower, upper, 1.E-12, ROSENBROCK);
+
+        assertEquals(0.25, fmin, 1.E-8);
+        assertEquals(0.5, x[0], 0.0);
+        assertEquals(0.25, x[1], 1.E-5);
+
+        // the start point is projected onto the bounds, and the minimiser can be reused
+        x[0] = 3.0;
+        x[1] = -3.0;
+        assertEquals(0.25, levenbergMarquardt.fmin(x, lower, upper, 1.E-12, ROSENBROCK), 1.E-8);
+        assertEquals(0.5, x[0], 0.0);
+    }
+}
@@ -36,6 +36,37 @@ public class PowellTest {
         assertEquals(-0.95900918, fmin, 1.E-5);
     }
 
+    @Test
+    public void testSolveWithReusedWorkspace() throws Exception {
+        final PowellWorkspace workspace = new PowellWorkspace();
+        final PowellTestFunction2D function = new PowellTestFunction2D();
+        final MvFunction function3D = new MvFunction() {
+            @Override
+            public double f(double[] x) {
+                return (x[0] - 1.0) * (x[0] - 1.0) + 2.0 * (x[1] + 0.5) * (x[1] + 0.5) + (x[2] - x[0]) * (x[2] - x[0]);
+            }
+        };
+
+        for (int i = 0; i < 2; i++) {
+            double[] xVector = new double[]{0.5, -0.25d};
+            double fmin = Powell.fmin(xVector, new double[][]{{1.0, 0.0}, {0.0, 1.0}}, 1.0e-4, function, workspace);
+            double[] xVectorExpected = new double[]{0.5, -0.25d};
+            double fminExpected = Powell.fmin(xVectorExpected, new double[][]{{1.0, 0.0}, {0.0, 1.0}}, 1.0e-4, function);
+            assertEquals(fminExpected, fmin, 0.0);
+            assertEquals(xVectorExpected[0], xVector[0], 0.0);
+            assertEquals(xVectorExpected[1], xVector[1], 0.0);
+
+            // workspace adapts to another number of variables
+            xVector = new double[]{0.0, 0.0, 0.0};
+            fmin = Powell.fmin(xVector, new double[][]{{1.0, 0.0, 0.0}, {0.0, 1.0, 0.0}, {0.0, 0.0, 1.0}},
+                               1.0e-8, function3D, workspace);
+            assertEquals(0.0, fmin, 1.E-8);
+            assertEquals(1.0, xVector[0], 1.E-4);
+            assertEquals(-0.5, xVector[1], 1.E-4);
+            assertEquals(1.0, xVector[2], 1.E-4);
+        }
+    }
+
     @Test
     public void testSolveMinimToa() throws Exception {
         // todo
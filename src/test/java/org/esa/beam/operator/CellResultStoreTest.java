@@ -0,0 +1,87 @@
+package org.esa.beam.operator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class CellResultStoreTest {
+
+    @Test
+    public void testVisibility() {
+        final CellResultStore store = new CellResultStore(4, 3, false);
+        assertTrue(Double.isNaN(store.getVisibility(1, 1)));
+        store.put(1, 1, 25.0, null);
+        assertEquals(25.0, store.getVisibility(1, 1), 0.0);
+        assertTrue(Double.isNaN(store.getVisibility(2, 1)));
+        assertNull(store.getSolutions(1, 1));
+    }
+
+    @Test
+    public void testSolutions() {
+        final double[][] directions = {{1.0, 0.0}, {0.0, 1.0}};
+        final CellResultStore store = new CellResultStore(3, 3, false);
+        store.put(0, 0, 20.0, new RefinementSolution[]{new RefinementSolution(new double[]{0.5, 20.0}, 0.1, directions)});
+        // not refined, or incomplete
+        store.put(1, 0, 21.0, null);
+        store.put(0, 1, 22.0, new RefinementSolution[]{null});
+
+        final RefinementSolution[] solutions = store.getSolutions(0, 0);
+        assertNotNull(solutions);
+        assertEquals(1, solutions.length);
+        assertEquals(20.0, solutions[0].getVisibility(), 0.0);
+        assertEquals(0.1, solutions[0].getFmin(), 0.0);
+        // directions not kept
+        assertNull(solutions[0].getDirections());
+        assertNull(store.getSolutions(1, 0));
+        assertNull(store.getSolutions(0, 1));
+        // not processed yet
+        assertNull(store.getSolutions(2, 2));
+
+        final CellResultStore storeWithDirections = new CellResultStore(3, 3, true);
+        storeWithDirections.put(0, 0, 20.0,
+                                new RefinementSolution[]{new RefinementSolution(new double[]{0.5, 20.0}, 0.1, directions)});
+        directions[0][0] = 2.0;
+        final double[][] storedDirections = storeWithDirections.getSolutions(0, 0)[0].getDirections();
+        assertEquals(1.0, storedDirections[0][0], 0.0);
+        assertEquals(1.0, storedDirections[1][1], 0.0);
+    }
+
+    @Test
+    public void testConcurrentPut() throws InterruptedException {
+        final int numCellsX = 50;
+        final int numCellsY = 40;
+        final CellResultStore store = new CellResultStore(numCellsX, numCellsY, false);
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int rowOffset = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int cellY = rowOffset; cellY < numCellsY; cellY += 4) {
+                        for (int cellX = 0; cellX < numCellsX; cellX++) {
+                            store.getSolutions(cellX > 0 ? cellX - 1 : cellX, cellY);
+                            store.put(cellX, cellY, cellY * numCellsX + cellX, null);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int cellY = 0; cellY < numCellsY; cellY++) {
+            for (int cellX = 0; cellX < numCellsX; cellX++) {
+                assertEquals(cellY * numCellsX + cellX, store.getVisibility(cellX, cellY), 0.0);
+            }
+        }
+    }
+}
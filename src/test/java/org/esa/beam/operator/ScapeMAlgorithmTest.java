@@ -0,0 +1,445 @@
+package org.esa.beam.operator;
+
+import org.esa.beam.ScapeMConstants;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.gpf.Tile;
+import org.esa.beam.io.AtmParamLookupTable;
+import org.esa.beam.io.AtmParamSlice;
+import org.esa.beam.io.LutAccess;
+import org.esa.beam.util.CellSample;
+import org.esa.beam.util.CellSampleComparator;
+import org.esa.beam.util.ClearPixelMask;
+import org.esa.beam.util.ClearPixelStrategy;
+import org.esa.beam.util.TestTiles;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+
+public class ScapeMAlgorithmTest {
+
+    private ScapeMLut scapeMLut;
+
+    @Before
+    public void setUp() {
+        final float[][] dimensions = new float[][]{
+                {0.0f, 9.0f, 18.0f},
+                {10.0f, 25.0f, 40.0f},
+                {0.0f, 90.0f, 180.0f},
+                {0.0f, 0.75f, 1.5f},
+                {10.0f, 15.0f, 23.0f, 40.0f, 80.0f},
+                {0.3f, 1.0f, 2.5f, 4.5f},
+                {1.0f, 2.0f, 3.0f, 4.0f, 5.0f, 6.0f, 7.0f},
+                ScapeMConstants.MERIS_WAVELENGTHS
+        };
+        int numValues = 1;
+        for (float[] dimension : dimensions) {
+            numValues *= dimension.length;
+        }
+        final Random random = new Random(4711);
+        final float[] values = new float[numValues];
+        for (int i = 0; i < numValues; i++) {
+            values[i] = 0.5f + random.nextFloat();
+        }
+        scapeMLut = new ScapeMLut(new AtmParamLookupTable(values, dimensions));
+    }
+
+    @Test
+    public void testComputeAtmosphereCube() {
+        final double vza = 5.2;
+        final double sza = 30.7;
+        final double raa = 12.4;
+        final double[] solirr = new double[ScapeMConstants.L1_BAND_NUM];
+        for (int bandId = 0; bandId < solirr.length; bandId++) {
+            solirr[bandId] = 0.1 + 0.01 * bandId;
+        }
+
+        final AtmParamSlice atmParamSlice = scapeMLut.createGeometrySlice(vza, sza, raa);
+        final CellAtmosphereCube cube = ScapeMAlgorithm.computeAtmosphereCube(atmParamSlice, solirr, 0.7, scapeMLut);
+
+        for (int i = 0; i < cube.getDimWv(); i++) {
+            for (int j = 0; j < cube.getDimVis(); j++) {
+                for (int k = 0; k < cube.getDimHsurf(); k++) {
+                    final double[][] fInt = LutAccess.interpolAtmParamLut(scapeMLut.getAtmParamLut(), vza, sza, raa,
+                                                                          scapeMLut.getHsfArrayLUT()[k],
+                                                                          scapeMLut.getVisArrayLUT()[j],
+                                                                          scapeMLut.getCwvArrayLUT()[i]);
+                    for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+                        assertEquals(fInt[bandId][0], cube.get(CellAtmosphereCube.LPW, bandId, i, j, k), 1.E-12);
+                        assertEquals(fInt[bandId][1], cube.get(CellAtmosphereCube.E0TW, bandId, i, j, k), 1.E-12);
+                        assertEquals(fInt[bandId][2], cube.get(CellAtmosphereCube.EDIFTW, bandId, i, j, k), 1.E-12);
+                        assertEquals(fInt[bandId][4], cube.get(CellAtmosphereCube.SAB, bandId, i, j, k), 1.E-12);
+                        final double expectedTDirD =
+                                fInt[bandId][1] / (fInt[bandId][5] * (1.0 + fInt[bandId][3]) * solirr[bandId]);
+                        assertEquals(expectedTDirD, cube.get(CellAtmosphereCube.TDIRD, bandId, i, j, k), 1.E-10);
+
+                        // etw as affine function of the pixel cos(SZA)
+                        final double cosSza = 0.55;
+                        final double expectedEtw = fInt[bandId][1] * cosSza +
+                                fInt[bandId][2] * (expectedTDirD * cosSza + (1.0 - expectedTDirD * 0.7));
+                        final double etw = cosSza * cube.get(CellAtmosphereCube.ETW_COS_SZA, bandId, i, j, k) +
+                                cube.get(CellAtmosphereCube.ETW_CONST, bandId, i, j, k);
+                        assertEquals(expectedEtw, etw, 1.E-10);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCellAtmosphereCubeLayout() {
+        final CellAtmosphereCube cube = new CellAtmosphereCube(15, 6, 7, 3);
+        assertEquals(CellAtmosphereCube.NUM_PARAMS * 15 * 6 * 7 * 3, cube.getData().length);
+        // bands of a grid node are adjacent, followed by the next hsf node
+        assertEquals(cube.getIndex(CellAtmosphereCube.SAB, 2, 4, 1) + 15, cube.getIndex(CellAtmosphereCube.SAB, 2, 4, 2));
+        assertEquals(cube.getIndex(CellAtmosphereCube.SAB, 2, 4, 0) + cube.getVisStride(),
+                     cube.getIndex(CellAtmosphereCube.SAB, 2, 5, 0));
+
+        cube.set(CellAtmosphereCube.ETW_CONST, 14, 5, 6, 2, 0.42);
+        assertEquals(0.42, cube.get(CellAtmosphereCube.ETW_CONST, 14, 5, 6, 2), 0.0);
+        assertEquals(0.42, cube.getData()[cube.getData().length - 1], 0.0);
+    }
+
+    @Test
+    public void testGetLowerGridIndex() {
+        final double[] grid = {0.0, 0.75, 1.5};
+        assertEquals(0, ScapeMAlgorithm.getLowerGridIndex(grid, -0.1));
+        assertEquals(0, ScapeMAlgorithm.getLowerGridIndex(grid, 0.0));
+        assertEquals(0, ScapeMAlgorithm.getLowerGridIndex(grid, 0.7));
+        assertEquals(1, ScapeMAlgorithm.getLowerGridIndex(grid, 0.75));
+        assertEquals(1, ScapeMAlgorithm.getLowerGridIndex(grid, 1.5));
+        assertEquals(1, ScapeMAlgorithm.getLowerGridIndex(grid, 2.0));
+        assertEquals(0, ScapeMAlgorithm.getLowerGridIndex(grid, Double.NaN));
+    }
+
+    @Test
+    public void testCellBufferLayout() {
+        final CellBuffer cellBuffer = new CellBuffer(new Rectangle(10, 20, 4, 3), 2);
+        assertEquals(12, cellBuffer.getHsurf().length);
+        assertEquals(12, cellBuffer.getToa(1).length);
+        // row-major, relative to the cell rectangle
+        assertEquals(6, cellBuffer.getIndex(2, 1));
+        cellBuffer.getToa(1)[6] = 0.25f;
+        cellBuffer.getCosSza()[11] = 0.5f;
+        assertEquals(0.25, cellBuffer.getToa(1, 2, 1), 0.0);
+        assertEquals(0.5, cellBuffer.getCosSza(3, 2), 0.0);
+    }
+
+    @Test
+    public void testCellStatistics() {
+        final Rectangle rect = new Rectangle(10, 20, 4, 3);
+        final CellBuffer cellBuffer = new CellBuffer(rect, 2);
+        final float[] hsurf = cellBuffer.getHsurf();
+        final float[] cosSza = cellBuffer.getCosSza();
+        final float[] toa = cellBuffer.getToa(0);
+        for (int i = 0; i < hsurf.length; i++) {
+            hsurf[i] = i;
+            cosSza[i] = 0.5f + 0.01f * i;
+            toa[i] = 0.1f * (i + 1);
+            cellBuffer.getToa(1)[i] = 1.0f;
+        }
+        hsurf[5] = Float.NaN;
+        cosSza[1] = Float.NaN;
+        toa[3] = 0.0f;
+        toa[4] = Float.NaN;
+        toa[7] = 0.05f;
+
+        // only the first image row is clear
+        final ClearPixelStrategy firstRowStrategy = new ClearPixelStrategy() {
+            @Override
+            public boolean isValid(int x, int y) {
+                return y == rect.y;
+            }
+
+            @Override
+            public void fillMask(Rectangle rect, long[] bits) {
+                ClearPixelMask.fillMask(this, rect, bits);
+            }
+
+            @Override
+            public void setTile(Tile tile) {
+            }
+        };
+        final ClearPixelMask clearPixelMask = ClearPixelMask.create(firstRowStrategy, rect);
+        assertEquals(true, ScapeMAlgorithm.isCellClearLand(clearPixelMask, 0.3));
+        assertEquals(false, ScapeMAlgorithm.isCellClearLand(clearPixelMask, 0.35));
+
+        final CellStatistics cellStatistics = CellStatistics.compute(cellBuffer, clearPixelMask);
+        assertEquals(1.5, cellStatistics.getHsurfMean(), 1.E-12);
+        assertEquals((0.5f + 0.52f + 0.53f) / 3.0, cellStatistics.getCosSzaMean(), 1.E-6);
+        // TOA minimum is taken over all pixels, ignoring zero and NaN
+        assertEquals(0.05, cellStatistics.getToaMin(0), 1.E-7);
+        assertEquals(1.0, cellStatistics.getToaMin(1), 0.0);
+        assertEquals(2, cellStatistics.getToaMin().length);
+    }
+
+    @Test
+    public void testSelectRefPixels() {
+        final Rectangle rect = new Rectangle(0, 0, 20, 15);
+        final CellBuffer cellBuffer = new CellBuffer(rect, ScapeMConstants.L1_BAND_NUM);
+        final float[] hsurf = cellBuffer.getHsurf();
+        final float[] cosSza = cellBuffer.getCosSza();
+        final Random random = new Random(4711);
+        for (int i = 0; i < hsurf.length; i++) {
+            hsurf[i] = i % 17 == 0 ? 2.0f : 1.0f;
+            cosSza[i] = 0.5f;
+            for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+                cellBuffer.getToa(bandId)[i] = 0.01f * (bandId + 1) + 0.001f * i;
+            }
+            // few distinct values, so that many NDVIs are equal
+            cellBuffer.getToa(7)[i] = (float) (0.01 * ScapeMConstants.solIrr7);
+            cellBuffer.getToa(9)[i] = (float) (0.01 * (1 + (3 + random.nextInt(17)) * 0.1) * ScapeMConstants.solIrr9);
+        }
+
+        final int[][] refPixelIndices = ScapeMAlgorithm.selectRefPixelIndices(cellBuffer, 1.0, 0.5);
+
+        // expected: stable descending sort of the NDVI classes
+        final List<CellSample> high = new ArrayList<CellSample>();
+        final List<CellSample> medium = new ArrayList<CellSample>();
+        final List<CellSample> low = new ArrayList<CellSample>();
+        for (int y = 0; y < rect.height; y++) {
+            for (int x = 0; x < rect.width; x++) {
+                final int index = cellBuffer.getIndex(x, y);
+                final double toa7 = cellBuffer.getToa(7)[index] / ScapeMConstants.solIrr7;
+                final double toa9 = cellBuffer.getToa(9)[index] / ScapeMConstants.solIrr9;
+                final double ndvi = (toa9 - toa7) / (toa9 + toa7);
+                if (hsurf[index] < 1.2) {
+                    if (ndvi >= 0.4 && ndvi < 0.9) {
+                        high.add(new CellSample(x, y, ndvi));
+                    } else if (ndvi >= 0.15 && ndvi < 0.4) {
+                        medium.add(new CellSample(x, y, ndvi));
+                    } else if (ndvi >= 0.09 && ndvi < 0.15) {
+                        low.add(new CellSample(x, y, ndvi));
+                    }
+                }
+            }
+        }
+        final CellSampleComparator comparator = new CellSampleComparator(true);
+        Collections.sort(high, comparator);
+        Collections.sort(medium, comparator);
+        Collections.sort(low, comparator);
+
+        final int nLim = Math.min(high.size() / 2, medium.size() / 3);
+        assertEquals(true, nLim > low.size());
+        assertEquals(nLim, refPixelIndices.length);
+        for (int i = 0; i < nLim; i++) {
+            assertEquals(getIndex(cellBuffer, high.get(2 * i)), refPixelIndices[i][0]);
+            assertEquals(getIndex(cellBuffer, high.get(2 * i + 1)), refPixelIndices[i][1]);
+            assertEquals(getIndex(cellBuffer, medium.get(2 * i)), refPixelIndices[i][2]);
+            assertEquals(getIndex(cellBuffer, medium.get(2 * i + 1)), refPixelIndices[i][3]);
+            final CellSample fifth = i < low.size() ? low.get(i) : medium.get(2 * i + 2);
+            assertEquals(getIndex(cellBuffer, fifth), refPixelIndices[i][4]);
+        }
+
+        final double[][][] refPixels = ScapeMAlgorithm.extractRefPixels(cellBuffer, refPixelIndices);
+        assertEquals(ScapeMConstants.L1_BAND_NUM, refPixels.length);
+        for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+            assertEquals(nLim, refPixels[bandId].length);
+            for (int j = 0; j < ScapeMConstants.NUM_REF_PIXELS; j++) {
+                final int index = refPixelIndices[nLim - 1][j];
+                assertEquals(cellBuffer.getToa(bandId, index % rect.width, index / rect.width),
+                             refPixels[bandId][nLim - 1][j], 0.0);
+            }
+        }
+
+        // no reference pixels without medium NDVIs
+        Arrays.fill(cellBuffer.getToa(9), cellBuffer.getToa(7)[0]);
+        assertEquals(null, ScapeMAlgorithm.selectRefPixelIndices(cellBuffer, 1.0, 0.5));
+    }
+
+    @Test
+    public void testCoarseVisibilitySearch() {
+        final float[][] dimensions = new float[][]{
+                {0.0f, 9.0f, 18.0f},
+                {10.0f, 25.0f, 40.0f},
+                {0.0f, 90.0f, 180.0f},
+                {0.0f, 0.75f, 1.5f},
+                {10.0f, 15.0f, 23.0f, 40.0f, 80.0f},
+                {0.3f, 1.0f, 2.5f, 4.5f},
+                {1.0f, 2.0f, 3.0f, 4.0f, 5.0f, 6.0f, 7.0f},
+                ScapeMConstants.MERIS_WAVELENGTHS
+        };
+        final int numWvl = dimensions[7].length;
+        final int numParams = dimensions[6].length;
+        final int numCwv = dimensions[5].length;
+        final int numVis = dimensions[4].length;
+        final float[] values = new float[3 * 3 * 3 * 3 * numVis * numCwv * numParams * numWvl];
+        final Random random = new Random(4711);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 0.5f + random.nextFloat();
+            if ((i / numWvl) % numParams == 0) {
+                // path radiance decreasing with visibility
+                final int visIndex = (i / (numWvl * numParams * numCwv)) % numVis;
+                values[i] = 0.2f * (numVis - visIndex) + 0.1f * random.nextFloat();
+            }
+        }
+        final ScapeMLut monotoneLut = new ScapeMLut(new AtmParamLookupTable(values, dimensions));
+        // path radiance rising again at the 40km node, so that bisection would miss the first low enough visibility
+        final float[] bumpedValues = values.clone();
+        for (int i = 0; i < bumpedValues.length; i++) {
+            final int visIndex = (i / (numWvl * numParams * numCwv)) % numVis;
+            if ((i / numWvl) % numParams == 0 && visIndex == 3) {
+                bumpedValues[i] = 0.2f * (numVis - 1) + 0.1f * random.nextFloat();
+            }
+        }
+        final ScapeMLut bumpedLut = new ScapeMLut(new AtmParamLookupTable(bumpedValues, dimensions));
+
+        final Rectangle rect = new Rectangle(0, 0, 2, 1);
+        final ClearPixelStrategy allClearStrategy = new ClearPixelStrategy() {
+            @Override
+            public boolean isValid(int x, int y) {
+                return true;
+            }
+
+            @Override
+            public void fillMask(Rectangle rect, long[] bits) {
+                ClearPixelMask.fillMask(this, rect, bits);
+            }
+
+            @Override
+            public void setTile(Tile tile) {
+            }
+        };
+        final ClearPixelMask clearPixelMask = ClearPixelMask.create(allClearStrategy, rect);
+        final CellBuffer cellBuffer = new CellBuffer(rect, ScapeMConstants.L1_BAND_NUM);
+        Arrays.fill(cellBuffer.getHsurf(), 0.4f);
+        Arrays.fill(cellBuffer.getCosSza(), 0.8f);
+
+        // bisection with the monotone LUT, the walk with the others
+        for (ScapeMLut lut : new ScapeMLut[]{monotoneLut, bumpedLut, scapeMLut}) {
+            final AtmParamSlice atmParamSlice = lut.createGeometrySlice(5.2, 30.7, 12.4);
+            for (int n = 0; n < 200; n++) {
+                for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+                    cellBuffer.getToa(bandId)[0] = 0.15f + 1.1f * random.nextFloat();
+                    cellBuffer.getToa(bandId)[1] = 2.0f;
+                }
+                final CellStatistics cellStatistics = CellStatistics.compute(cellBuffer, clearPixelMask);
+
+                final double expected = walkCoarseVisibility(atmParamSlice, cellStatistics, lut);
+                assertEquals(expected, ScapeMAlgorithm.getCoarseVisibility(atmParamSlice, cellStatistics, 2.0, lut),
+                             0.0);
+            }
+        }
+    }
+
+    // the coarse visibility search as linear walk over the visibility grid, as in the IDL breadboard
+    private static double walkCoarseVisibility(AtmParamSlice atmParamSlice, CellStatistics cellStatistics,
+                                               ScapeMLut lut) {
+        final double[] step = {1.0, 0.1};
+        double vis = lut.getVisMin() - step[0];
+        for (int i = 0; i <= 1; i++) {
+            if (i == 1) {
+                vis = Math.max(vis - step[0], lut.getVisMin());
+            }
+            boolean repeat = true;
+            while (((vis + step[i]) < lut.getVisMax()) && repeat) {
+                vis += step[i];
+                repeat = false;
+                for (int j = 0; j < lut.getVisArrayLUT().length; j++) {
+                    if (cellStatistics.getToaMin(j) <= atmParamSlice.interpolate(0.4, vis, 2.0, j, 0)) {
+                        repeat = true;
+                    }
+                }
+            }
+        }
+        return vis - step[1];
+    }
+
+    @Test
+    public void testComputeAcResultWithFloatReflKernel() {
+        final Rectangle rect = new Rectangle(10, 20, 9, 5);
+        // some pixels of each row not clear, so that the clear pixels are compacted
+        final ClearPixelStrategy clearPixelStrategy = new ClearPixelStrategy() {
+            @Override
+            public boolean isValid(int x, int y) {
+                return (x + 2 * y) % 4 != 0;
+            }
+
+            @Override
+            public void fillMask(Rectangle rect, long[] bits) {
+                ClearPixelMask.fillMask(this, rect, bits);
+            }
+
+            @Override
+            public void setTile(Tile tile) {
+            }
+        };
+        final ClearPixelMask clearPixelMask = ClearPixelMask.create(clearPixelStrategy, rect);
+
+        final CellBuffer cellBuffer = new CellBuffer(rect, ScapeMConstants.L1_BAND_NUM);
+        final int cellSize = rect.width * rect.height;
+        final float[] visibility = new float[cellSize];
+        final float[] radiance13 = new float[cellSize];
+        final float[] radiance14 = new float[cellSize];
+        final Random random = new Random(4711);
+        for (int i = 0; i < cellSize; i++) {
+            cellBuffer.getHsurf()[i] = 1.4f * random.nextFloat();
+            cellBuffer.getCosSza()[i] = 0.75f + 0.1f * random.nextFloat();
+            for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+                // above the path radiances of the test LUT
+                cellBuffer.getToa(bandId)[i] = 2.0f + random.nextFloat();
+            }
+            visibility[i] = 12.0f + 60.0f * random.nextFloat();
+            radiance13[i] = 80.0f + 20.0f * random.nextFloat();
+            radiance14[i] = 60.0f + 20.0f * random.nextFloat();
+        }
+        final Tile visibilityTile = createFloatTile(rect, visibility);
+        final Tile radianceTile13 = createFloatTile(rect, radiance13);
+        final Tile radianceTile14 = createFloatTile(rect, radiance14);
+
+        final double[] solirr = new double[ScapeMConstants.L1_BAND_NUM];
+        for (int bandId = 0; bandId < solirr.length; bandId++) {
+            solirr[bandId] = 0.1 + 0.01 * bandId;
+        }
+        final CellStatistics cellStatistics = CellStatistics.compute(cellBuffer, clearPixelMask);
+        final AtmParamSlice atmParamSlice = scapeMLut.createGeometrySlice(5.2, 30.7, 12.4);
+        final CellAtmosphereCube atmosphereCube =
+                ScapeMAlgorithm.computeAtmosphereCube(atmParamSlice, solirr, cellStatistics.getCosSzaMean(), scapeMLut);
+        final double[][] fInt = new double[atmParamSlice.getNumWavelengths()][atmParamSlice.getNumParameters()];
+        atmParamSlice.interpolate(cellStatistics.getHsurfMean(), ScapeMConstants.VIS_INIT, ScapeMConstants.WV_INIT, fInt);
+        final double[][] reflImage = ScapeMAlgorithm.getReflImage(fInt, cellBuffer);
+
+        final ScapeMResult doubleResult = ScapeMAlgorithm.computeAcResult(cellBuffer, visibilityTile, clearPixelMask,
+                                                                          false, false, false, reflImage,
+                                                                          radianceTile13, radianceTile14,
+                                                                          scapeMLut, atmosphereCube);
+        final ScapeMResult floatResult = ScapeMAlgorithm.computeAcResult(cellBuffer, visibilityTile, clearPixelMask,
+                                                                         false, false, true, reflImage,
+                                                                         radianceTile13, radianceTile14,
+                                                                         scapeMLut, atmosphereCube);
+
+        for (int y = 0; y < rect.height; y++) {
+            for (int x = 0; x < rect.width; x++) {
+                // water vapour is not affected
+                assertEquals(doubleResult.getWvPixel(x, y), floatResult.getWvPixel(x, y), 0.0);
+                for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+                    if (bandId != 10 && bandId != 14) {
+                        final double expected = doubleResult.getReflPixel(bandId, x, y);
+                        assertEquals(expected, floatResult.getReflPixel(bandId, x, y), 1.E-5 * Math.abs(expected));
+                    }
+                }
+            }
+        }
+        // not clear
+        assertEquals(ScapeMConstants.AC_NODATA, floatResult.getReflPixel(0, 2, 0), 0.0);
+        assertEquals(ScapeMConstants.AC_NODATA, floatResult.getWvPixel(2, 0), 0.0);
+    }
+
+    // tile of the given rectangle with a float buffer without padding
+    private static Tile createFloatTile(Rectangle rect, float[] buffer) {
+        final Band band = new Band("float_band", ProductData.TYPE_FLOAT32, 100, 100);
+        return TestTiles.createTile(band, rect, 0, rect.width, buffer);
+    }
+
+    private static int getIndex(CellBuffer cellBuffer, CellSample cellSample) {
+        return cellBuffer.getIndex(cellSample.getCellXIndex(), cellSample.getCellYIndex());
+    }
+}
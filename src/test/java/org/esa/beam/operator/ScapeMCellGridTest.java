@@ -0,0 +1,145 @@
+package org.esa.beam.operator;
+
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class ScapeMCellGridTest {
+
+    @Test
+    public void testCellGrid() {
+        final ScapeMCellGrid cellGrid = new ScapeMCellGrid(7, 5, 3, 2);
+        assertEquals(3, cellGrid.getNumCellColumns());
+        assertEquals(3, cellGrid.getNumCellRows());
+        assertTrue(Float.isNaN(cellGrid.getCellValue(2, 1)));
+
+        cellGrid.setCellValue(2, 1, 23.5f);
+        assertEquals(23.5f, cellGrid.getCellValue(2, 1), 0.0f);
+
+        assertEquals(new Rectangle(0, 0, 3, 2), cellGrid.getCellRectangle(0, 0));
+        assertEquals(new Rectangle(3, 2, 3, 2), cellGrid.getCellRectangle(1, 1));
+        // cells at the right and lower scene border
+        assertEquals(new Rectangle(6, 2, 1, 2), cellGrid.getCellRectangle(2, 1));
+        assertEquals(new Rectangle(6, 4, 1, 1), cellGrid.getCellRectangle(2, 2));
+    }
+
+    @Test
+    public void testCreateImage() {
+        final ScapeMCellGrid cellGrid = new ScapeMCellGrid(7, 5, 3, 2);
+        for (int y = 0; y < cellGrid.getNumCellRows(); y++) {
+            for (int x = 0; x < cellGrid.getNumCellColumns(); x++) {
+                cellGrid.setCellValue(x, y, 10 * y + x);
+            }
+        }
+
+        // a rectangle across several cells
+        final Raster data = cellGrid.createImage().getData(new Rectangle(1, 1, 6, 4));
+        for (int y = 1; y < 5; y++) {
+            for (int x = 1; x < 7; x++) {
+                assertEquals(10 * (y / 2) + x / 3, data.getSampleFloat(x, y, 0), 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void testReadAllCells() throws InterruptedException {
+        final AtomicInteger numComputations = new AtomicInteger();
+        // computes a cell on first access, from its left neighbour
+        final ScapeMCellGrid cellGrid = new ScapeMCellGrid(100, 60, 10, 10) {
+            private final boolean[][] computed = new boolean[getNumCellRows()][getNumCellColumns()];
+
+            @Override
+            public synchronized float getCellValue(int cellX, int cellY) {
+                if (!computed[cellY][cellX]) {
+                    numComputations.incrementAndGet();
+                    final float leftValue = cellX > 0 && computed[cellY][cellX - 1] ? super.getCellValue(cellX - 1, cellY) : 0.0f;
+                    setCellValue(cellX, cellY, leftValue + 1.0f);
+                    computed[cellY][cellX] = true;
+                }
+                return super.getCellValue(cellX, cellY);
+            }
+        };
+
+        cellGrid.readAllCells();
+
+        assertEquals(60, numComputations.get());
+        for (int y = 0; y < cellGrid.getNumCellRows(); y++) {
+            for (int x = 0; x < cellGrid.getNumCellColumns(); x++) {
+                assertEquals(x + 1.0f, cellGrid.getCellValue(x, y), 0.0f);
+            }
+        }
+        assertEquals(60, numComputations.get());
+    }
+
+    @Test
+    public void testBoxFilter() {
+        // partial cells at the right and lower border
+        final ScapeMCellGrid cellGrid = new ScapeMCellGrid(23, 17, 5, 4);
+        final Random random = new Random(5);
+        for (int y = 0; y < cellGrid.getNumCellRows(); y++) {
+            for (int x = 0; x < cellGrid.getNumCellColumns(); x++) {
+                cellGrid.setCellValue(x, y, 10.0f + 50.0f * random.nextFloat());
+            }
+        }
+
+        final Rectangle[] rects = {new Rectangle(0, 0, 23, 17), new Rectangle(7, 3, 11, 9), new Rectangle(22, 16, 1, 1)};
+        for (int kernelSize : new int[]{1, 4, 5, 6, 9, 30}) {
+            for (Rectangle rect : rects) {
+                final float[] values = new float[rect.width * rect.height];
+                cellGrid.boxFilter(kernelSize, rect, values);
+                int index = 0;
+                for (int y = rect.y; y < rect.y + rect.height; y++) {
+                    for (int x = rect.x; x < rect.x + rect.width; x++) {
+                        final double expected = boxFilterWithBorderCopy(cellGrid, kernelSize, x, y);
+                        assertEquals(expected, values[index++], 1.E-5 * expected);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBoxFilteredImageAsJaiBoxFilter() {
+        // partial cells at the right and lower border
+        final ScapeMCellGrid cellGrid = new ScapeMCellGrid(23, 17, 5, 4);
+        final Random random = new Random(11);
+        for (int y = 0; y < cellGrid.getNumCellRows(); y++) {
+            for (int x = 0; x < cellGrid.getNumCellColumns(); x++) {
+                cellGrid.setCellValue(x, y, 10.0f + 50.0f * random.nextFloat());
+            }
+        }
+
+        // even and odd kernel sizes, and a kernel larger than the cells
+        for (int kernelSize : new int[]{4, 5, 9}) {
+            final Raster data = cellGrid.createBoxFilteredImage(kernelSize).getData();
+            // the box filter used by the smoothing operator without cell grid
+            final Raster jaiData =
+                    ScapeMSmoothSimpleKernelOp.createBoxFilteredImage(cellGrid.createImage(), kernelSize).getData();
+            for (int y = 0; y < cellGrid.getSceneHeight(); y++) {
+                for (int x = 0; x < cellGrid.getSceneWidth(); x++) {
+                    final float expected = jaiData.getSampleFloat(x, y, 0);
+                    assertEquals(expected, data.getSampleFloat(x, y, 0), 1.E-5f * expected);
+                }
+            }
+        }
+    }
+
+    // the mean of the up-sampled grid over the kernel, kernel pixels outside of the scene copied from the border
+    private static double boxFilterWithBorderCopy(ScapeMCellGrid cellGrid, int kernelSize, int x, int y) {
+        double sum = 0.0;
+        for (int j = y - kernelSize / 2; j < y - kernelSize / 2 + kernelSize; j++) {
+            final int clampedY = Math.max(0, Math.min(cellGrid.getSceneHeight() - 1, j));
+            for (int i = x - kernelSize / 2; i < x - kernelSize / 2 + kernelSize; i++) {
+                final int clampedX = Math.max(0, Math.min(cellGrid.getSceneWidth() - 1, i));
+                sum += cellGrid.getCellValue(clampedX / cellGrid.getCellWidth(), clampedY / cellGrid.getCellHeight());
+            }
+        }
+        return sum / (kernelSize * kernelSize);
+    }
+}
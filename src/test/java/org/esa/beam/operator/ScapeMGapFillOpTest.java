@@ -0,0 +1,169 @@
+package org.esa.beam.operator;
+
+import org.esa.beam.ScapeMConstants;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+
+public class ScapeMGapFillOpTest {
+
+    private static final double NO_DATA_VALUE = ScapeMConstants.VISIBILITY_NODATA_VALUE;
+
+    @Test
+    public void testGapFilledGridAsPerTileGapFilling() {
+        final ScapeMCellGrid cellGrid = createCellGridWithGaps();
+
+        final ScapeMCellGrid gapFilledGrid = new ScapeMGapFillOp.GapFilledGrid(cellGrid, NO_DATA_VALUE);
+
+        assertGapFilledAsPerTile(cellGrid, gapFilledGrid);
+    }
+
+    @Test
+    public void testGapFilledGridFromBand() {
+        final ScapeMCellGrid cellGrid = createCellGridWithGaps();
+        final Band band = new Band(ScapeMConstants.VISIBILITY_BAND_NAME, ProductData.TYPE_FLOAT32,
+                                   cellGrid.getSceneWidth(), cellGrid.getSceneHeight());
+        band.setNoDataValue(NO_DATA_VALUE);
+        band.setSourceImage(cellGrid.createImage());
+
+        final ScapeMCellGrid bandCellGrid = new ScapeMGapFillOp.BandCellGrid(band,
+                                                                             cellGrid.getSceneWidth(),
+                                                                             cellGrid.getSceneHeight(),
+                                                                             cellGrid.getCellWidth(),
+                                                                             cellGrid.getCellHeight());
+        assertEquals(cellGrid.getNumCellColumns(), bandCellGrid.getNumCellColumns());
+        assertEquals(cellGrid.getNumCellRows(), bandCellGrid.getNumCellRows());
+        for (int y = 0; y < cellGrid.getNumCellRows(); y++) {
+            for (int x = 0; x < cellGrid.getNumCellColumns(); x++) {
+                assertEquals(cellGrid.getCellValue(x, y), bandCellGrid.getCellValue(x, y), 0.0f);
+            }
+        }
+
+        final ScapeMCellGrid gapFilledGrid = new ScapeMGapFillOp.GapFilledGrid(bandCellGrid, NO_DATA_VALUE);
+
+        assertGapFilledAsPerTile(cellGrid, gapFilledGrid);
+    }
+
+    @Test
+    public void testGapFilledGridFillsOnce() throws InterruptedException {
+        final ScapeMCellGrid cellGrid = createCellGridWithGaps();
+        final AtomicInteger numReads = new AtomicInteger();
+        final ScapeMCellGrid countingGrid = new ScapeMCellGrid(cellGrid.getSceneWidth(), cellGrid.getSceneHeight(),
+                                                               cellGrid.getCellWidth(), cellGrid.getCellHeight()) {
+            @Override
+            public float getCellValue(int cellX, int cellY) {
+                return cellGrid.getCellValue(cellX, cellY);
+            }
+
+            @Override
+            public void readAllCells() throws InterruptedException {
+                numReads.incrementAndGet();
+                super.readAllCells();
+            }
+        };
+        final ScapeMCellGrid gapFilledGrid = new ScapeMGapFillOp.GapFilledGrid(countingGrid, NO_DATA_VALUE);
+        assertEquals(0, numReads.get());
+
+        // concurrent first accesses, as by several tile requests
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int cellX = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    gapFilledGrid.getCellValue(cellX, 1);
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, numReads.get());
+
+        assertGapFilledAsPerTile(cellGrid, gapFilledGrid);
+        assertEquals(1, numReads.get());
+    }
+
+    // 7 x 6 cells of 3 x 2 pixels, the last column and row smaller, with gaps at the corners, at the border and inside
+    private static ScapeMCellGrid createCellGridWithGaps() {
+        final ScapeMCellGrid cellGrid = new ScapeMCellGrid(20, 11, 3, 2);
+        final Random random = new Random(7);
+        for (int y = 0; y < cellGrid.getNumCellRows(); y++) {
+            for (int x = 0; x < cellGrid.getNumCellColumns(); x++) {
+                cellGrid.setCellValue(x, y, 10.0f + 50.0f * random.nextFloat());
+            }
+        }
+        final int[][] gaps = {{0, 0}, {6, 5}, {3, 0}, {0, 3}, {6, 2}, {1, 1}, {3, 2}, {3, 3}, {4, 3}};
+        for (int[] gap : gaps) {
+            cellGrid.setCellValue(gap[0], gap[1], (float) NO_DATA_VALUE);
+        }
+        return cellGrid;
+    }
+
+    private static void assertGapFilledAsPerTile(ScapeMCellGrid cellGrid, ScapeMCellGrid gapFilledGrid) {
+        final float[][] cellSamples = new float[cellGrid.getNumCellColumns()][cellGrid.getNumCellRows()];
+        for (int y = 0; y < cellGrid.getNumCellRows(); y++) {
+            for (int x = 0; x < cellGrid.getNumCellColumns(); x++) {
+                cellSamples[x][y] = cellGrid.getCellValue(x, y);
+            }
+        }
+        for (int y = 0; y < cellGrid.getNumCellRows(); y++) {
+            for (int x = 0; x < cellGrid.getNumCellColumns(); x++) {
+                final double expected = gapFillPerTile(cellSamples, x, y);
+                assertEquals(expected, gapFilledGrid.getCellValue(x, y), 1.E-5 * expected);
+            }
+        }
+    }
+
+    // the gap filling of a single cell as done per target tile by the former gap fill operator
+    private static double gapFillPerTile(float[][] cellSamples, int x, int y) {
+        final int numberOfCellColumns = cellSamples.length;
+        final int numberOfCellRows = cellSamples[0].length;
+        final double visCellOrigValue = cellSamples[x][y];
+        if (isVisibilityValid(visCellOrigValue)) {
+            return visCellOrigValue;
+        }
+        final int minimumDistanceToEdge = ScapeMGapFill.getMinimumDistanceToEdge(x, y,
+                                                                                  numberOfCellColumns, numberOfCellRows);
+        double visInterpolValue;
+        if (minimumDistanceToEdge >= 2) {
+            visInterpolValue = ScapeMGapFill.interpolateOverRegion(cellSamples, x, y, 2, NO_DATA_VALUE);
+        } else if (minimumDistanceToEdge == 1) {
+            visInterpolValue = ScapeMGapFill.interpolateOverRegion(cellSamples, x, y, 1, NO_DATA_VALUE);
+        } else {
+            visInterpolValue = ScapeMGapFill.interpolateAtCornerOrBorder(numberOfCellColumns, numberOfCellRows,
+                                                                         cellSamples, x, y, NO_DATA_VALUE);
+        }
+        if (visInterpolValue == 0 && minimumDistanceToEdge >= 3) {
+            visInterpolValue = ScapeMGapFill.interpolateOverRegion(cellSamples, x, y, 3, NO_DATA_VALUE);
+        }
+        if (visInterpolValue == 0) {
+            double areaMean = 0.0;
+            int numberOfValidCells = 0;
+            for (float[] cellColumn : cellSamples) {
+                for (float cellValue : cellColumn) {
+                    if (isVisibilityValid(cellValue)) {
+                        areaMean += cellValue;
+                        numberOfValidCells++;
+                    }
+                }
+            }
+            visInterpolValue = areaMean / numberOfValidCells;
+        }
+        return visInterpolValue;
+    }
+
+    private static boolean isVisibilityValid(double visValue) {
+        return !Double.isNaN(visValue) && visValue != ScapeMConstants.VISIBILITY_NODATA_VALUE;
+    }
+}
@@ -86,6 +86,64 @@ public class ScapeMGapFillTest {
         assertEquals((float) 39 / 7, ScapeMGapFill.interpolateAtCornerOrBorder(3, 3, cellSamples, 1, 2, noDataValue), 1e-8);
     }
 
+    @Test
+    public void testScapeMGapFillOnCellGrid() {
+        final double noDataValue = 1000.0;
+        // 4 x 5 cells of 2 x 2 pixels, the last column and row only 1 pixel wide
+        final ScapeMCellGrid cellGrid = new ScapeMCellGrid(7, 9, 2, 2);
+        for (int y = 0; y < 5; y++) {
+            for (int x = 0; x < 4; x++) {
+                final float value = x + 4 * y + 1;
+                final boolean isHole = value == 6.0f || value == 16.0f || value == 17.0f || value == 20.0f;
+                cellGrid.setCellValue(x, y, isHole ? (float) noDataValue : value);
+            }
+        }
+
+        final ScapeMCellGrid filledCellGrid = ScapeMGapFill.gapFill(cellGrid, noDataValue);
+
+        assertEquals(7, filledCellGrid.getSceneWidth());
+        assertEquals(9, filledCellGrid.getSceneHeight());
+        assertEquals(6.0, filledCellGrid.getCellValue(1, 1), 1e-6);       // inside
+        assertEquals(13.8, filledCellGrid.getCellValue(3, 3), 1e-6);      // right edge
+        assertEquals(15.2, filledCellGrid.getCellValue(0, 4), 1e-6);      // lower left
+        assertEquals(17.666666, filledCellGrid.getCellValue(3, 4), 1e-6); // lower right
+        assertEquals(7.0, filledCellGrid.getCellValue(2, 1), 1e-8);
+        // the input is not changed
+        assertEquals(noDataValue, cellGrid.getCellValue(1, 1), 1e-8);
+    }
+
+    @Test
+    public void testScapeMGapFillWithNaNCells() {
+        final double noDataValue = 1000.0;
+        // 9 x 9 cells, valid only at the grid border, with a NaN corner
+        final ScapeMCellGrid cellGrid = new ScapeMCellGrid(9, 9, 1, 1);
+        for (int y = 0; y < 9; y++) {
+            for (int x = 0; x < 9; x++) {
+                final boolean isBorder = ScapeMGapFill.getMinimumDistanceToEdge(x, y, 9, 9) == 0;
+                cellGrid.setCellValue(x, y, isBorder ? 20.0f : (float) noDataValue);
+            }
+        }
+        cellGrid.setCellValue(0, 0, Float.NaN);
+        // a NaN cell in the center, with empty windows: filled with the mean of the valid cells
+        cellGrid.setCellValue(4, 4, Float.NaN);
+
+        final ScapeMCellGrid filledCellGrid = ScapeMGapFill.gapFill(cellGrid, noDataValue);
+
+        assertEquals(20.0, filledCellGrid.getCellValue(4, 4), 1e-6);
+        assertEquals(20.0, filledCellGrid.getCellValue(0, 0), 1e-6);
+        assertEquals(20.0, filledCellGrid.getCellValue(1, 1), 1e-6);
+
+        // no valid cell at all: the gaps are kept
+        final ScapeMCellGrid emptyCellGrid = new ScapeMCellGrid(3, 3, 1, 1);
+        emptyCellGrid.setCellValue(1, 1, (float) noDataValue);
+        final ScapeMCellGrid filledEmptyCellGrid = ScapeMGapFill.gapFill(emptyCellGrid, noDataValue);
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 3; x++) {
+                assertEquals(noDataValue, filledEmptyCellGrid.getCellValue(x, y), 0.0);
+            }
+        }
+    }
+
     @Test
     public void testScapeMGapFill() throws IOException {
         final int pixelsPerCell = 2;
@@ -0,0 +1,73 @@
+package org.esa.beam.operator;
+
+import org.esa.beam.io.AtmParamLookupTable;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+
+public class ScapeMLutRegistryTest {
+
+    @Test
+    public void testLutIsLoadedOnceAndShared() throws IOException {
+        final ScapeMLutRegistry registry = new ScapeMLutRegistry();
+        final CountingLoader loader = new CountingLoader();
+
+        final ScapeMLut lut1 = registry.getLut("test", loader);
+        final ScapeMLut lut2 = registry.getLut("test", loader);
+        final ScapeMLut lut3 = registry.getLut("test", loader);
+
+        assertSame(lut1, lut2);
+        assertSame(lut1, lut3);
+        assertEquals(1, loader.count);
+        assertEquals(1, registry.getLoadCount());
+        assertEquals(2, registry.getHitCount());
+    }
+
+    @Test
+    public void testLutsAreKeyedByName() throws IOException {
+        final ScapeMLutRegistry registry = new ScapeMLutRegistry();
+        final CountingLoader loader = new CountingLoader();
+
+        final ScapeMLut lut1 = registry.getLut("test1", loader);
+        final ScapeMLut lut2 = registry.getLut("test2", loader);
+
+        assertNotSame(lut1, lut2);
+        assertEquals(2, registry.getLoadCount());
+        assertEquals(0, registry.getHitCount());
+    }
+
+    @Test
+    public void testClear() throws IOException {
+        final ScapeMLutRegistry registry = new ScapeMLutRegistry();
+        final CountingLoader loader = new CountingLoader();
+
+        final ScapeMLut lut1 = registry.getLut("test", loader);
+        registry.getLut("test", loader);
+        registry.clear();
+        assertEquals(0, registry.getLoadCount());
+        assertEquals(0, registry.getHitCount());
+
+        final ScapeMLut lut2 = registry.getLut("test", loader);
+        assertNotSame(lut1, lut2);
+        assertEquals(2, loader.count);
+        assertEquals(1, registry.getLoadCount());
+    }
+
+    private static class CountingLoader implements ScapeMLutRegistry.Loader {
+        int count;
+
+        @Override
+        public ScapeMLut load() {
+            count++;
+            final float[][] dimensions = new float[8][];
+            for (int i = 0; i < dimensions.length; i++) {
+                dimensions[i] = new float[]{1.0f, 2.0f};
+            }
+            return new ScapeMLut(new AtmParamLookupTable(new float[256], dimensions));
+        }
+    }
+}
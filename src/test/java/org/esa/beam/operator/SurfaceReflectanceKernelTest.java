@@ -0,0 +1,51 @@
+package org.esa.beam.operator;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+
+public class SurfaceReflectanceKernelTest {
+
+    @Test
+    public void testInvertScalar() {
+        final double xTerm = Math.PI * (0.3 - 0.05) / 1.2;
+        assertEquals(xTerm / (1.0 + 0.15 * xTerm), SurfaceReflectanceKernel.invert(0.3, 0.05, 1.2, 0.15), 1.E-15);
+    }
+
+    @Test
+    public void testRowKernelAgreesWithScalarInversion() {
+        final int length = 131;
+        final float[] toa = new float[length];
+        final float[] lpw = new float[length];
+        final float[] etw = new float[length];
+        final float[] sab = new float[length];
+        final float[] refl = new float[length];
+        final Random random = new Random(4711);
+        for (int i = 0; i < length; i++) {
+            toa[i] = 0.05f + 0.3f * random.nextFloat();
+            lpw[i] = 0.01f + 0.03f * random.nextFloat();
+            etw[i] = 0.8f + 0.6f * random.nextFloat();
+            sab[i] = 0.05f + 0.2f * random.nextFloat();
+        }
+
+        SurfaceReflectanceKernel.invert(toa, lpw, etw, sab, refl, length - 1);
+
+        for (int i = 0; i < length - 1; i++) {
+            final double expected = SurfaceReflectanceKernel.invert(toa[i], lpw[i], etw[i], sab[i]);
+            assertEquals(expected, refl[i], 1.E-6 * Math.abs(expected));
+        }
+        // beyond given length, nothing is written
+        assertEquals(0.0f, refl[length - 1]);
+    }
+
+    @Test
+    public void testRowKernelInPlace() {
+        final float[] toa = new float[]{0.3f, 0.2f};
+        SurfaceReflectanceKernel.invert(toa, new float[]{0.05f, 0.02f}, new float[]{1.2f, 1.1f},
+                                        new float[]{0.15f, 0.1f}, toa, 2);
+        assertEquals(SurfaceReflectanceKernel.invert(0.3f, 0.05f, 1.2f, 0.15f), toa[0], 1.E-6);
+        assertEquals(SurfaceReflectanceKernel.invert(0.2f, 0.02f, 1.1f, 0.1f), toa[1], 1.E-6);
+    }
+}
@@ -0,0 +1,266 @@
+package org.esa.beam.operator;
+
+import org.esa.beam.ScapeMConstants;
+import org.esa.beam.math.LevenbergMarquardt;
+import org.esa.beam.math.Powell;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class ToaMinimizationTest {
+
+    private static final double[] VIS_ARRAY = {10.0, 15.0, 23.0, 40.0, 80.0, 140.0, 280.0};
+    private static final double[] WEIGHT = {2.0, 2.0, 1.5, 1.5, 1.0};
+    private static final int NUM_X = 2 * ScapeMConstants.NUM_REF_PIXELS + 1;
+
+    private double[][] lpw;
+    private double[][] etw;
+    private double[][] sab;
+
+    @Before
+    public void setUp() {
+        // smooth LUT parameters: path radiance and spherical albedo decreasing, transmittance increasing with vis
+        lpw = new double[ScapeMConstants.L1_BAND_NUM][VIS_ARRAY.length];
+        etw = new double[ScapeMConstants.L1_BAND_NUM][VIS_ARRAY.length];
+        sab = new double[ScapeMConstants.L1_BAND_NUM][VIS_ARRAY.length];
+        for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+            final double scale = 1.0 - 0.04 * bandId;
+            for (int i = 0; i < VIS_ARRAY.length; i++) {
+                final double haze = Math.exp(-VIS_ARRAY[i] / 60.0);
+                lpw[bandId][i] = scale * (0.01 + 0.08 * haze);
+                etw[bandId][i] = 1.1 - 0.4 * scale * haze;
+                sab[bandId][i] = scale * (0.05 + 0.15 * haze);
+            }
+        }
+    }
+
+    @Test
+    public void testResidualsAndJacobian() {
+        final ToaMinimization toaMinimization = createToaMinimization(12.0, createRefPixels(35.0, 1, new Random(42)), 1);
+        final double[] x = {0.5, 0.2, 0.7, 0.1, 0.3, 0.4, 0.9, 0.05, 0.2, 0.6, 31.0};
+        final int numResiduals = toaMinimization.getNumResiduals();
+        final double[] residuals = new double[numResiduals];
+        final double[][] jacobian = new double[numResiduals][NUM_X];
+        toaMinimization.computeResiduals(x, residuals, jacobian);
+
+        double sumOfSquares = 0.0;
+        for (double residual : residuals) {
+            sumOfSquares += residual * residual;
+        }
+        assertEquals(toaMinimization.f(x), sumOfSquares, 1.E-12);
+
+        // analytic derivatives against central differences
+        final double[] residualsPlus = new double[numResiduals];
+        final double[] residualsMinus = new double[numResiduals];
+        final double[][] unused = new double[numResiduals][NUM_X];
+        for (int l = 0; l < NUM_X; l++) {
+            final double h = l == NUM_X - 1 ? 1.E-4 : 1.E-6;
+            final double[] xPlus = x.clone();
+            final double[] xMinus = x.clone();
+            xPlus[l] += h;
+            xMinus[l] -= h;
+            toaMinimization.computeResiduals(xPlus, residualsPlus, unused);
+            toaMinimization.computeResiduals(xMinus, residualsMinus, unused);
+            for (int k = 0; k < numResiduals; k++) {
+                final double expected = (residualsPlus[k] - residualsMinus[k]) / (2.0 * h);
+                assertEquals(expected, jacobian[k][l], 1.E-6 * (1.0 + Math.abs(expected)));
+            }
+        }
+    }
+
+    @Test
+    public void testLevenbergMarquardtVersusPowell() {
+        // reference cells with known visibility, minimised with the true and with a wrong endmember
+        final Random random = new Random(4711);
+        final LevenbergMarquardt levenbergMarquardt = new LevenbergMarquardt();
+        for (int n = 0; n < 10; n++) {
+            final double visTrue = 20.0 + 100.0 * random.nextDouble();
+            final double visLim = visTrue - 3.0 - 5.0 * random.nextDouble();
+            final double[][] refPixels = createRefPixels(visTrue, 1, random);
+            for (int vegIndex = 0; vegIndex < ScapeMConstants.RHO_VEG_ALL.length; vegIndex++) {
+                final double[] xStart = new double[NUM_X];
+                Arrays.fill(xStart, 0.3);
+                xStart[NUM_X - 1] = visLim + 0.01;
+
+                final ToaMinimization toaMinimization = createToaMinimization(visLim, refPixels, vegIndex);
+                final double[] xPowell = xStart.clone();
+                final double[][] xi = new double[NUM_X][NUM_X];
+                for (int i = 0; i < NUM_X; i++) {
+                    xi[i][i] = 1.0;
+                }
+                final double fminPowell = Powell.fmin(xPowell, xi, ScapeMConstants.POWELL_FTOL, toaMinimization);
+
+                final double[] xLm = xStart.clone();
+                final double[] lower = new double[NUM_X];
+                final double[] upper = new double[NUM_X];
+                Arrays.fill(upper, Double.MAX_VALUE);
+                lower[NUM_X - 1] = visLim;
+                upper[NUM_X - 1] = VIS_ARRAY[VIS_ARRAY.length - 1] - 0.001;
+                levenbergMarquardt.fmin(xLm, lower, upper, ScapeMConstants.LM_FTOL, toaMinimization);
+                final double fminLm = toaMinimization.f(xLm);
+
+                // at least as good as Powell
+                assertTrue(fminLm <= fminPowell * 1.001 + 1.E-12);
+                assertTrue(levenbergMarquardt.getNumEvaluations() < 100);
+                if (vegIndex == 1) {
+                    // noise free, with the true endmember: exact fit
+                    assertEquals(0.0, fminLm, 1.E-10);
+                    assertEquals(visTrue, xLm[NUM_X - 1], 1.E-3);
+                    assertEquals(visTrue, xPowell[NUM_X - 1], 0.5);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testVariableProjectionVersusLevenbergMarquardt() {
+        final Random random = new Random(815);
+        final LevenbergMarquardt levenbergMarquardt = new LevenbergMarquardt();
+        final double visUpperLim = VIS_ARRAY[VIS_ARRAY.length - 1] - 0.001;
+        for (int n = 0; n < 10; n++) {
+            final double visTrue = 20.0 + 100.0 * random.nextDouble();
+            final double visLim = visTrue - 3.0 - 5.0 * random.nextDouble();
+            final double[][] refPixels = createRefPixels(visTrue, 1, random);
+            for (int vegIndex = 0; vegIndex < ScapeMConstants.RHO_VEG_ALL.length; vegIndex++) {
+                final ToaMinimization toaMinimization = createToaMinimization(visLim, refPixels, vegIndex);
+                final ToaProfileMinimization profileMinimization = new ToaProfileMinimization(toaMinimization);
+                final double[] xProfile = new double[NUM_X];
+                final double fminProfile = profileMinimization.fmin(xProfile, visLim, visUpperLim);
+                assertEquals(toaMinimization.f(xProfile), fminProfile, 1.E-12 + 1.E-9 * fminProfile);
+                assertTrue(profileMinimization.getNumEvaluations() < 100);
+
+                final double[] xLm = new double[NUM_X];
+                Arrays.fill(xLm, 0.3);
+                xLm[NUM_X - 1] = visLim + 0.01;
+                final double[] lower = new double[NUM_X];
+                final double[] upper = new double[NUM_X];
+                Arrays.fill(upper, Double.MAX_VALUE);
+                lower[NUM_X - 1] = visLim;
+                upper[NUM_X - 1] = visUpperLim;
+                levenbergMarquardt.fmin(xLm, lower, upper, ScapeMConstants.LM_FTOL, toaMinimization);
+
+                // at least as good as Levenberg-Marquardt
+                assertTrue(fminProfile <= toaMinimization.f(xLm) * 1.001 + 1.E-10);
+                if (vegIndex == 1) {
+                    assertEquals(0.0, fminProfile, 1.E-10);
+                    assertEquals(visTrue, xProfile[NUM_X - 1], 1.E-3);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testToaMinimizers() {
+        final String[] refinementMethods = {
+                ScapeMConstants.VIS_REFINEMENT_POWELL, ScapeMConstants.VIS_REFINEMENT_LEVENBERG_MARQUARDT,
+                ScapeMConstants.VIS_REFINEMENT_VARIABLE_PROJECTION, ScapeMConstants.VIS_REFINEMENT_BOBYQA,
+                ScapeMConstants.VIS_REFINEMENT_NELDER_MEAD
+        };
+        final double[] visTolerances = {0.5, 1.E-3, 1.E-3, 0.05, 0.5};
+        final Random random = new Random(1234);
+        for (int n = 0; n < 3; n++) {
+            final double visTrue = 20.0 + 100.0 * random.nextDouble();
+            final double visLim = visTrue - 3.0 - 5.0 * random.nextDouble();
+            final ToaMinimization toaMinimization = createToaMinimization(visLim, createRefPixels(visTrue, 1, random), 1);
+            final double[] lower = new double[NUM_X];
+            final double[] upper = new double[NUM_X];
+            Arrays.fill(upper, Double.MAX_VALUE);
+            lower[NUM_X - 1] = visLim;
+            upper[NUM_X - 1] = VIS_ARRAY[VIS_ARRAY.length - 1] - 0.001;
+            for (int m = 0; m < refinementMethods.length; m++) {
+                final ToaMinimizer toaMinimizer = ToaMinimizerFactory.create(refinementMethods[m]);
+                final double[] x = new double[NUM_X];
+                Arrays.fill(x, 0.3);
+                x[NUM_X - 1] = visLim + 0.01;
+                final double fmin = toaMinimizer.minimize(x, toaMinimization, lower, upper);
+
+                // noise free, with the true endmember
+                assertEquals(refinementMethods[m], visTrue, x[NUM_X - 1], visTolerances[m]);
+                assertTrue(refinementMethods[m], fmin < 1.E-4);
+                for (double value : x) {
+                    assertTrue(refinementMethods[m], value >= 0.0);
+                }
+                assertTrue(refinementMethods[m], toaMinimizer.getNumIterations() > 0);
+                assertTrue(refinementMethods[m], toaMinimizer.getNumEvaluations() >= toaMinimizer.getNumIterations());
+            }
+        }
+
+        try {
+            ToaMinimizerFactory.create("STEEPEST_DESCENT");
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testPowellWarmStart() {
+        final Random random = new Random(2468);
+        final double visLim = 30.0;
+        final double[] lower = new double[NUM_X];
+        final double[] upper = new double[NUM_X];
+        Arrays.fill(upper, Double.MAX_VALUE);
+        lower[NUM_X - 1] = visLim;
+        upper[NUM_X - 1] = VIS_ARRAY[VIS_ARRAY.length - 1] - 0.001;
+
+        // cold start
+        final ToaMinimization toaMinimization = createToaMinimization(visLim, createRefPixels(45.0, 1, random), 1);
+        final PowellToaMinimizer coldMinimizer = (PowellToaMinimizer) ToaMinimizerFactory.create(
+                ScapeMConstants.VIS_REFINEMENT_POWELL);
+        assertNull(coldMinimizer.getDirections());
+        final double[] xCold = new double[NUM_X];
+        Arrays.fill(xCold, 0.3);
+        xCold[NUM_X - 1] = visLim + 0.01;
+        final double fminCold = coldMinimizer.minimize(xCold, toaMinimization, lower, upper);
+        final int numEvaluationsCold = coldMinimizer.getNumEvaluations();
+        final double[][] directions = coldMinimizer.getDirections();
+
+        // warm start of a new minimiser from the solution and directions of the cold start
+        final PowellToaMinimizer warmMinimizer = (PowellToaMinimizer) ToaMinimizerFactory.create(
+                ScapeMConstants.VIS_REFINEMENT_POWELL);
+        warmMinimizer.setDirections(directions);
+        directions[0][0] = Double.NaN;
+        final double[] xWarm = xCold.clone();
+        final double fminWarm = warmMinimizer.minimize(xWarm, toaMinimization, lower, upper);
+        assertTrue(fminWarm <= fminCold);
+        assertEquals(xCold[NUM_X - 1], xWarm[NUM_X - 1], 0.1);
+        assertTrue(warmMinimizer.getNumEvaluations() < numEvaluationsCold);
+    }
+
+    private ToaMinimization createToaMinimization(double visLim, double[][] refPixels, int vegIndex) {
+        final ToaMinimization toaMinimization = new ToaMinimization(visLim, VIS_ARRAY, lpw, etw, sab, 0.0);
+        toaMinimization.setRefPixels(refPixels);
+        toaMinimization.setWeight(WEIGHT);
+        toaMinimization.setRhoVeg(ScapeMConstants.RHO_VEG_ALL[vegIndex]);
+        return toaMinimization;
+    }
+
+    // TOA of reference pixels, modelled with random abundances of the given vegetation endmember and soil
+    private double[][] createRefPixels(double vis, int vegIndex, Random random) {
+        final double[] x = new double[NUM_X];
+        for (int j = 0; j < ScapeMConstants.NUM_REF_PIXELS; j++) {
+            x[2 * j] = random.nextDouble();
+            x[2 * j + 1] = 0.3 * random.nextDouble();
+        }
+        x[NUM_X - 1] = vis;
+        final double[][] refPixels = new double[ScapeMConstants.L1_BAND_NUM][ScapeMConstants.NUM_REF_PIXELS];
+        final ToaMinimization model = createToaMinimization(0.0, refPixels, vegIndex);
+        final double[] residuals = new double[model.getNumResiduals()];
+        model.computeResiduals(x, residuals, new double[residuals.length][NUM_X]);
+        // with zero reference TOA, the residuals are -sqrt(weight) * WL_CENTER_INV * toa
+        for (int j = 0; j < ScapeMConstants.NUM_REF_PIXELS; j++) {
+            for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
+                final double factor = -Math.sqrt(WEIGHT[j]) * ScapeMConstants.WL_CENTER_INV[i];
+                refPixels[i][j] = factor == 0.0 ? 0.0 : residuals[j * ScapeMConstants.L1_BAND_NUM + i] / factor;
+            }
+        }
+        return refPixels;
+    }
+}
@@ -0,0 +1,117 @@
+package org.esa.beam.operator;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class WaterVapourSolverTest {
+
+    private static final double[] WV_GR = new double[]{0.301, 1.0, 1.5, 2.0, 2.7, 4.999};
+    private static final double WV_LOWER = 0.302;
+    private static final double WV_UPPER = 4.998;
+
+    @Test
+    public void testSolveWaterVapour() {
+        // all numbers in this test taken from IDL test run, cellIndexX=1, cellIndexY=0
+        final double[][][] parAtmH = initParAtmH();
+        final double[] reflPix = new double[]{0.358543, 0.365387};
+
+        final WaterVapourSolver solver = new WaterVapourSolver(WV_GR, WV_LOWER, WV_UPPER, false);
+        assertTrue(solver.solve(0.64714217, reflPix, parAtmH));
+        assertEquals(1.96476, solver.getWv(), 1.E-4);
+        assertEquals(2, solver.getWvInf());
+        assertEquals((solver.getWv() - 1.5) / 0.5, solver.getWvP(), 1.E-12);
+
+        final WaterVapourSolver referenceSolver = new WaterVapourSolver(WV_GR, WV_LOWER, WV_UPPER, true);
+        assertTrue(referenceSolver.solve(0.64714217, reflPix, parAtmH));
+        assertEquals(referenceSolver.getWv(), solver.getWv(), 1.E-4);
+        assertEquals(referenceSolver.getWvInf(), solver.getWvInf());
+    }
+
+    @Test
+    public void testSolveWaterVapourAgreesWithReference() {
+        final double[][][] parAtmH = initParAtmH();
+        final double[] reflPix = new double[2];
+        final WaterVapourSolver solver = new WaterVapourSolver(WV_GR, WV_LOWER, WV_UPPER, false);
+        final WaterVapourSolver referenceSolver = new WaterVapourSolver(WV_GR, WV_LOWER, WV_UPPER, true);
+        final WaterVapourFunction function = new WaterVapourFunction();
+        function.setWvGr2(WV_GR);
+        function.setParAtmH(parAtmH);
+        function.setReflPix(reflPix);
+
+        final Random random = new Random(1234);
+        int numSolved = 0;
+        for (int i = 0; i < 1000; i++) {
+            reflPix[0] = 0.1 + 0.4 * random.nextDouble();
+            reflPix[1] = 0.1 + 0.4 * random.nextDouble();
+            final double merisRatio = 0.4 + 0.6 * random.nextDouble();
+
+            final boolean solved = solver.solve(merisRatio, reflPix, parAtmH);
+            assertEquals(referenceSolver.solve(merisRatio, reflPix, parAtmH), solved);
+            if (solved) {
+                numSolved++;
+                assertEquals(referenceSolver.getWv(), solver.getWv(), 1.E-4);
+                function.setMerisRatio(merisRatio);
+                assertEquals(0.0, function.value(solver.getWv()), 1.E-12);
+            }
+        }
+        assertTrue(numSolved > 100);
+    }
+
+    @Test
+    public void testNoSolution() {
+        final WaterVapourSolver solver = new WaterVapourSolver(WV_GR, WV_LOWER, WV_UPPER, false);
+        assertFalse(solver.solve(5.0, new double[]{0.358543, 0.365387}, initParAtmH()));
+    }
+
+    @Test
+    public void testSolveCubic() {
+        final double[] roots = new double[3];
+        // (x - 1)(x - 2)(x + 3) = x^3 - 7x + 6
+        assertEquals(3, WaterVapourSolver.solveCubic(1.0, 0.0, -7.0, 6.0, roots));
+        assertEquals(-3.0, roots[0], 1.E-12);
+        assertEquals(1.0, roots[1], 1.E-12);
+        assertEquals(2.0, roots[2], 1.E-12);
+
+        // (x - 0.5)(x^2 + 1)
+        assertEquals(1, WaterVapourSolver.solveCubic(2.0, -1.0, 2.0, -1.0, roots));
+        assertEquals(0.5, roots[0], 1.E-12);
+
+        // quadratic and linear cases
+        assertEquals(2, WaterVapourSolver.solveCubic(0.0, 1.0, -3.0, 2.0, roots));
+        assertEquals(1.0, roots[0], 1.E-12);
+        assertEquals(2.0, roots[1], 1.E-12);
+        assertEquals(1, WaterVapourSolver.solveCubic(0.0, 0.0, 4.0, -1.0, roots));
+        assertEquals(0.25, roots[0], 1.E-12);
+        assertEquals(0, WaterVapourSolver.solveCubic(0.0, 1.0, 0.0, 1.0, roots));
+    }
+
+    private double[][][] initParAtmH() {
+        final double[][] lpwSp = new double[][]{
+                {0.000347325, 0.000346807, 0.000346440, 0.000346088, 0.000343719, 0.000320908},
+                {0.000304777, 0.000293110, 0.000288408, 0.000284697, 0.000279150, 0.000249003}
+        };
+        final double[][] etwSp = new double[][]{
+                {0.0611599, 0.0608751, 0.0606844, 0.0605060, 0.0603419, 0.0604092},
+                {0.0515248, 0.0439318, 0.0405391, 0.0378421, 0.0347929, 0.0286416}
+        };
+        final double[][] sabSp = new double[][]{
+                {0.0400862, 0.0399702, 0.0398764, 0.0397741, 0.0395522, 0.0388895},
+                {0.0355665, 0.0330387, 0.0316938, 0.0305411, 0.0291765, 0.0265667}
+        };
+
+        double[][][] parAtmH = new double[3][2][6];
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 6; j++) {
+                parAtmH[0][i][j] = lpwSp[i][j];
+                parAtmH[1][i][j] = etwSp[i][j];
+                parAtmH[2][i][j] = sabSp[i][j];
+            }
+        }
+        return parAtmH;
+    }
+}
@@ -0,0 +1,68 @@
+package org.esa.beam.util;
+
+import org.esa.beam.ScapeMConstants;
+import org.junit.Test;
+
+import java.awt.*;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class ClearPixelMaskTest {
+
+    private static final int INVALID = 1 << ScapeMConstants.CLOUD_INVALID_BIT;
+    private static final int CLOUD = 1 << ScapeMConstants.CLOUD_CERTAIN_BIT;
+    private static final int OCEAN = 1 << ScapeMConstants.CLOUD_OCEAN_BIT;
+
+    @Test
+    public void testFillMaskFromFlags() {
+        // 10 x 8 flag tile, so that the mask spans two words
+        final Rectangle flagRect = new Rectangle(100, 200, 10, 8);
+        final int[] flags = new int[80];
+        flags[0] = INVALID;
+        flags[13] = CLOUD;
+        flags[70] = OCEAN;
+        flags[79] = 4;   // 'cloud presumably' is not evaluated
+
+        final long[] bits = new long[ClearPixelMask.getNumWords(flagRect)];
+        assertEquals(2, bits.length);
+        ClearPixelMask.fillMask(flags, flagRect, INVALID | CLOUD | OCEAN, flagRect, bits);
+        assertEquals(77, Long.bitCount(bits[0]) + Long.bitCount(bits[1]));
+        assertEquals(0L, bits[0] & 1L);
+        assertEquals(0L, bits[1] & (1L << 6));
+
+        // sub-rectangle (101, 201, 3, 2) holds flag indices 11, 12, 13 and 21, 22, 23
+        final Rectangle rect = new Rectangle(101, 201, 3, 2);
+        ClearPixelMask.fillMask(flags, flagRect, INVALID | CLOUD, rect, bits);
+        assertEquals(0x3BL, bits[0]);
+    }
+
+    @Test
+    public void testMaskAccess() {
+        final Rectangle rect = new Rectangle(10, 20, 9, 9);
+        final ClearPixelMask mask = ClearPixelMask.create(new ClearPixelStrategy() {
+            @Override
+            public boolean isValid(int x, int y) {
+                return x == 12 || y == 28;
+            }
+
+            @Override
+            public void fillMask(Rectangle rect, long[] bits) {
+                ClearPixelMask.fillMask(this, rect, bits);
+            }
+
+            @Override
+            public void setTile(org.esa.beam.framework.gpf.Tile tile) {
+            }
+        }, rect);
+
+        assertEquals(17, mask.getClearCount());
+        assertEquals(17.0 / 81.0, mask.getClearFraction(), 1.E-12);
+        assertTrue(mask.isClear(12, 20));
+        assertTrue(mask.isClear(18, 28));
+        assertTrue(mask.isClear(80));
+        assertFalse(mask.isClear(13, 27));
+        assertFalse(mask.isClear(0));
+    }
+}
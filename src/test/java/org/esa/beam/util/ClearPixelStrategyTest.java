@@ -52,6 +52,16 @@ public class ClearPixelStrategyTest {
                 count++;
             }
         }
+
+        final Rectangle rect = new Rectangle(0, 0, bitBand.getSceneRasterWidth(), bitBand.getSceneRasterHeight());
+        final ClearPixelMask onlyLandMask = ClearPixelMask.create(onlyLandStrategy, rect);
+        final ClearPixelMask landAndWaterMask = ClearPixelMask.create(landAndWaterStrategy, rect);
+        for (int i = 0; i < onlyLandExpectedResults.length; i++) {
+            assertEquals(onlyLandExpectedResults[i], onlyLandMask.isClear(i));
+            assertEquals(landAndWaterExpectedResults[i], landAndWaterMask.isClear(i));
+        }
+        assertEquals(2, onlyLandMask.getClearCount());
+        assertEquals(4, landAndWaterMask.getClearCount());
     }
 
     private Band createBitBand() throws IOException {
@@ -39,4 +39,18 @@ public class ScapeMUtilsTest {
         assertEquals(2.65832, stdev, 1.E-4);
     }
 
+    @Test
+    public void testGetLargestValueIndices() {
+        final double[] values = {0.3, 0.7, 0.5, 0.7, 0.1, 0.5, 0.9};
+        final int[] indices = {10, 11, 12, 13, 14, 15, 16};
+        final int[] largest = ScapeMUtils.getLargestValueIndices(values, indices, values.length, 5);
+        assertEquals(5, largest.length);
+        assertEquals(16, largest[0]);
+        // equal values in order of their indices
+        assertEquals(11, largest[1]);
+        assertEquals(13, largest[2]);
+        assertEquals(12, largest[3]);
+        assertEquals(15, largest[4]);
+    }
+
 }
@@ -0,0 +1,101 @@
+package org.esa.beam.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.fail;
+
+public class TaskExecutorTest {
+
+    @Test
+    public void testInvokeAll() throws InterruptedException {
+        // more tasks than threads, results in the order of the tasks
+        final int numTasks = 4 * Runtime.getRuntime().availableProcessors() + 3;
+        final List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+        for (int i = 0; i < numTasks; i++) {
+            final long n = 1000L * i;
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    long sum = 0;
+                    for (long k = 1; k <= n; k++) {
+                        sum += k;
+                    }
+                    return sum;
+                }
+            });
+        }
+        final List<Long> results = TaskExecutor.invokeAll(tasks);
+        assertEquals(numTasks, results.size());
+        for (int i = 0; i < numTasks; i++) {
+            final long n = 1000L * i;
+            assertEquals(n * (n + 1) / 2, results.get(i).longValue());
+        }
+
+        assertEquals(0, TaskExecutor.invokeAll(new ArrayList<Callable<Long>>()).size());
+    }
+
+    @Test
+    public void testNestedInvokeAll() throws InterruptedException {
+        final int numTasks = 2 * Runtime.getRuntime().availableProcessors() + 1;
+        final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < numTasks; i++) {
+            final int index = i;
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws InterruptedException {
+                    final Thread outerThread = Thread.currentThread();
+                    final List<Callable<Thread>> nestedTasks = new ArrayList<Callable<Thread>>();
+                    for (int j = 0; j < 5; j++) {
+                        nestedTasks.add(new Callable<Thread>() {
+                            @Override
+                            public Thread call() {
+                                return Thread.currentThread();
+                            }
+                        });
+                    }
+                    for (Thread nestedThread : TaskExecutor.invokeAll(nestedTasks)) {
+                        // nested tasks of a pool thread are run by itself
+                        if (outerThread.getName().startsWith("scape-m-task-")) {
+                            assertSame(outerThread, nestedThread);
+                        }
+                    }
+                    return index;
+                }
+            });
+        }
+        final List<Integer> results = TaskExecutor.invokeAll(tasks);
+        for (int i = 0; i < numTasks; i++) {
+            assertEquals(i, results.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testInvokeAllWithFailingTask() throws InterruptedException {
+        final IllegalStateException exception = new IllegalStateException("failed");
+        final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 5; i++) {
+            final int index = i;
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    if (index == 3) {
+                        throw exception;
+                    }
+                    return index;
+                }
+            });
+        }
+        try {
+            TaskExecutor.invokeAll(tasks);
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(exception, e);
+        }
+    }
+}
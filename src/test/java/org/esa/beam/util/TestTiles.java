@@ -0,0 +1,52 @@
+package org.esa.beam.util;
+
+import org.esa.beam.framework.datamodel.RasterDataNode;
+import org.esa.beam.framework.gpf.Tile;
+
+import java.awt.Rectangle;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Tiles backed by a plain sample buffer, for tests of code reading or writing tile data buffers.
+ */
+public class TestTiles {
+
+    private TestTiles() {
+    }
+
+    /**
+     * Creates a tile whose data buffer getters all return the given buffer.
+     *
+     * @param rasterDataNode - the raster of the tile
+     * @param rect           - the tile rectangle
+     * @param offset         - the buffer index of the upper left tile pixel
+     * @param stride         - the scanline stride of the buffer
+     * @param buffer         - the sample array, of the type matching the raster data type
+     *
+     * @return the tile
+     */
+    public static Tile createTile(final RasterDataNode rasterDataNode, final Rectangle rect,
+                                  final int offset, final int stride, final Object buffer) {
+        return (Tile) Proxy.newProxyInstance(Tile.class.getClassLoader(), new Class[]{Tile.class},
+                                             new InvocationHandler() {
+                                                 @Override
+                                                 public Object invoke(Object proxy, Method method, Object[] args) {
+                                                     final String name = method.getName();
+                                                     if (name.equals("getRasterDataNode")) {
+                                                         return rasterDataNode;
+                                                     } else if (name.equals("getRectangle")) {
+                                                         return new Rectangle(rect);
+                                                     } else if (name.equals("getDataBufferIndex")) {
+                                                         final int x = (Integer) args[0];
+                                                         final int y = (Integer) args[1];
+                                                         return offset + (y - rect.y) * stride + (x - rect.x);
+                                                     } else if (name.startsWith("getDataBuffer")) {
+                                                         return buffer;
+                                                     }
+                                                     throw new UnsupportedOperationException(name);
+                                                 }
+                                             });
+    }
+}
@@ -0,0 +1,124 @@
+package org.esa.beam.util;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.gpf.Tile;
+import org.junit.Test;
+
+import java.awt.*;
+
+import static junit.framework.Assert.assertEquals;
+
+public class TileAccessTest {
+
+    // tile of 4x3 pixels at (10, 20), stored with scanline offset 2 and stride 6
+    private static final Rectangle TILE_RECT = new Rectangle(10, 20, 4, 3);
+    private static final int OFFSET = 2;
+    private static final int STRIDE = 6;
+
+    @Test
+    public void testReadScaledUInt16Samples() {
+        final Band band = new Band("radiance_13", ProductData.TYPE_UINT16, 100, 100);
+        band.setScalingFactor(0.01);
+        band.setScalingOffset(1.5);
+        final short[] buffer = new short[OFFSET + 3 * STRIDE];
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = (short) (40000 + 1000 * i);   // above Short.MAX_VALUE, must be read unsigned
+        }
+        final Tile tile = createTile(band, buffer);
+
+        final Rectangle rect = new Rectangle(11, 21, 2, 2);
+        final double[] samples = new double[4];
+        TileAccess.readSamples(tile, rect, samples);
+        final float[] floatSamples = new float[4];
+        TileAccess.readSamples(tile, rect, 2.0, floatSamples);
+
+        int index = 0;
+        for (int y = rect.y; y < rect.y + rect.height; y++) {
+            for (int x = rect.x; x < rect.x + rect.width; x++) {
+                final double expected = band.scale(buffer[tile.getDataBufferIndex(x, y)] & 0xffff);
+                assertEquals(expected, samples[index], 0.0);
+                assertEquals((float) (expected * 2.0), floatSamples[index], 0.0f);
+                index++;
+            }
+        }
+        assertEquals(0.01 * 49000 + 1.5, samples[0], 1.E-10);
+    }
+
+    @Test
+    public void testReadIntSamples() {
+        final Band band = new Band("cloud_classif_flags", ProductData.TYPE_INT32, 100, 100);
+        final int[] buffer = new int[OFFSET + 3 * STRIDE];
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = i;
+        }
+        final int[] samples = new int[12];
+        TileAccess.readSamples(createTile(band, buffer), TILE_RECT, samples);
+        assertEquals(2, samples[0]);
+        assertEquals(5, samples[3]);
+        assertEquals(8, samples[4]);
+        assertEquals(17, samples[11]);
+    }
+
+    @Test
+    public void testReadUInt32Samples() {
+        final Band band = new Band("flags", ProductData.TYPE_UINT32, 100, 100);
+        final int[] buffer = new int[OFFSET + 3 * STRIDE];
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = 0x80000000 | i;   // bit 31 set, must not saturate
+        }
+        final int[] samples = new int[12];
+        TileAccess.readSamples(createTile(band, buffer), TILE_RECT, samples);
+        assertEquals(0x80000002, samples[0]);
+        assertEquals(0x80000005, samples[3]);
+        assertEquals(0x80000008, samples[4]);
+        assertEquals(0x80000011, samples[11]);
+    }
+
+    @Test
+    public void testReadByteSamples() {
+        final byte[] buffer = new byte[OFFSET + 3 * STRIDE];
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = (byte) (-i);
+        }
+        final int[] samples = new int[12];
+        TileAccess.readSamples(createTile(new Band("int8", ProductData.TYPE_INT8, 100, 100), buffer), TILE_RECT, samples);
+        assertEquals(-2, samples[0]);
+        assertEquals(-17, samples[11]);
+        TileAccess.readSamples(createTile(new Band("uint8", ProductData.TYPE_UINT8, 100, 100), buffer), TILE_RECT, samples);
+        assertEquals(254, samples[0]);
+        assertEquals(239, samples[11]);
+    }
+
+    @Test
+    public void testWriteAndFillFloatSamples() {
+        final Band band = new Band("refl_13", ProductData.TYPE_FLOAT32, 100, 100);
+        final float[] buffer = new float[OFFSET + 3 * STRIDE];
+        final Tile tile = createTile(band, buffer);
+
+        final float[] samples = new float[12];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = 0.5f * i;
+        }
+        TileAccess.writeSamples(tile, TILE_RECT, samples);
+        assertEquals(0.0f, buffer[2]);
+        assertEquals(1.5f, buffer[5]);
+        assertEquals(2.0f, buffer[8]);
+        assertEquals(5.5f, buffer[17]);
+        // padding is not touched
+        assertEquals(0.0f, buffer[6]);
+        assertEquals(0.0f, buffer[19]);
+
+        TileAccess.fillSamples(tile, new Rectangle(12, 21, 2, 2), -1.0);
+        assertEquals(2.5f, buffer[9]);
+        assertEquals(-1.0f, buffer[10]);
+        assertEquals(-1.0f, buffer[11]);
+        assertEquals(-1.0f, buffer[16]);
+        assertEquals(-1.0f, buffer[17]);
+        assertEquals(0.0f, buffer[18]);
+    }
+
+    private static Tile createTile(Band band, Object buffer) {
+        return TestTiles.createTile(band, TILE_RECT, OFFSET, STRIDE, buffer);
+    }
+}